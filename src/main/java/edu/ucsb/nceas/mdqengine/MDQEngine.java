@@ -4,14 +4,20 @@ import edu.ucsb.nceas.mdqengine.dispatch.Dispatcher;
 import edu.ucsb.nceas.mdqengine.dispatch.MDQCache;
 import edu.ucsb.nceas.mdqengine.exception.MetadigException;
 import edu.ucsb.nceas.mdqengine.model.*;
+import edu.ucsb.nceas.mdqengine.processor.CheckExecutor;
 import edu.ucsb.nceas.mdqengine.processor.GroupLookupCheck;
 import edu.ucsb.nceas.mdqengine.processor.XMLDialect;
 import edu.ucsb.nceas.mdqengine.processor.MetadataDialectFactory;
 import edu.ucsb.nceas.mdqengine.processor.MetadataDialect;
+import edu.ucsb.nceas.mdqengine.processor.RunContext;
+import edu.ucsb.nceas.mdqengine.processor.SuitePlan;
+import edu.ucsb.nceas.mdqengine.processor.XPathBackend;
+import edu.ucsb.nceas.mdqengine.processor.XPathCache;
 import edu.ucsb.nceas.mdqengine.serialize.JsonMarshaller;
 import edu.ucsb.nceas.mdqengine.serialize.XmlMarshaller;
 import edu.ucsb.nceas.mdqengine.store.InMemoryStore;
 import edu.ucsb.nceas.mdqengine.store.MDQStore;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.configuration2.ex.ConfigurationException;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
@@ -29,17 +35,24 @@ import net.thisptr.jackson.jq.exception.JsonQueryException;
 import javax.script.ScriptException;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.xpath.XPathExpressionException;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -59,12 +72,64 @@ public class MDQEngine {
 	protected Log log = LogFactory.getLog(this.getClass());
 	private static String metadigDataDir = null;
 
+	/**
+	 * Shared by all engines in this process so that the number of threads running
+	 * checks stays bounded no matter how many engines are created.
+	 */
+	private static CheckExecutor checkExecutor = null;
+
+	/**
+	 * The seconds to wait for DataONE to return the groups of a rightsHolder.
+	 */
+	private static final int GROUP_LOOKUP_TIMEOUT = 30;
+
+	/**
+	 * Compiled suite plans, by suite id. A plan is reused for as long as the suite
+	 * and the checks it references are unchanged.
+	 */
+	private static Map<String, SuitePlan> suitePlans = new ConcurrentHashMap<String, SuitePlan>();
+
 	public MDQEngine() throws MetadigException, IOException, ConfigurationException {
-		store = new InMemoryStore();
+		this(new InMemoryStore());
 		// store = new MNStore();
+	}
+
+	/**
+	 * Create an engine that finds the checks referenced by suites in the given
+	 * store, without loading a store of its own.
+	 *
+	 * @param store the store of suites and checks
+	 */
+	public MDQEngine(MDQStore store) throws MetadigException, IOException, ConfigurationException {
+		this.store = store;
 		MDQconfig cfg = new MDQconfig();
 		metadigDataDir = cfg.getString("metadig.data.dir");
 		MDQCache.initialize(null);
+		initCheckExecutor(cfg);
+		XPathCache.getShared().setMaxSize(cfg.getInt("engine.xpath.cache.size", XPathCache.DEFAULT_MAX_SIZE));
+		XPathCache.getShared().setBackend(
+				XPathBackend.forName(cfg.getString("engine.xpath.backend", XPathBackend.JAXP)));
+	}
+
+	/**
+	 * Create the executor used to run the checks of a suite, if it hasn't been
+	 * created yet. The number of checks run concurrently is set by
+	 * 'engine.parallelism' (default 1, i.e. checks run one after another), and can
+	 * be further limited for each check environment with
+	 * 'engine.parallelism.python', 'engine.parallelism.r' and
+	 * 'engine.parallelism.java'.
+	 *
+	 * @param cfg the metadig configuration
+	 */
+	private static synchronized void initCheckExecutor(MDQconfig cfg) {
+		if (checkExecutor != null) {
+			return;
+		}
+		Map<String, Integer> environmentLimits = new HashMap<>();
+		for (String env : new String[] { "python", "r", "java" }) {
+			environmentLimits.put(env, cfg.getInt("engine.parallelism." + env, 0));
+		}
+		checkExecutor = new CheckExecutor(cfg.getInt("engine.parallelism", 1), environmentLimits);
 	}
 
 	/**
@@ -85,6 +150,65 @@ public class MDQEngine {
 			throws MalformedURLException, IOException, SAXException,
 			ParserConfigurationException, XPathExpressionException, ScriptException,
 			IllegalArgumentException, JsonQueryException {
+		try {
+			return runSuiteDocument(suite, input, params, sysMeta);
+		} finally {
+			releaseInterpreters();
+		}
+	}
+
+	/**
+	 * Executes the given suite for each document of a batch, keeping the compiled
+	 * suite plan, caches and script interpreters warm from one document to the
+	 * next. Each Run is handed to the consumer as soon as it is complete. A
+	 * document that cannot be run is reported as a Run with a failure status, and
+	 * doesn't stop the batch.
+	 *
+	 * @param suite     the suite to run
+	 * @param documents the documents to run the suite on, which are only read as
+	 *                  they are needed
+	 * @param consumer  receives each document with its Run, in the order the
+	 *                  documents are given
+	 * @return the number of documents run
+	 */
+	public int runSuiteBatch(Suite suite, Iterator<RunDocument> documents, BiConsumer<RunDocument, Run> consumer) {
+
+		int count = 0;
+		while (documents.hasNext()) {
+			RunDocument document = documents.next();
+			log.debug("Running suite " + suite.getId() + " for batch document: " + document.getName());
+			Run run;
+			try (InputStream input = document.getInput()) {
+				// the run adds to the params, so don't share them between documents
+				Map<String, Object> params = new HashMap<>();
+				if (document.getParams() != null) {
+					params.putAll(document.getParams());
+				}
+				run = runSuiteDocument(suite, input, params, document.getSystemMetadata());
+			} catch (Exception e) {
+				log.error("Unable to run suite " + suite.getId() + " for document " + document.getName() + ": "
+						+ e.getMessage(), e);
+				run = new Run();
+				run.setId(UUID.randomUUID().toString());
+				run.setSuiteId(suite.getId());
+				run.setTimestamp(Calendar.getInstance().getTime());
+				run.setRunStatus(Run.FAILURE);
+				run.setErrorDescription(e.getMessage());
+			} finally {
+				// each document starts with a clean interpreter
+				releaseInterpreters();
+			}
+			count++;
+			consumer.accept(document, run);
+		}
+		log.debug("Ran suite " + suite.getId() + " for " + count + " documents");
+		return count;
+	}
+
+	private Run runSuiteDocument(Suite suite, InputStream input, Map<String, Object> params, SystemMetadata sysMeta)
+			throws MalformedURLException, IOException, SAXException,
+			ParserConfigurationException, XPathExpressionException, ScriptException,
+			IllegalArgumentException, JsonQueryException {
 
 		// Make the location of the data directory available to checks that need to
 		// read data files located there.
@@ -133,41 +257,16 @@ public class MDQEngine {
 
 		docDialect.setParams(params);
 
-		// run the checks in the suite to get results
-		for (Check check : suite.getCheck()) {
-			// is this a reference to existing check?
-			if (check.getCode() == null && check.getId() != null) {
-				// then load it
-				Check origCheck = check;
-				check = store.getCheck(origCheck.getId());
-
-				// handle missing references gracefully
-				if (check == null) {
-					String msg = "Could not locate referenced check in store: " + origCheck.getId();
-					log.warn(msg);
-					Result r = new Result();
-					r.setCheck(origCheck);
-					r.setStatus(Status.SKIP);
-					r.setOutput(new Output(msg));
-					results.add(r);
-					continue;
-				}
+		// the variables shared by every check, so system metadata is only serialized once
+		docDialect.setRunContext(new RunContext(sysMeta, params, tempDir.toFile().getAbsolutePath()));
 
-				// The check type and level from the suite definition file takes precedence over
-				// the check type
-				// and level defined in the check definition file.
-				if (origCheck.getLevel() != null)
-					check.setLevel(origCheck.getLevel());
-				if (origCheck.getType() != null)
-					check.setType(origCheck.getType());
-			}
-			Result result = docDialect.runCheck(check);
-			results.add(result);
-		}
+		// run the checks in the suite to get results, keeping the suite order
+		SuitePlan plan = getSuitePlan(suite);
+		docDialect.prepare(plan.getChecks());
+		results.addAll(checkExecutor.run(docDialect, plan.getChecks()));
 		run.setResult(results);
 
-		Dispatcher.getDispatcher("python").close();
-
+		log.debug(XPathCache.getShared());
 		log.trace("Run results: " + JsonMarshaller.toJson(run));
 
 		// clean up
@@ -177,6 +276,36 @@ public class MDQEngine {
 
 	}
 
+	/**
+	 * Return the python interpreter used by checks on this thread to the pool,
+	 * where it is reset so that the next document starts with a clean interpreter.
+	 */
+	private void releaseInterpreters() {
+		Dispatcher.releaseDispatchers();
+	}
+
+	/**
+	 * Get the compiled plan for a suite, compiling it if there is no current plan
+	 * for the suite. Only suites loaded by a store (that have a content hash) are
+	 * cached, others are compiled for every run.
+	 *
+	 * @param suite the suite to run
+	 * @return the plan for the suite
+	 */
+	private SuitePlan getSuitePlan(Suite suite) {
+		if (suite.getId() == null || suite.getContentHash() == null) {
+			return SuitePlan.compile(suite, store);
+		}
+		SuitePlan plan = suitePlans.get(suite.getId());
+		if (plan == null || !plan.isCurrent(suite, store)) {
+			plan = SuitePlan.compile(suite, store);
+			suitePlans.put(suite.getId(), plan);
+		} else {
+			log.debug("Reusing compiled plan for suite: " + suite.getId());
+		}
+		return plan;
+	}
+
 	/**
 	 * Executes the given check for a given object
 	 * 
@@ -211,9 +340,13 @@ public class MDQEngine {
 		List<Result> results = new ArrayList<Result>();
 
 		// run the check to get results
-		Result result = xml.runCheck(check);
-		results.add(result);
-		run.setResult(results);
+		try {
+			Result result = xml.runCheck(check);
+			results.add(result);
+			run.setResult(results);
+		} finally {
+			releaseInterpreters();
+		}
 
 		log.trace("Run results: " + JsonMarshaller.toJson(run));
 
@@ -235,6 +368,10 @@ public class MDQEngine {
 		this.store = store;
 	}
 
+	public MDQStore getStore() {
+		return store;
+	}
+
 	/**
 	 * This method retrieves the data pids for a dataset given an identifier and a
 	 * node by communicating with the given nodeId's solr to get a result which
@@ -335,7 +472,18 @@ public class MDQEngine {
 	/**
 	 * Run a suite on a given metadata document. Prints Run XML results.
 	 * 
-	 * @param args first is the suite file path, second is the metadata file path
+	 * The suite can also be run on a batch of documents, printing the Run XML for
+	 * each document as soon as it is complete. The documents are either every file
+	 * in a directory ('--dir'), where the system metadata for 'name.ext' is read
+	 * from 'name.sm', or are listed in a manifest file ('--manifest'), with the
+	 * path of a metadata document and the path of its system metadata on each
+	 * line. Relative paths in a manifest are resolved against the directory of the
+	 * manifest.
+	 * 
+	 * @param args first is the suite file path, second is the metadata file path,
+	 *             optionally followed by the system metadata file path. For a
+	 *             batch, the second is '--dir' or '--manifest', followed by the
+	 *             directory or manifest file path.
 	 * 
 	 */
 	public static void main(String args[]) {
@@ -347,44 +495,34 @@ public class MDQEngine {
 			engine = new MDQEngine();
 			String xml = IOUtils.toString(new FileInputStream(args[0]), "UTF-8");
 			Suite suite = (Suite) XmlMarshaller.fromXml(xml, Suite.class);
+			suite.setContentHash(DigestUtils.md5Hex(xml));
+
+			if (args.length >= 3 && (args[1].equals("--dir") || args[1].equals("--manifest"))) {
+				List<File[]> files = args[1].equals("--dir") ? engine.listDirectory(new File(args[2]))
+						: engine.readManifest(new File(args[2]));
+				engine.runSuiteBatch(suite, engine.new FileDocumentIterator(files), (document, run) -> {
+					try {
+						SystemMetadata sysmeta = document.getSystemMetadata();
+						run.setObjectIdentifier(sysmeta.getIdentifier().getValue());
+						if (run.getRunStatus() == null) {
+							run.setRunStatus("SUCCESS");
+						}
+						run.setSysmeta(getSysmetaModel(sysmeta));
+						System.out.println(XmlMarshaller.toXml(run, true));
+					} catch (Exception e) {
+						engine.log.error("Could not print run for document " + document.getName(), e);
+					}
+				});
+				return;
+			}
+
 			InputStream input = new FileInputStream(args[1]);
-			InputStream sysmetaInputStream = null;
 			SystemMetadata sysmeta = null;
-			Object tmpSysmeta = null;
 
 			// Read in the system metadata XML file if it is provided. Suites can be run
-			// without it. The SystemMetadata can be either version 1 or 2. The current type
-			// marshaller cannot handle version 1, so we have to convert v1 to v2 (seems
-			// like the marshalling call should do this for us). The drawback to this
-			// approach is that it will be necessary to test for sysmeta v3 when it is
-			// released.
+			// without it.
 			if (args.length >= 3) {
-				Class smClasses[] = { org.dataone.service.types.v2.SystemMetadata.class,
-						org.dataone.service.types.v1.SystemMetadata.class };
-				for (Class thisClass : smClasses) {
-					sysmetaInputStream = new FileInputStream(args[2]);
-					try {
-						tmpSysmeta = TypeMarshaller.unmarshalTypeFromStream(thisClass, sysmetaInputStream);
-						// Didn't get an error so proceed to convert to sysmeta v2, if needed.
-						break;
-					} catch (ClassCastException cce) {
-						cce.printStackTrace();
-						continue;
-					} catch (InstantiationException | IllegalAccessException | IOException | MarshallingException fis) {
-						fis.printStackTrace();
-						continue;
-					}
-				}
-
-				if (tmpSysmeta.getClass().getName().equals("org.dataone.service.types.v1.SystemMetadata")) {
-					try {
-						sysmeta = TypeFactory.convertTypeFromType(tmpSysmeta, SystemMetadata.class);
-					} catch (InstantiationException | IllegalAccessException ce) {
-						ce.printStackTrace();
-					}
-				} else {
-					sysmeta = (SystemMetadata) tmpSysmeta;
-				}
+				sysmeta = readSystemMetadata(new File(args[2]));
 			}
 
 			Run run = engine.runSuite(suite, input, params, sysmeta);
@@ -392,53 +530,7 @@ public class MDQEngine {
 
 			// Add DataONE sysmeta, if it was provided.
 			if (sysmeta != null) {
-				SysmetaModel smm = new SysmetaModel();
-				// These sysmeta fields are always provided
-				smm.setOriginMemberNode(sysmeta.getOriginMemberNode().getValue());
-				smm.setRightsHolder(sysmeta.getRightsHolder().getValue());
-				smm.setDateUploaded(sysmeta.getDateUploaded());
-				smm.setFormatId(sysmeta.getFormatId().getValue());
-				// These fields aren't required.
-				if (sysmeta.getObsoletes() != null)
-					smm.setObsoletes(sysmeta.getObsoletes().getValue());
-				if (sysmeta.getObsoletedBy() != null)
-					smm.setObsoletedBy(sysmeta.getObsoletedBy().getValue());
-				if (sysmeta.getSeriesId() != null)
-					smm.setSeriesId(sysmeta.getSeriesId().getValue());
-
-				// Now make the call to DataONE to get the group information for this
-				// rightsHolder.
-				// Only wait for a certain amount of time before we will give up.
-				ExecutorService executorService = Executors.newSingleThreadExecutor();
-
-				// Provide the rightsHolder to the DataONE group lookup.
-				GroupLookupCheck glc = new GroupLookupCheck();
-				glc.setRightsHolder(sysmeta.getRightsHolder().getValue());
-				Future<List<String>> future = executorService.submit(glc);
-
-				List<String> groups = null;
-				for (int i = 0; i < 5; i++) {
-					try {
-						groups = future.get();
-					} catch (Throwable thrown) {
-						System.out.println("Error while waiting for thread completion");
-					}
-					// Sleep for 1 second
-
-					if (groups != null)
-						break;
-					System.out.println("Waiting 1 second for groups");
-					Thread.sleep(1000);
-				}
-
-				if (groups != null) {
-					System.out.println("Setting groups");
-					smm.setGroups(groups);
-				} else {
-					System.out.println("No groups to set");
-				}
-				executorService.shutdown();
-				run.setSysmeta(smm);
+				run.setSysmeta(getSysmetaModel(sysmeta));
 			}
 
 			System.out.println(XmlMarshaller.toXml(run, true));
@@ -454,4 +546,210 @@ public class MDQEngine {
 			}
 		}
 	}
+
+	/**
+	 * Read a system metadata XML file. The SystemMetadata can be either version 1
+	 * or 2. The current type marshaller cannot handle version 1, so we have to
+	 * convert v1 to v2 (seems like the marshalling call should do this for us). The
+	 * drawback to this approach is that it will be necessary to test for sysmeta v3
+	 * when it is released.
+	 * 
+	 * @param file the system metadata file
+	 * @return the system metadata, as version 2
+	 * @throws IOException if the file cannot be read as system metadata
+	 */
+	private static SystemMetadata readSystemMetadata(File file) throws IOException {
+		SystemMetadata sysmeta = null;
+		Object tmpSysmeta = null;
+
+		Class smClasses[] = { org.dataone.service.types.v2.SystemMetadata.class,
+				org.dataone.service.types.v1.SystemMetadata.class };
+		for (Class thisClass : smClasses) {
+			try (InputStream sysmetaInputStream = new FileInputStream(file)) {
+				tmpSysmeta = TypeMarshaller.unmarshalTypeFromStream(thisClass, sysmetaInputStream);
+				// Didn't get an error so proceed to convert to sysmeta v2, if needed.
+				break;
+			} catch (ClassCastException cce) {
+				cce.printStackTrace();
+				continue;
+			} catch (InstantiationException | IllegalAccessException | IOException | MarshallingException fis) {
+				fis.printStackTrace();
+				continue;
+			}
+		}
+		if (tmpSysmeta == null) {
+			throw new IOException("Could not read system metadata from " + file);
+		}
+
+		if (tmpSysmeta.getClass().getName().equals("org.dataone.service.types.v1.SystemMetadata")) {
+			try {
+				sysmeta = TypeFactory.convertTypeFromType(tmpSysmeta, SystemMetadata.class);
+			} catch (InstantiationException | IllegalAccessException ce) {
+				ce.printStackTrace();
+			}
+		} else {
+			sysmeta = (SystemMetadata) tmpSysmeta;
+		}
+		return sysmeta;
+	}
+
+	/**
+	 * Build the sysmeta summary that is saved with a run, including the groups of
+	 * the rightsHolder. The group lookup is given up after GROUP_LOOKUP_TIMEOUT
+	 * seconds, so a slow DataONE doesn't hold up the caller.
+	 * 
+	 * @param sysmeta the system metadata of the document that was run
+	 * @return the sysmeta summary
+	 * @throws InterruptedException
+	 */
+	static SysmetaModel getSysmetaModel(SystemMetadata sysmeta) throws InterruptedException {
+		Log log = LogFactory.getLog(MDQEngine.class);
+		SysmetaModel smm = new SysmetaModel();
+		// These sysmeta fields are always provided
+		smm.setOriginMemberNode(sysmeta.getOriginMemberNode().getValue());
+		smm.setRightsHolder(sysmeta.getRightsHolder().getValue());
+		smm.setDateUploaded(sysmeta.getDateUploaded());
+		smm.setFormatId(sysmeta.getFormatId().getValue());
+		// These fields aren't required.
+		if (sysmeta.getObsoletes() != null)
+			smm.setObsoletes(sysmeta.getObsoletes().getValue());
+		if (sysmeta.getObsoletedBy() != null)
+			smm.setObsoletedBy(sysmeta.getObsoletedBy().getValue());
+		if (sysmeta.getSeriesId() != null)
+			smm.setSeriesId(sysmeta.getSeriesId().getValue());
+
+		// Now make the call to DataONE to get the group information for this
+		// rightsHolder.
+		// Only wait for GROUP_LOOKUP_TIMEOUT seconds before we will give up.
+		ExecutorService executorService = Executors.newSingleThreadExecutor();
+
+		// Provide the rightsHolder to the DataONE group lookup.
+		GroupLookupCheck glc = new GroupLookupCheck();
+		glc.setRightsHolder(sysmeta.getRightsHolder().getValue());
+		Future<List<String>> future = executorService.submit(glc);
+
+		List<String> groups = null;
+		try {
+			groups = future.get(GROUP_LOOKUP_TIMEOUT, TimeUnit.SECONDS);
+		} catch (ExecutionException e) {
+			log.error("Could not look up groups for " + glc.getRightsHolder() + ": " + e.getCause());
+		} catch (TimeoutException e) {
+			log.error("Group lookup for " + glc.getRightsHolder() + " did not finish within "
+					+ GROUP_LOOKUP_TIMEOUT + " seconds");
+			future.cancel(true);
+		} finally {
+			executorService.shutdownNow();
+		}
+
+		if (groups != null) {
+			log.debug("Setting " + groups.size() + " groups for " + glc.getRightsHolder());
+			smm.setGroups(groups);
+		} else {
+			log.debug("No groups to set for " + glc.getRightsHolder());
+		}
+		return smm;
+	}
+
+	/**
+	 * List the metadata documents in a directory, with their system metadata
+	 * files. Documents without a system metadata file are left out.
+	 * 
+	 * @param dir the directory
+	 * @return pairs of metadata and system metadata files, sorted by name
+	 * @throws IOException if the directory cannot be read
+	 */
+	List<File[]> listDirectory(File dir) throws IOException {
+		File[] entries = dir.listFiles();
+		if (entries == null) {
+			throw new IOException("Could not list directory " + dir);
+		}
+		Arrays.sort(entries);
+		List<File[]> files = new ArrayList<>();
+		for (File file : entries) {
+			String name = file.getName();
+			if (!file.isFile() || name.endsWith(".sm")) {
+				continue;
+			}
+			int dot = name.lastIndexOf('.');
+			File sysmetaFile = new File(dir, (dot > 0 ? name.substring(0, dot) : name) + ".sm");
+			if (sysmetaFile.isFile()) {
+				files.add(new File[] { file, sysmetaFile });
+			} else {
+				log.warn("Skipping " + file + ", no system metadata found at " + sysmetaFile);
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Read a manifest listing metadata documents and their system metadata files.
+	 * Each line has the two paths separated by whitespace. Blank lines and lines
+	 * starting with '#' are ignored.
+	 * 
+	 * @param manifest the manifest file
+	 * @return pairs of metadata and system metadata files, in manifest order
+	 * @throws IOException if the manifest cannot be read or a line is invalid
+	 */
+	List<File[]> readManifest(File manifest) throws IOException {
+		File baseDir = manifest.getAbsoluteFile().getParentFile();
+		List<File[]> files = new ArrayList<>();
+		int lineNumber = 0;
+		for (String line : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+			lineNumber++;
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			String[] paths = line.split("\\s+");
+			if (paths.length != 2) {
+				throw new IOException("Invalid manifest line " + lineNumber + " in " + manifest
+						+ ", expected a metadata path and a system metadata path: " + line);
+			}
+			File[] pair = new File[2];
+			for (int i = 0; i < 2; i++) {
+				File file = new File(paths[i]);
+				pair[i] = file.isAbsolute() ? file : new File(baseDir, paths[i]);
+			}
+			files.add(pair);
+		}
+		return files;
+	}
+
+	/**
+	 * Opens the documents of a batch one at a time, as the batch reaches them.
+	 * Documents that cannot be opened are logged and skipped.
+	 */
+	private class FileDocumentIterator implements Iterator<RunDocument> {
+
+		private Iterator<File[]> files;
+		private RunDocument next = null;
+
+		FileDocumentIterator(List<File[]> files) {
+			this.files = files.iterator();
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (next == null && files.hasNext()) {
+				File[] pair = files.next();
+				try {
+					SystemMetadata sysmeta = readSystemMetadata(pair[1]);
+					next = new RunDocument(pair[0].getPath(), new FileInputStream(pair[0]), sysmeta);
+				} catch (IOException e) {
+					log.error("Skipping " + pair[0] + ": " + e.getMessage());
+				}
+			}
+			return next != null;
+		}
+
+		@Override
+		public RunDocument next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			RunDocument document = next;
+			next = null;
+			return document;
+		}
+	}
 }
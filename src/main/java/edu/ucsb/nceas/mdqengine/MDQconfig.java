@@ -3,6 +3,7 @@ package edu.ucsb.nceas.mdqengine;
 import org.apache.commons.configuration2.Configuration;
 import org.apache.commons.configuration2.builder.fluent.Configurations;
 import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.apache.commons.configuration2.ex.ConversionException;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -11,55 +12,244 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
 
+/**
+ * The metadig configuration, read from metadig.properties.
+ *
+ * The file is read once per process, into an immutable snapshot of its values
+ * that is shared by all instances of this class, so creating an instance and
+ * reading a value are cheap. A background thread watches the file and replaces
+ * the snapshot when the file changes. An instance keeps the snapshot that was
+ * current when it was created, so the values read through one instance are
+ * always consistent with each other.
+ */
 public class MDQconfig {
 
     private static String configFilePath = "/opt/local/metadig/metadig.properties";
     private static Log log = LogFactory.getLog(MDQconfig.class);
 
-    public static Configuration config;
+    /** The prefix of the hashstore parameters passed to checks */
+    public static final String STORE_PREFIX = "store.";
+
+    // milliseconds between a change to the file and reading it again
+    private static final long RELOAD_DELAY = 500;
+
+    // the link a kubernetes config map volume switches to a new version of its files
+    private static final Path CONFIG_MAP_DATA = Path.of("..data");
+
+    private static volatile Snapshot current = null;
+    private static WatchService watcher = null;
+
+    private Snapshot snapshot;
 
     public MDQconfig() throws ConfigurationException, IOException {
+        snapshot = current();
+    }
+
+    private static Snapshot current() throws ConfigurationException, IOException {
+        Snapshot snapshot = current;
+        if (snapshot != null && snapshot.path.equals(configFilePath)) {
+            return snapshot;
+        }
+        synchronized (MDQconfig.class) {
+            if (current == null || !current.path.equals(configFilePath)) {
+                current = load(configFilePath);
+                watch(configFilePath);
+            }
+            return current;
+        }
+    }
+
+    private static Snapshot load(String path) throws ConfigurationException, IOException {
         boolean inServlet = false;
 
         // If running in a servlet, have to get the config info from the webapp context,
         // as we can't
         // read from external dirs on disk.
         Configurations configs = new Configurations();
+        Configuration loaded;
         if (inServlet) {
-            InputStream inputStream = this.getClass().getClassLoader().getResourceAsStream("/metadig.properties");
+            InputStream inputStream = MDQconfig.class.getClassLoader().getResourceAsStream("/metadig.properties");
             String TMP_DIR = System.getProperty("java.io.tmpdir");
             File tempFile = new File(TMP_DIR + "/metadig.properties");
             log.trace("Reading config properties in servlet from: " + tempFile);
             FileOutputStream out = new FileOutputStream(tempFile);
             IOUtils.copy(inputStream, out);
-            config = configs.properties(tempFile);
+            loaded = configs.properties(tempFile);
         } else {
-            log.trace("Reading config properties from: " + configFilePath);
-            config = configs.properties(new File(configFilePath));
+            log.trace("Reading config properties from: " + path);
+            loaded = configs.properties(new File(path));
         }
+        return new Snapshot(path, loaded);
+    }
+
+    /**
+     * Read the configuration file again, replacing the values seen by instances
+     * created from now on. This happens automatically when the file changes. If
+     * the file can't be read the current values are kept.
+     */
+    public static void reload() {
+        synchronized (MDQconfig.class) {
+            try {
+                current = load(configFilePath);
+                log.debug("Reloaded config properties from: " + configFilePath);
+            } catch (ConfigurationException | IOException e) {
+                log.warn("Could not reload config properties from " + configFilePath + ", keeping the current values: "
+                        + e.getMessage());
+            }
+        }
+    }
+
+    // watch the directory, as editors and kubernetes config maps replace the file rather than writing to it
+    private static void watch(String path) {
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                log.debug("Could not stop watching the config properties: " + e.getMessage());
+            }
+            watcher = null;
+        }
+        Path dir = new File(path).getAbsoluteFile().getParentFile().toPath();
+        Path fileName = new File(path).toPath().getFileName();
+        WatchService service;
+        try {
+            service = FileSystems.getDefault().newWatchService();
+            dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Could not watch " + dir + " for changes to the config properties: " + e.getMessage());
+            return;
+        }
+        watcher = service;
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    WatchKey key = service.take();
+                    // let the writer finish, so a file that is written in steps is read once, complete
+                    Thread.sleep(RELOAD_DELAY);
+                    boolean changed = false;
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        changed |= isConfigChange(event, fileName);
+                    }
+                    synchronized (MDQconfig.class) {
+                        if (watcher != service) {
+                            return;
+                        }
+                        if (changed) {
+                            reload();
+                        }
+                    }
+                    if (!key.reset()) {
+                        log.warn("Stopped watching " + dir + " for changes to the config properties");
+                        return;
+                    }
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                // no longer watched
+            }
+        }, "mdq-config-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Check if an event in the watched directory may have changed the
+     * configuration file: a change to the file itself, a kubernetes config map
+     * update (which replaces the '..data' link that the file points through), or
+     * lost events.
+     *
+     * @param event    the event
+     * @param fileName the name of the configuration file
+     * @return true if the file should be read again
+     */
+    static boolean isConfigChange(WatchEvent<?> event, Path fileName) {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+            return true;
+        }
+        Object context = event.context();
+        return fileName.equals(context) || CONFIG_MAP_DATA.equals(context);
     }
 
     /**
      * Read a configuration file for a String parameter values.
      */
     public String getString(String paramName) throws ConfigurationException {
-        return (config.getString(paramName));
+        return (snapshot.values.get(paramName));
+    }
+
+    /**
+     * Read a configuration file for a String parameter value, falling back to
+     * the given default if the parameter is not set.
+     */
+    public String getString(String paramName, String defaultValue) {
+        String value = snapshot.values.get(paramName);
+        return (value != null ? value : defaultValue);
     }
 
     /**
      * Read a configuration file for a String parameter values.
      */
     public int getInt(String paramName) throws ConfigurationException {
-        return (config.getInt(paramName));
+        String value = snapshot.values.get(paramName);
+        if (value == null) {
+            throw new NoSuchElementException("Key '" + paramName + "' does not map to an existing object!");
+        }
+        return (parseInt(paramName, value));
+    }
+
+    /**
+     * Read a configuration file for an int parameter value, falling back to the
+     * given default if the parameter is not set.
+     */
+    public int getInt(String paramName, int defaultValue) {
+        String value = snapshot.values.get(paramName);
+        return (value != null ? parseInt(paramName, value) : defaultValue);
+    }
+
+    /**
+     * Read a configuration file for a boolean parameter value, falling back to
+     * the given default if the parameter is not set.
+     */
+    public boolean getBoolean(String paramName, boolean defaultValue) {
+        String value = snapshot.values.get(paramName);
+        return (value != null ? Boolean.parseBoolean(value.trim()) : defaultValue);
+    }
+
+    private static int parseInt(String paramName, String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new ConversionException("Key '" + paramName + "' is not an integer: " + value);
+        }
     }
 
     /**
      * Read a configuration file and return all the keys.
      */
     public Iterator<String> getKeys() {
-        return (config.getKeys());
+        return (snapshot.values.keySet().iterator());
+    }
+
+    /**
+     * Get the 'store.' parameters, without the prefix, as they are passed to
+     * checks in the 'storeConfiguration' variable. Each call returns a new map,
+     * so a check that changes it doesn't change the parameters other checks get.
+     */
+    public Map<String, Object> getStoreConfiguration() {
+        return (new HashMap<>(snapshot.storeConfiguration));
     }
 
     public static String readConfigParam(String paramName) throws ConfigurationException, IOException {
@@ -73,4 +263,31 @@ public class MDQconfig {
         }
         return paramValue;
     }
+
+    /**
+     * The values read from one version of the configuration file.
+     */
+    private static class Snapshot {
+
+        private final String path;
+        private final Map<String, String> values;
+        private final Map<String, Object> storeConfiguration;
+
+        Snapshot(String path, Configuration config) {
+            this.path = path;
+            Map<String, String> values = new LinkedHashMap<>();
+            Map<String, Object> storeConfiguration = new HashMap<>();
+            Iterator<String> keys = config.getKeys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                String value = config.getString(key);
+                values.put(key, value);
+                if (key.startsWith(STORE_PREFIX)) {
+                    storeConfiguration.put(key.substring(STORE_PREFIX.length()), value);
+                }
+            }
+            this.values = Collections.unmodifiableMap(values);
+            this.storeConfiguration = Collections.unmodifiableMap(storeConfiguration);
+        }
+    }
 }
@@ -0,0 +1,183 @@
+package edu.ucsb.nceas.mdqengine;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * A stage of a pipeline: a bounded queue of items, and threads that take the
+ * items from the queue and process them. An item a stage has processed is put
+ * on the queue of the next stage, waiting while that queue is full, so a slow
+ * stage holds back the stages before it instead of letting items pile up.
+ *
+ * @param <T> the type of the items
+ */
+public class PipelineStage<T> {
+
+    public static Log log = LogFactory.getLog(PipelineStage.class);
+
+    /**
+     * The work done by a stage for each item.
+     *
+     * @param <T> the type of the items
+     */
+    public interface Task<T> {
+
+        /**
+         * Process an item.
+         *
+         * @param item the item
+         * @return true to pass the item on to the next stage, false if it needs
+         *         nothing more
+         * @throws Exception if the item can't be processed, it is then dropped
+         */
+        boolean process(T item) throws Exception;
+    }
+
+    private final String name;
+    private final int threadCount;
+    private final Task<T> task;
+    private final BlockingQueue<Queued<T>> queue;
+    private final List<Thread> threads = new ArrayList<Thread>();
+    private PipelineStage<T> next = null;
+
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong processingNanos = new AtomicLong();
+    private final AtomicLong waitingNanos = new AtomicLong();
+    private final LongAccumulator maxProcessingNanos = new LongAccumulator(Math::max, 0);
+
+    /**
+     * An item, with the time it was queued.
+     */
+    private static class Queued<T> {
+        final T item;
+        final long queued;
+
+        Queued(T item) {
+            this.item = item;
+            this.queued = System.nanoTime();
+        }
+    }
+
+    /**
+     * Create a stage. Its threads are started by {@link #start()}.
+     *
+     * @param name     the name of the stage, used for its threads and metrics
+     * @param threads  the number of items processed at the same time
+     * @param capacity the number of items that can wait for a thread
+     * @param task     the work done for each item
+     */
+    public PipelineStage(String name, int threads, int capacity, Task<T> task) {
+        this.name = name;
+        this.threadCount = Math.max(threads, 1);
+        this.task = task;
+        this.queue = new ArrayBlockingQueue<Queued<T>>(Math.max(capacity, 1));
+    }
+
+    /**
+     * Pass the items this stage has processed to another stage.
+     *
+     * @param next the next stage
+     * @return the next stage, so that stages can be chained
+     */
+    public PipelineStage<T> then(PipelineStage<T> next) {
+        this.next = next;
+        return next;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Add an item to the queue of this stage, waiting while the queue is full.
+     *
+     * @param item the item
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public void put(T item) throws InterruptedException {
+        queue.put(new Queued<T>(item));
+    }
+
+    public synchronized void start() {
+        if (!threads.isEmpty()) {
+            return;
+        }
+        for (int i = 1; i <= threadCount; i++) {
+            Thread thread = new Thread(this::work, "mdq-" + name + "-" + i);
+            threads.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stop the threads of this stage. Items still in the queue are not processed.
+     */
+    public synchronized void stop() {
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+        threads.clear();
+    }
+
+    private void work() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Queued<T> queued = queue.take();
+                long start = System.nanoTime();
+                waitingNanos.addAndGet(start - queued.queued);
+                boolean forward = false;
+                try {
+                    forward = task.process(queued.item);
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                    log.error("Stage " + name + " could not process an item: " + e.getMessage(), e);
+                } finally {
+                    long elapsed = System.nanoTime() - start;
+                    processingNanos.addAndGet(elapsed);
+                    maxProcessingNanos.accumulate(elapsed);
+                    processed.incrementAndGet();
+                }
+                if (forward && next != null) {
+                    next.put(queued.item);
+                }
+            }
+        } catch (InterruptedException e) {
+            log.debug("Stage " + name + " stopped");
+        }
+    }
+
+    /**
+     * Get the metrics of this stage: the items processed and failed, the items
+     * waiting in the queue, and the average and longest times in milliseconds
+     * items were processed for and the average time they waited in the queue.
+     *
+     * @return the metrics, by name
+     */
+    public Map<String, Long> getMetrics() {
+        Map<String, Long> metrics = new LinkedHashMap<String, Long>();
+        long count = processed.get();
+        metrics.put("processed", count);
+        metrics.put("failed", failed.get());
+        metrics.put("queued", (long) queue.size());
+        metrics.put("averageMillis", count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(processingNanos.get() / count));
+        metrics.put("maxMillis", TimeUnit.NANOSECONDS.toMillis(maxProcessingNanos.get()));
+        metrics.put("averageWaitMillis", count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(waitingNanos.get() / count));
+        return metrics;
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + getMetrics();
+    }
+}
@@ -0,0 +1,55 @@
+package edu.ucsb.nceas.mdqengine;
+
+import org.dataone.service.types.v2.SystemMetadata;
+
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A metadata document to run a suite on as part of a batch, see
+ * {@link MDQEngine#runSuiteBatch}.
+ */
+public class RunDocument {
+
+    private String name;
+
+    private InputStream input;
+
+    private SystemMetadata systemMetadata;
+
+    private Map<String, Object> params = new HashMap<>();
+
+    /**
+     * @param name           a name for the document used in log messages, e.g. its
+     *                       pid or file name
+     * @param input          the metadata content, which is closed once the suite
+     *                       has been run
+     * @param systemMetadata the system metadata of the document
+     */
+    public RunDocument(String name, InputStream input, SystemMetadata systemMetadata) {
+        this.name = name;
+        this.input = input;
+        this.systemMetadata = systemMetadata;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public InputStream getInput() {
+        return input;
+    }
+
+    public SystemMetadata getSystemMetadata() {
+        return systemMetadata;
+    }
+
+    public Map<String, Object> getParams() {
+        return params;
+    }
+
+    public void setParams(Map<String, Object> params) {
+        this.params = params;
+    }
+}
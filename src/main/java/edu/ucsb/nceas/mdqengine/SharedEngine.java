@@ -0,0 +1,136 @@
+package edu.ucsb.nceas.mdqengine;
+
+import edu.ucsb.nceas.mdqengine.store.InMemoryStore;
+import edu.ucsb.nceas.mdqengine.store.MDQStore;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One store of suites and checks, and one engine using it, shared by every
+ * report a process runs. Loading the store parses and validates every suite and
+ * check file, so it is only done again when the files in the 'suites' or
+ * 'checks' directory under 'metadig.base.directory' change.
+ *
+ * The store is not modified once it is loaded. A reload builds a new store and
+ * engine and then replaces them, so a report that has already got the engine
+ * finishes with the suites it started with.
+ */
+public class SharedEngine {
+
+    public static Log log = LogFactory.getLog(SharedEngine.class);
+
+    public static final int DEFAULT_REFRESH = 60;
+
+    private final File baseDirectory;
+    private volatile MDQEngine engine;
+    private volatile String fingerprint;
+    private ScheduledExecutorService refresher = null;
+
+    /**
+     * Load the store and create the engine.
+     *
+     * @param cfg the metadig configuration
+     * @throws Exception if the store or engine can't be created
+     */
+    public SharedEngine(MDQconfig cfg) throws Exception {
+        String base = cfg.getString("metadig.base.directory");
+        baseDirectory = base != null ? new File(base) : null;
+        fingerprint = fingerprint(baseDirectory);
+        engine = new MDQEngine(new InMemoryStore());
+    }
+
+    /**
+     * Get the current engine. Its store, see {@link MDQEngine#getStore()}, has
+     * the suites and checks that were on disk when it was created.
+     *
+     * @return the engine
+     */
+    public MDQEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Load the store again and replace the engine if the suite or check files
+     * have changed since they were last loaded. The current engine is kept if
+     * the new one can't be created.
+     *
+     * @return true if the engine was replaced
+     */
+    public synchronized boolean refresh() {
+        String current = fingerprint(baseDirectory);
+        if (current.equals(fingerprint)) {
+            return false;
+        }
+        try {
+            MDQStore store = new InMemoryStore();
+            engine = new MDQEngine(store);
+            fingerprint = current;
+            log.info("Reloaded " + store.listSuites().size() + " suites and " + store.listChecks().size()
+                    + " checks from " + baseDirectory);
+            return true;
+        } catch (Exception e) {
+            log.error("Unable to reload suites and checks, using the ones already loaded: " + e.getMessage(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Check the suite and check files for changes every 'seconds' seconds, in the
+     * background.
+     *
+     * @param seconds the seconds between checks, 0 or less to never check
+     */
+    public synchronized void start(int seconds) {
+        if (seconds <= 0 || refresher != null) {
+            return;
+        }
+        refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "mdq-store-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        refresher.scheduleWithFixedDelay(this::refresh, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop checking for changes.
+     */
+    public synchronized void stop() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+            refresher = null;
+        }
+    }
+
+    /**
+     * Describe the suite and check files under a directory by their names, sizes
+     * and modification times, so that a change to any of them changes the result.
+     *
+     * @param baseDirectory the directory with the 'suites' and 'checks' directories
+     * @return the description
+     */
+    static String fingerprint(File baseDirectory) {
+        if (baseDirectory == null) {
+            return "";
+        }
+        List<String> files = new ArrayList<String>();
+        for (String name : new String[] { "suites", "checks" }) {
+            File[] xml = new File(baseDirectory, name).listFiles((dir, file) -> file.endsWith(".xml"));
+            if (xml != null) {
+                for (File file : xml) {
+                    files.add(name + "/" + file.getName() + ":" + file.length() + ":" + file.lastModified());
+                }
+            }
+        }
+        Collections.sort(files);
+        return String.join("\n", files);
+    }
+}
@@ -3,18 +3,16 @@ package edu.ucsb.nceas.mdqengine;
 import com.rabbitmq.client.*;
 import edu.ucsb.nceas.mdqengine.collections.Runs;
 import edu.ucsb.nceas.mdqengine.dispatch.Dispatcher;
+import edu.ucsb.nceas.mdqengine.dispatch.JepInterpreterPool;
+import edu.ucsb.nceas.mdqengine.dispatch.MDQCache;
 import edu.ucsb.nceas.mdqengine.exception.MetadigException;
 import edu.ucsb.nceas.mdqengine.exception.MetadigIndexException;
 import edu.ucsb.nceas.mdqengine.exception.MetadigProcessException;
 import edu.ucsb.nceas.mdqengine.model.Result;
 import edu.ucsb.nceas.mdqengine.model.Run;
 import edu.ucsb.nceas.mdqengine.model.Suite;
-import edu.ucsb.nceas.mdqengine.model.SysmetaModel;
-import edu.ucsb.nceas.mdqengine.processor.GroupLookupCheck;
 import edu.ucsb.nceas.mdqengine.serialize.XmlMarshaller;
 import edu.ucsb.nceas.mdqengine.solr.IndexApplicationController;
-import edu.ucsb.nceas.mdqengine.store.InMemoryStore;
-import edu.ucsb.nceas.mdqengine.store.MDQStore;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.configuration2.ex.ConfigurationException;
 import org.apache.commons.logging.Log;
@@ -35,6 +33,7 @@ import java.math.BigInteger;
 import java.net.InetAddress;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The Worker class contains methods that create quality reports for metadata
@@ -76,18 +75,31 @@ public class Worker {
                                                 // metadig.properties config item in the future if desired.
     private static Boolean indexSequenceId = true;
 
-    private static long startTimeIndexing;
-    private static long startTimeProcessing;
-    private static long elapsedTimeSecondsIndexing;
-    private static long elapsedTimeSecondsProcessing;
-    private static long totalElapsedTimeSeconds;
     private static Integer runLimit; // configurable in metadig.properties, the number of tries to attempt a run
 
+    public static final int DEFAULT_CONCURRENCY = 1;
+    public static final int DEFAULT_QUEUE_SIZE = 2;
+    // The number of suites run at the same time, and the RabbitMQ prefetch count
+    private static int concurrency = DEFAULT_CONCURRENCY;
+    // The stages a report passes through, see startPipeline()
+    private static List<PipelineStage<Report>> stages = new ArrayList<PipelineStage<Report>>();
+    private static AtomicLong reportsCompleted = new AtomicLong();
+    // The number of reports between logging the pipeline metrics
+    private static final int METRICS_INTERVAL = 100;
+    // A RabbitMQ channel must not be used by several threads at the same time
+    private static final Object channelLock = new Object();
+    // The suites, checks and engine shared by every report
+    private static SharedEngine sharedEngine = null;
+
     public static void main(String[] argv) throws Exception {
 
         Worker wkr = new Worker();
         MDQconfig cfg = new MDQconfig();
         Dispatcher.setupJep();
+        // start the python interpreters before the first report
+        JepInterpreterPool.getShared();
+        // start with the resources the scheduler has already fetched
+        importCacheBundle(cfg);
 
         try {
             RabbitMQpassword = System.getenv("RABBITMQ_AUTH");
@@ -96,6 +108,7 @@ public class Worker {
             RabbitMQport = cfg.getInt("RabbitMQ.port");
             indexLatest = Boolean.parseBoolean(cfg.getString("index.latest"));
             runLimit = cfg.getInt("quartz.monitor.run.limit");
+            concurrency = Math.max(cfg.getInt("worker.concurrency", DEFAULT_CONCURRENCY), 1);
         } catch (ConfigurationException cex) {
             log.error("Unable to read configuration");
             MetadigException me = new MetadigException("Unable to read config properties");
@@ -103,6 +116,10 @@ public class Worker {
             throw me;
         }
 
+        // load the suites and checks once, and again only when they change on disk
+        getSharedEngine().start(cfg.getInt("worker.store.refresh", SharedEngine.DEFAULT_REFRESH));
+        startIndexing();
+        startPipeline(cfg);
         wkr.setupQueues();
 
         /*
@@ -116,307 +133,552 @@ public class Worker {
             public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties,
                     byte[] body) throws IOException {
 
-                Runs runsInSequence = new Runs();
-                ByteArrayInputStream bis = new ByteArrayInputStream(body);
-                ObjectInput in = new ObjectInputStream(bis);
-                QueueEntry qEntry = null;
-                // long startTime = System.nanoTime();
-                startTimeProcessing = System.currentTimeMillis();
-                elapsedTimeSecondsIndexing = 0L;
-                elapsedTimeSecondsProcessing = 0L;
-                totalElapsedTimeSeconds = 0L;
-
+                // the message can only be acked on the channel it was delivered on
+                Channel channel;
+                synchronized (channelLock) {
+                    channel = RabbitMQchannel;
+                }
+                // waits while the first stage is full, so the worker only takes the reports it can process
                 try {
-                    qEntry = (QueueEntry) in.readObject();
-                } catch (java.lang.ClassNotFoundException e) {
-                    log.error("Unable to process quality report");
-                    e.printStackTrace();
-                    return;
+                    stages.get(0).put(new Report(channel, envelope, body, this));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    nack(channel, envelope.getDeliveryTag(), true);
                 }
+            }
+        };
 
-                String metadataPid = qEntry.getMetadataPid();
-                String suiteId = qEntry.getQualitySuiteId();
-                // TODO: Moving forward, sysmeta at this point should not be necessary
-                SystemMetadata sysmeta = qEntry.getSystemMetadata();
-                String nodeId = qEntry.getMemberNode();
+        log.info("Calling basicConsume");
+        RabbitMQchannel.basicConsume(QUALITY_QUEUE_NAME, false, consumer);
+    }
 
-                // see if there is an existing run
-                Run run = null;
-                try {
-                    run = Run.getRun(metadataPid, suiteId);
-                } catch (MetadigException me) {
-                    log.info("Unable to get run for pid: " + metadataPid + "suite: " + suiteId);
-                } catch (ConfigurationException ce) {
-                    log.error("Unable to read configuration");
-                    // consume, since a new run will be created below anyway
+    /**
+     * A message from the quality queue, and the state of its report as it passes
+     * through the stages of the pipeline.
+     */
+    private static class Report {
+        final Channel channel;
+        final Envelope envelope;
+        final byte[] body;
+        final Consumer consumer;
+        final Worker wkr = new Worker();
+        final Runs runsInSequence = new Runs();
+        QueueEntry qEntry = null;
+        String metadataPid = null;
+        String suiteId = null;
+        SystemMetadata sysmeta = null;
+        Run run = null;
+        Integer runCount = null;
+        String sequenceId = null;
+        // Fail fast for each of these tasks: create run, save run, index run
+        // If any one of these fails, send an 'ack' back to the controller, try to
+        // return a report query entry (that also contains the exception) and return
+        boolean failFast = false;
+
+        Report(Channel channel, Envelope envelope, byte[] body, Consumer consumer) {
+            this.channel = channel;
+            this.envelope = envelope;
+            this.body = body;
+            this.consumer = consumer;
+        }
+    }
 
-                }
+    /**
+     * The first stage of the pipeline: record the run as processing, ack the
+     * message and run the suite.
+     *
+     * @param report the report
+     * @return false if the report was not run and nothing more is done for it
+     * @throws IOException if the message can't be read, acked or nacked
+     */
+    private static boolean runStage(Report report) throws IOException {
+
+        Envelope envelope = report.envelope;
+        ByteArrayInputStream bis = new ByteArrayInputStream(report.body);
+        ObjectInput in = new ObjectInputStream(bis);
+        QueueEntry qEntry = null;
+        // the timing of this report, the worker may be processing others at the same time
+        long startTimeProcessing = System.currentTimeMillis();
+        long elapsedTimeSecondsProcessing = 0L;
+
+        try {
+            qEntry = (QueueEntry) in.readObject();
+        } catch (java.lang.ClassNotFoundException e) {
+            log.error("Unable to process quality report");
+            e.printStackTrace();
+            // the message can never be read, so don't deliver it again
+            nack(report.channel, envelope.getDeliveryTag(), false);
+            return false;
+        }
+
+        String metadataPid = qEntry.getMetadataPid();
+        String suiteId = qEntry.getQualitySuiteId();
+        // TODO: Moving forward, sysmeta at this point should not be necessary
+        SystemMetadata sysmeta = qEntry.getSystemMetadata();
+        String nodeId = qEntry.getMemberNode();
+
+        // see if there is an existing run
+        Run run = null;
+        try {
+            run = Run.getRun(metadataPid, suiteId);
+        } catch (MetadigException me) {
+            log.info("Unable to get run for pid: " + metadataPid + "suite: " + suiteId);
+        } catch (ConfigurationException ce) {
+            log.error("Unable to read configuration");
+            // consume, since a new run will be created below anyway
+
+        }
+
+        if (run == null) {
+            run = new Run();
+            // if no run exists
+            run.setObjectIdentifier(metadataPid);
+            run.setSuiteId(suiteId);
+            run.setNodeId(nodeId);
+            run.setErrorDescription("");
+            run.setRunCount(0);
+        }
+
+        // set the run_count to count + 1
+        Integer runCount = run.getRunCount() + 1;
+        run.setRunCount(runCount);
+
+        // log and exit if 10 attempts have been made
+        if (run.getRunCount() > runLimit) {
+            log.info("Limit " + runLimit + " attempts hit for pid: " + metadataPid + "and suite: " + suiteId
+                    + " , logging with a FAILED status.");
+            run.setRunStatus(Run.FAILURE);
+            run.setErrorDescription("Run has been attempted " + runLimit + " times, aborting.");
+            try {
+                run.save();
+            } catch (MetadigException me) { // requeue the message if unable to save the status
+                log.error("Unable to save run with status 'failure': " + metadataPid);
+                nack(report.channel, envelope.getDeliveryTag(), true);
+                return false;
+            }
+            // make sure to ack the message even though we aren't attempting the run
+            ack(report.channel, envelope.getDeliveryTag());
+            return false;
+        }
+
+        // set run status and continue otherwise
+        run.setRunStatus(Run.PROCESSING);
+        // update database
+        try {
+            run.save();
+        } catch (MetadigException me) { // requeue the message if unable to save the status
+            log.error("Unable to save run with status 'processing': " + metadataPid);
+            nack(report.channel, envelope.getDeliveryTag(), true);
+            return false;
+        }
+
+        // ack the quality message, unless it has been requeued for another delivery
+        if (!ack(report.channel, envelope.getDeliveryTag())) {
+            return false;
+        }
+
+        long difference;
+        Worker wkr = report.wkr;
+        String runXML = null;
+
+        boolean failFast = false;
 
+        // Create the quality report
+        try {
+            // Set host name so controller can print stats info, referring to this worker.
+            // TODO: Reminder, qEntry will not have system metadata or metadata docs
+            qEntry.setHostname(InetAddress.getLocalHost().getHostName());
+            run = wkr.processReport(qEntry);
+            if (run.getObjectIdentifier() == null) {
+                run.setObjectIdentifier(metadataPid);
+            }
+            runXML = XmlMarshaller.toXml(run, true);
+            qEntry.setRunXML(runXML);
+            difference = System.currentTimeMillis() - startTimeProcessing;
+            elapsedTimeSecondsProcessing = TimeUnit.MILLISECONDS.toSeconds(difference);
+            qEntry.setProcessingElapsedTimeSeconds(elapsedTimeSecondsProcessing);
+            log.debug("Completed running quality suite.");
+        } catch (java.lang.Exception e) {
+            failFast = true;
+            log.error("Unable to run quality suite.");
+            e.printStackTrace();
+            // Store an exception in the queue entry. This will be returned to the
+            // Controller so that it can take the appropriate action, for example, to
+            // resubmit the entry or to log the error in an easily assessible location, or
+            // to notify a user.
+            MetadigException me = new MetadigProcessException("Unable to run quality suite.");
+            me.initCause(e);
+            qEntry.setException(me);
+            // Note: Don't explicitly call 'return' from this routine causes the worker to
+            // silently lose connection to rabbitmq, i.e. the message to the completed
+            // queue doesn't appear to be queued
+
+            // Even though the run didn't complete, save the processing report to
+            // persistent storage, so that we can save the error and status of the run.
+            try {
+                log.debug("Saving quality run status after error");
+                // convert String into InputStream
                 if (run == null) {
                     run = new Run();
-                    // if no run exists
-                    run.setObjectIdentifier(metadataPid);
-                    run.setSuiteId(suiteId);
-                    run.setNodeId(nodeId);
-                    run.setErrorDescription("");
-                    run.setRunCount(0);
                 }
-
-                // set the run_count to count + 1
-                Integer runCount = run.getRunCount() + 1;
+                run.setRunStatus(Run.FAILURE);
+                run.setErrorDescription(e.getMessage());
                 run.setRunCount(runCount);
+                run.save();
+                log.debug("Saved quality run status after error");
+            } catch (MetadigException ex) {
+                log.error("Processing failed, then unable to save the quality report to database:"
+                        + ex.getMessage());
+            }
+        }
+        // if run has been marked as failed elsewhere, don't try to index it
+        if (run.getRunStatus() == Run.FAILURE) {
+            failFast = true;
+            run.setRunCount(runCount);
+            try {
+                run.save();
+            } catch (MetadigException ex) {
+                log.error("Processing failed, then unable to save the quality report to database:"
+                        + ex.getMessage());
+            }
+            log.debug("Saved quality run status after error");
+        }
 
-                // log and exit if 10 attempts have been made
-                if (run.getRunCount() > runLimit) {
-                    log.info("Limit " + runLimit + " attempts hit for pid: " + metadataPid + "and suite: " + suiteId
-                            + " , logging with a FAILED status.");
-                    run.setRunStatus(Run.FAILURE);
-                    run.setErrorDescription("Run has been attempted " + runLimit + " times, aborting.");
-                    try {
-                        run.save();
-                    } catch (MetadigException me) { // requeue the message if unable to save the status
-                        log.error("Unable to save run with status 'failure': " + metadataPid);
-                        RabbitMQchannel.basicNack(envelope.getDeliveryTag(), false, true);
-                    }
-                    // make sure to ack the message even though we aren't attempting the run
-                    RabbitMQchannel.basicAck(envelope.getDeliveryTag(), false);
-                    return;
-                }
+        report.qEntry = qEntry;
+        report.metadataPid = metadataPid;
+        report.suiteId = suiteId;
+        report.sysmeta = sysmeta;
+        report.run = run;
+        report.runCount = runCount;
+        report.failFast = failFast;
+        return true;
+    }
 
-                // set run status and continue otherwise
-                run.setRunStatus(Run.PROCESSING);
-                // update database
-                try {
-                    run.save();
-                } catch (MetadigException me) { // requeue the message if unable to save the status
-                    log.error("Unable to save run with status 'processing': " + metadataPid);
-                    RabbitMQchannel.basicNack(envelope.getDeliveryTag(), false, true);
+    /**
+     * Save the run, and the sequence id of the runs for the obsolescence chain of
+     * the metadata document, unless an earlier stage failed.
+     *
+     * @param report the report
+     * @return true, the report is always returned to the controller
+     */
+    private static boolean saveStage(Report report) {
+
+        if (report.failFast) {
+            return true;
+        }
+        QueueEntry qEntry = report.qEntry;
+        String metadataPid = report.metadataPid;
+        String suiteId = report.suiteId;
+        Run run = report.run;
+        Integer runCount = report.runCount;
+        Runs runsInSequence = report.runsInSequence;
+        boolean failFast = false;
+
+        String sequenceId = null;
+        /* Save the processing report to persistent storage */
+        try {
+            // Determine the sequence identifier for the metadata pids DataONE obsolescence
+            // chain. This is not the DataONE seriesId, which may not exist for a pid, but
+            // instead is a quality engine maintained sequence id, that is needed to
+            // determine the highest score for a obs. chain for each month.
+            log.debug("Searching for sequence id for pid: " + run.getObjectIdentifier());
+            // Add current run to collection, it will be saved during the run.update
+            run.setObjectIdentifier(metadataPid);
+            run.setRunStatus(Run.SUCCESS);
+            run.setErrorDescription("");
+            // Should a 'sequenceId' and 'isLatest' be added to the Solr index?
+            if (indexSequenceId) {
+                // Add the current run to the collection, as a starting point for the sequence
+                // id search
+                runsInSequence.addRun(run.getObjectIdentifier(), run);
+
+                // Traverse through the collection, stopping if the sequenceId is found. If the
+                // sequenceId is already found, then all pids in the chain that are stored
+                // should already have this sequenceId Boolean stopWhenSIfound = true;
+                Boolean stopWhenSIfound = false;
+                runsInSequence.getRunSequence(run, suiteId, stopWhenSIfound);
+                sequenceId = runsInSequence.getSequenceId();
+                // Ok, a sequence id wasn't set for these runs (if any), so generate a new one
+                // Only assign a new pid if the first pid in the sequence is found, so that we
+                // don't have multiple segments of a chain with different sequenceIds.
+                if (sequenceId == null && runsInSequence.getFoundFirstPid()) {
+                    sequenceId = runsInSequence.getFirstPidInSequence();
+                    runsInSequence.setSequenceId(sequenceId);
+                    log.debug("Setting sequenceId to first pid in sequence: " + sequenceId);
+                } else {
+                    log.debug("Using found sequenceId: " + sequenceId);
                 }
 
-                // ack the quality message
-                RabbitMQchannel.basicAck(envelope.getDeliveryTag(), false);
+                run.setSequenceId(sequenceId);
+                run.setRunCount(runCount);
+            }
 
-                long difference;
-                Worker wkr = new Worker();
-                String runXML = null;
+            run.save();
 
-                // Fail fast for each of these tasks: create run, save run, index run
-                // If any one of these fails, send an 'ack' back to the controller, try to
-                // return a report query entry (that also contains the exception) and return
-                boolean failFast = false;
+            // Update runs in persist storage with sequenceId for this obsolescence chain
+            if (indexSequenceId && sequenceId != null) {
+                log.debug("Updating sequenceId to " + sequenceId);
+                // sequenceId = runsInSequence.getSequenceId();
+                runsInSequence.updateSequenceId(sequenceId);
+                runsInSequence.update();
+            }
+        } catch (MetadigException me) {
+            // Store an exception in the queue entry. This will be returned to the
+            // Controller so that it can take the appropriate action, for example, to
+            // resubmit the entry or to log the error in an easily assessible location, or
+            // to notify a user.
+            failFast = true;
+            log.error("Unable to save (then index) quality report to database.");
+            qEntry.setException(me);
+        }
 
-                // Create the quality report
-                try {
-                    // Set host name so controller can print stats info, referring to this worker.
-                    // TODO: Reminder, qEntry will not have system metadata or metadata docs
-                    qEntry.setHostname(InetAddress.getLocalHost().getHostName());
-                    run = wkr.processReport(qEntry);
-                    if (run.getObjectIdentifier() == null) {
-                        run.setObjectIdentifier(metadataPid);
-                    }
-                    runXML = XmlMarshaller.toXml(run, true);
-                    qEntry.setRunXML(runXML);
-                    difference = System.currentTimeMillis() - startTimeProcessing;
-                    elapsedTimeSecondsProcessing = TimeUnit.MILLISECONDS.toSeconds(difference);
-                    qEntry.setProcessingElapsedTimeSeconds(elapsedTimeSecondsProcessing);
-                    log.debug("Completed running quality suite.");
-                } catch (java.lang.Exception e) {
-                    failFast = true;
-                    log.error("Unable to run quality suite.");
-                    e.printStackTrace();
-                    // Store an exception in the queue entry. This will be returned to the
-                    // Controller so that it can take the appropriate action, for example, to
-                    // resubmit the entry or to log the error in an easily assessible location, or
-                    // to notify a user.
-                    MetadigException me = new MetadigProcessException("Unable to run quality suite.");
-                    me.initCause(e);
-                    qEntry.setException(me);
-                    // Note: Don't explicitly call 'return' from this routine causes the worker to
-                    // silently lose connection to rabbitmq, i.e. the message to the completed
-                    // queue doesn't appear to be queued
-
-                    // Even though the run didn't complete, save the processing report to
-                    // persistent storage, so that we can save the error and status of the run.
+        report.sequenceId = sequenceId;
+        report.failFast = failFast;
+        return true;
+    }
+
+    /**
+     * Add the run to the Solr index and update the runs of the obsolescence chain,
+     * unless an earlier stage failed.
+     *
+     * @param report the report
+     * @return true, the report is always returned to the controller
+     */
+    private static boolean indexStage(Report report) {
+
+        if (report.failFast) {
+            return true;
+        }
+        QueueEntry qEntry = report.qEntry;
+        String metadataPid = report.metadataPid;
+        String suiteId = report.suiteId;
+        SystemMetadata sysmeta = report.sysmeta;
+        Run run = report.run;
+        String sequenceId = report.sequenceId;
+        Runs runsInSequence = report.runsInSequence;
+        Worker wkr = report.wkr;
+        String runXML = null;
+        long difference;
+        long elapsedTimeSecondsIndexing = 0L;
+
+        /*
+         * Once the quality report has been created and saved to persistent storage,
+         * it can be added to the Solr index
+         */
+        log.debug("Indexing report");
+        try {
+            long startTimeIndexing = System.currentTimeMillis();
+            runXML = XmlMarshaller.toXml(run, true);
+            // log.trace("report: " + runXML);
+            // For now, use fallback solr location, which will be selected by the indexer
+            // if null is passed in.
+            String solrLocation = null;
+            log.debug("calling indexReport");
+            // TODO: Determine which system metadata values are required to index
+            wkr.indexReport(metadataPid, runXML, suiteId, sysmeta, solrLocation);
+
+            // Update any runs in this sequence that have been modified, either set as
+            // latest in sequence
+            // or unset as latest in sequence.
+            if (indexLatest) {
+                // Put files to be updated in a HashMap (can update multiple fields)
+                HashMap<String, Object> fields = new HashMap<>();
+                for (Run r : runsInSequence.getModifiedRuns()) {
+                    log.debug("Updating Solr index with modified run with pid: " + r.getObjectIdentifier()
+                            + ", isLatest: " + r.getIsLatest().toString() + ", dateUploaded: "
+                            + r.getDateUploaded());
+                    fields.put("isLatest", r.getIsLatest());
                     try {
-                        log.debug("Saving quality run status after error");
-                        // convert String into InputStream
-                        if (run == null) {
-                            run = new Run();
+                        wkr.updateIndex(r.getObjectIdentifier(), r.getSuiteId(), fields, solrLocation);
+                    } catch (MetadigIndexException mie) {
+                        // Retry the update if the first attemp fails
+                        log.debug("Retrying updating Solr index with modified run with pid: "
+                                + r.getObjectIdentifier() + ", isLatest: " + r.getIsLatest().toString()
+                                + ", dateUploaded: " + r.getDateUploaded());
+                        try {
+                            wkr.updateIndex(r.getObjectIdentifier(), r.getSuiteId(), fields, solrLocation);
+                            log.debug("Successfully updated Solr index with modified run with pid: "
+                                    + r.getObjectIdentifier() + ", isLatest: " + r.getIsLatest().toString()
+                                    + ", dateUploaded: " + r.getDateUploaded());
+                        } catch (Exception mie2) {
+                            log.error("Failed 2nd attempt to update Solr index with modified run with pid: "
+                                    + r.getObjectIdentifier() + ", isLatest: " + r.getIsLatest().toString()
+                                    + ", dateUploaded: " + r.getDateUploaded());
                         }
-                        run.setRunStatus(Run.FAILURE);
-                        run.setErrorDescription(e.getMessage());
-                        run.setRunCount(runCount);
-                        run.save();
-                        log.debug("Saved quality run status after error");
-                    } catch (MetadigException ex) {
-                        log.error("Processing failed, then unable to save the quality report to database:"
-                                + ex.getMessage());
                     }
                 }
-                // if run has been marked as failed elsewhere, don't try to index it
-                if (run.getRunStatus() == Run.FAILURE) {
-                    failFast = true;
-                    run.setRunCount(runCount);
-                    try {
-                        run.save();
-                    } catch (MetadigException ex) {
-                        log.error("Processing failed, then unable to save the quality report to database:"
-                                + ex.getMessage());
-                    }
-                    log.debug("Saved quality run status after error");
+            }
+
+            // Now update one or more runs in the Solr index with the sequenceId
+            if (indexSequenceId && sequenceId != null) {
+                // Put files to be updated in a HashMap (can update multiple fields)
+                HashMap<String, Object> fields = new HashMap<>();
+                fields.put("sequenceId", sequenceId);
+                for (Run r : runsInSequence.getModifiedRuns()) {
+                    log.debug("Updating Solr index with sequenceId: " + sequenceId + " for pid: "
+                            + r.getObjectIdentifier());
+                    wkr.updateIndex(r.getObjectIdentifier(), r.getSuiteId(), fields, solrLocation);
                 }
+            }
 
-                String sequenceId = null;
-                /* Save the processing report to persistent storage */
-                if (!failFast)
-                    try {
-                        // Determine the sequence identifier for the metadata pids DataONE obsolescence
-                        // chain. This is not the DataONE seriesId, which may not exist for a pid, but
-                        // instead is a quality engine maintained sequence id, that is needed to
-                        // determine the highest score for a obs. chain for each month.
-                        log.debug("Searching for sequence id for pid: " + run.getObjectIdentifier());
-                        // Add current run to collection, it will be saved during the run.update
-                        run.setObjectIdentifier(metadataPid);
-                        run.setRunStatus(Run.SUCCESS);
-                        run.setErrorDescription("");
-                        // Should a 'sequenceId' and 'isLatest' be added to the Solr index?
-                        if (indexSequenceId) {
-                            // Add the current run to the collection, as a starting point for the sequence
-                            // id search
-                            runsInSequence.addRun(run.getObjectIdentifier(), run);
-
-                            // Traverse through the collection, stopping if the sequenceId is found. If the
-                            // sequenceId is already found, then all pids in the chain that are stored
-                            // should already have this sequenceId Boolean stopWhenSIfound = true;
-                            Boolean stopWhenSIfound = false;
-                            runsInSequence.getRunSequence(run, suiteId, stopWhenSIfound);
-                            sequenceId = runsInSequence.getSequenceId();
-                            // Ok, a sequence id wasn't set for these runs (if any), so generate a new one
-                            // Only assign a new pid if the first pid in the sequence is found, so that we
-                            // don't have multiple segments of a chain with different sequenceIds.
-                            if (sequenceId == null && runsInSequence.getFoundFirstPid()) {
-                                sequenceId = runsInSequence.getFirstPidInSequence();
-                                runsInSequence.setSequenceId(sequenceId);
-                                log.debug("Setting sequenceId to first pid in sequence: " + sequenceId);
-                            } else {
-                                log.debug("Using found sequenceId: " + sequenceId);
-                            }
-
-                            run.setSequenceId(sequenceId);
-                            run.setRunCount(runCount);
-                        }
+            difference = System.currentTimeMillis() - startTimeIndexing;
+            elapsedTimeSecondsIndexing = TimeUnit.MILLISECONDS.toSeconds(difference);
+            qEntry.setIndexingElapsedTimeSeconds(elapsedTimeSecondsIndexing);
+        } catch (Exception e) {
+            log.error("Unable to index quality report..");
+            e.printStackTrace();
+            MetadigException me = new MetadigIndexException("Unable index the generated quality report.");
+            me.initCause(e);
+            qEntry.setException(me);
+        }
 
-                        run.save();
+        return true;
+    }
 
-                        // Update runs in persist storage with sequenceId for this obsolescence chain
-                        if (indexSequenceId && sequenceId != null) {
-                            log.debug("Updating sequenceId to " + sequenceId);
-                            // sequenceId = runsInSequence.getSequenceId();
-                            runsInSequence.updateSequenceId(sequenceId);
-                            runsInSequence.update();
-                        }
-                    } catch (MetadigException me) {
-                        // Store an exception in the queue entry. This will be returned to the
-                        // Controller so that it can take the appropriate action, for example, to
-                        // resubmit the entry or to log the error in an easily assessible location, or
-                        // to notify a user.
-                        failFast = true;
-                        log.error("Unable to save (then index) quality report to database.");
-                        qEntry.setException(me);
-                    }
+    /**
+     * Return the report to the controller, with the errors that were encountered.
+     *
+     * @param report the report
+     * @return false, this is the last stage
+     */
+    private static boolean replyStage(Report report) {
 
-                /*
-                 * Once the quality report has been created and saved to persistent storage,
-                 * it can be added to the Solr index
-                 */
-                if (!failFast) {
-                    log.debug("Indexing report");
-                    try {
-                        startTimeIndexing = System.currentTimeMillis();
-                        runXML = XmlMarshaller.toXml(run, true);
-                        // log.trace("report: " + runXML);
-                        // For now, use fallback solr location, which will be selected by the indexer
-                        // if null is passed in.
-                        String solrLocation = null;
-                        log.debug("calling indexReport");
-                        // TODO: Determine which system metadata values are required to index
-                        wkr.indexReport(metadataPid, runXML, suiteId, sysmeta, solrLocation);
-
-                        // Update any runs in this sequence that have been modified, either set as
-                        // latest in sequence
-                        // or unset as latest in sequence.
-                        if (indexLatest) {
-                            // Put files to be updated in a HashMap (can update multiple fields)
-                            HashMap<String, Object> fields = new HashMap<>();
-                            for (Run r : runsInSequence.getModifiedRuns()) {
-                                log.debug("Updating Solr index with modified run with pid: " + r.getObjectIdentifier()
-                                        + ", isLatest: " + r.getIsLatest().toString() + ", dateUploaded: "
-                                        + r.getDateUploaded());
-                                fields.put("isLatest", r.getIsLatest());
-                                try {
-                                    wkr.updateIndex(r.getObjectIdentifier(), r.getSuiteId(), fields, solrLocation);
-                                } catch (MetadigIndexException mie) {
-                                    // Retry the update if the first attemp fails
-                                    log.debug("Retrying updating Solr index with modified run with pid: "
-                                            + r.getObjectIdentifier() + ", isLatest: " + r.getIsLatest().toString()
-                                            + ", dateUploaded: " + r.getDateUploaded());
-                                    try {
-                                        wkr.updateIndex(r.getObjectIdentifier(), r.getSuiteId(), fields, solrLocation);
-                                        log.debug("Successfully updated Solr index with modified run with pid: "
-                                                + r.getObjectIdentifier() + ", isLatest: " + r.getIsLatest().toString()
-                                                + ", dateUploaded: " + r.getDateUploaded());
-                                    } catch (Exception mie2) {
-                                        log.error("Failed 2nd attempt to update Solr index with modified run with pid: "
-                                                + r.getObjectIdentifier() + ", isLatest: " + r.getIsLatest().toString()
-                                                + ", dateUploaded: " + r.getDateUploaded());
-                                    }
-                                }
-                            }
-                        }
+        QueueEntry qEntry = report.qEntry;
 
-                        // Now update one or more runs in the Solr index with the sequenceId
-                        if (indexSequenceId && sequenceId != null) {
-                            // Put files to be updated in a HashMap (can update multiple fields)
-                            HashMap<String, Object> fields = new HashMap<>();
-                            fields.put("sequenceId", sequenceId);
-                            for (Run r : runsInSequence.getModifiedRuns()) {
-                                log.debug("Updating Solr index with sequenceId: " + sequenceId + " for pid: "
-                                        + r.getObjectIdentifier());
-                                wkr.updateIndex(r.getObjectIdentifier(), r.getSuiteId(), fields, solrLocation);
-                            }
-                        }
+        // Send the report (completed or not) to the controller, with errors that were
+        // encountered.
+        try {
+            log.debug("Sending report info back to controller...");
+            long totalElapsedTimeSeconds = qEntry.getProcessingElapsedTimeSeconds()
+                    + qEntry.getIndexingElapsedTimeSeconds();
+            qEntry.setTotalElapsedTimeSeconds(totalElapsedTimeSeconds);
+            report.wkr.returnReport(report.metadataPid, report.suiteId, qEntry, report.envelope, report.consumer);
+            log.debug("Sent report info back to controller...");
+        } catch (IOException ioe) {
+            log.error("Unable to return quality report to controller.");
+            ioe.printStackTrace();
+        }
 
-                        difference = System.currentTimeMillis() - startTimeIndexing;
-                        elapsedTimeSecondsIndexing = TimeUnit.MILLISECONDS.toSeconds(difference);
-                        qEntry.setIndexingElapsedTimeSeconds(elapsedTimeSecondsIndexing);
-                    } catch (Exception e) {
-                        log.error("Unable to index quality report..");
-                        e.printStackTrace();
-                        MetadigException me = new MetadigIndexException("Unable index the generated quality report.");
-                        me.initCause(e);
-                        qEntry.setException(me);
-                    }
-                }
+        log.debug("Worker completed task");
+        if (reportsCompleted.incrementAndGet() % METRICS_INTERVAL == 0) {
+            log.info("Report pipeline after " + reportsCompleted.get() + " reports: " + stages);
+        }
+        return false;
+    }
 
-                // Send the report (completed or not) to the controller, with errors that were
-                // encountered.
-                try {
-                    log.debug("Sending report info back to controller...");
-                    totalElapsedTimeSeconds = elapsedTimeSecondsProcessing + elapsedTimeSecondsIndexing;
-                    qEntry.setTotalElapsedTimeSeconds(totalElapsedTimeSeconds);
-                    wkr.returnReport(metadataPid, suiteId, qEntry, envelope, this);
-                    log.debug("Sent report info back to controller...");
-                } catch (IOException ioe) {
-                    log.error("Unable to return quality report to controller.");
-                    ioe.printStackTrace();
-                }
+    /**
+     * Create and start the stages of the report pipeline. Each stage has its own
+     * threads, and a queue of 'worker.pipeline.queue.size' reports (default 2),
+     * so the suite of the next report runs while the previous ones are saved and
+     * indexed:
+     * <ul>
+     * <li>run: saves the run as processing, acks the message and runs the suite,
+     * with 'worker.concurrency' threads (default 1)</li>
+     * <li>save: saves the run and the sequence id of its obsolescence chain, with
+     * 'worker.save.threads' threads (default 1)</li>
+     * <li>index: indexes the run and updates the isLatest and sequenceId of the
+     * chain in Solr, with 'worker.index.threads' threads (default 1)</li>
+     * <li>reply: returns the report to the controller, with one thread</li>
+     * </ul>
+     * A report that fails in one stage skips the save and index stages and is
+     * returned to the controller with the exception, as before.
+     *
+     * @param cfg the metadig configuration
+     */
+    private static void startPipeline(MDQconfig cfg) {
+        int queueSize = cfg.getInt("worker.pipeline.queue.size", DEFAULT_QUEUE_SIZE);
+        PipelineStage<Report> run = new PipelineStage<Report>("run", concurrency, queueSize, Worker::runStage);
+        PipelineStage<Report> save = new PipelineStage<Report>("save", cfg.getInt("worker.save.threads", 1),
+                queueSize, Worker::saveStage);
+        PipelineStage<Report> index = new PipelineStage<Report>("index", cfg.getInt("worker.index.threads", 1),
+                queueSize, Worker::indexStage);
+        PipelineStage<Report> reply = new PipelineStage<Report>("reply", 1, queueSize, Worker::replyStage);
+        run.then(save).then(index).then(reply);
+        stages = Arrays.asList(run, save, index, reply);
+        for (PipelineStage<Report> stage : stages) {
+            stage.start();
+        }
+        log.info("Running up to " + concurrency + " suites at the same time");
+    }
 
-                log.debug("Worker completed task");
+    /**
+     * Start the Spring context and Solr client used to index every report, so the
+     * first report doesn't wait for them. If they can't be started now, the first
+     * report that is indexed tries again.
+     */
+    private static void startIndexing() {
+        try {
+            IndexApplicationController.getShared(springConfigFileURL, null);
+        } catch (Exception e) {
+            log.error("Unable to start the Solr indexing service: " + e.getMessage());
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(IndexApplicationController::shutdownShared));
+    }
+
+    /*
+     * Ack or nack a message on the channel it was delivered on. If that channel has
+     * been closed, e.g. replaced after a connection error, the broker has already
+     * requeued the message and a delivery tag of the old channel would make it
+     * close the new one, so nothing is sent.
+     */
+    private static boolean ack(Channel channel, long deliveryTag) throws IOException {
+        synchronized (channelLock) {
+            if (channel.isOpen()) {
+                channel.basicAck(deliveryTag, false);
+                return true;
             }
-        };
+            log.warn("Not acking message " + deliveryTag + ", the channel it was delivered on is closed");
+            return false;
+        }
+    }
 
-        log.info("Calling basicConsume");
-        RabbitMQchannel.basicConsume(QUALITY_QUEUE_NAME, false, consumer);
+    private static void nack(Channel channel, long deliveryTag, boolean requeue) throws IOException {
+        synchronized (channelLock) {
+            if (channel.isOpen()) {
+                channel.basicNack(deliveryTag, false, requeue);
+            } else {
+                log.warn("Not nacking message " + deliveryTag + ", the channel it was delivered on is closed");
+            }
+        }
+    }
+
+    /**
+     * Get the engine shared by every report, loading the suites and checks the
+     * first time it is used.
+     *
+     * @return the shared engine
+     * @throws Exception if the suites and checks can't be loaded
+     */
+    private static synchronized SharedEngine getSharedEngine() throws Exception {
+        if (sharedEngine == null) {
+            sharedEngine = new SharedEngine(new MDQconfig());
+        }
+        return sharedEngine;
+    }
+
+    /**
+     * Import the cache bundle written by the scheduler, if 'cache.bundle' is set
+     * and the bundle exists, so the first reports don't have to fetch the web
+     * resources that checks use. The worker starts with an empty cache if the
+     * bundle can't be read.
+     *
+     * @param cfg the metadig configuration
+     */
+    private static void importCacheBundle(MDQconfig cfg) {
+        String bundlePath = cfg.getString("cache.bundle", null);
+        if (bundlePath == null || bundlePath.trim().isEmpty()) {
+            return;
+        }
+        File bundle = new File(bundlePath.trim());
+        if (!bundle.exists()) {
+            log.info("Cache bundle " + bundle + " not found, starting with an empty cache");
+            return;
+        }
+        try {
+            MDQCache.importBundle(bundle);
+        } catch (IOException e) {
+            log.error("Unable to import cache bundle " + bundle + ": " + e.getMessage());
+        }
     }
 
     /**
@@ -434,19 +696,19 @@ public class Worker {
         byte[] message = null;
         try {
             log.info("Elapsed time processing (seconds): "
-                    + String.format("%d", elapsedTimeSecondsProcessing)
+                    + String.format("%d", qEntry.getProcessingElapsedTimeSeconds())
                     + " for metadataPid: " + metadataPid
                     + ", suiteId: " + suiteId
                     + "\n");
 
             log.info("Elapsed time indexing (seconds): "
-                    + String.format("%d", elapsedTimeSecondsIndexing)
+                    + String.format("%d", qEntry.getIndexingElapsedTimeSeconds())
                     + " for metadataPid: " + metadataPid
                     + ", suiteId: " + suiteId
                     + "\n");
 
             log.info("Total elapsed time (seconds): "
-                    + String.format("%d", totalElapsedTimeSeconds)
+                    + String.format("%d", qEntry.getTotalElapsedTimeSeconds())
                     + " for metadataPid: " + metadataPid
                     + ", suiteId: " + suiteId
                     + "\n");
@@ -463,16 +725,21 @@ public class Worker {
             } catch (AlreadyClosedException rmqe) {
                 log.error("RabbitMQ connection error: " + rmqe.getMessage());
                 try {
-                    log.info("Resetting RabbitMQ queues and resending completed report...");
-                    // destroy channel before setting up queues again
-                    RabbitMQconnection.close();
-                    // setup queues
-                    this.setupQueues();
+                    synchronized (channelLock) {
+                        // another report thread may have reconnected already
+                        if (!RabbitMQchannel.isOpen()) {
+                            log.info("Resetting RabbitMQ queues and resending completed report...");
+                            // destroy channel before setting up queues again
+                            RabbitMQconnection.close();
+                            // setup queues
+                            this.setupQueues();
+                            // Tell RabbitMQ this worker is ready for tasks
+                            log.info("Calling basicConsume");
+                            RabbitMQchannel.basicConsume(QUALITY_QUEUE_NAME, false, consumer);
+                        }
+                    }
                     this.writeCompletedQueue(message);
                     log.info(" [x] Sent completed report for pid: '" + qEntry.getMetadataPid() + "'");
-                    // Tell RabbitMQ this worker is ready for tasks
-                    log.info("Calling basicConsume");
-                    RabbitMQchannel.basicConsume(QUALITY_QUEUE_NAME, false, consumer);
                 } catch (Exception e) {
                     log.error("Error re-establishing connection to RabbitMQ server: " + e.getMessage());
                     log.error("Unable to resend report back to controller.");
@@ -520,9 +787,8 @@ public class Worker {
 
             RabbitMQchannel.queueDeclare(QUALITY_QUEUE_NAME, durable, false, false, null);
             RabbitMQchannel.queueBind(QUALITY_QUEUE_NAME, EXCHANGE_NAME, QUALITY_ROUTING_KEY);
-            // Channel will only send one request for each worker at a time.
-
-            RabbitMQchannel.basicQos(1);
+            // Channel will only send as many requests as the worker can process at a time.
+            RabbitMQchannel.basicQos(concurrency);
             log.info("Connected to RabbitMQ queue " + QUALITY_QUEUE_NAME);
             log.info("Waiting for messages. To exit press CTRL+C");
         } catch (Exception e) {
@@ -567,14 +833,12 @@ public class Worker {
         // Run the Metadata Quality Engine for the specified metadata object.
         // TODO: Review how suite params are set and possibly refactor
         Map<String, Object> params = new HashMap<String, Object>();
-        // To run the suite, we need the in memory store, that contains all checks and
-        // suites.
-        MDQStore store = new InMemoryStore();
 
         Run run = null;
         try {
-            MDQEngine engine = new MDQEngine();
-            Suite suite = store.getSuite(suiteId);
+            // To run the suite, we need the store that contains all checks and suites.
+            MDQEngine engine = getSharedEngine().getEngine();
+            Suite suite = engine.getStore().getSuite(suiteId);
             run = engine.runSuite(suite, input, params, sysmeta);
             List<Result> results = run.getResult();
         } catch (Exception e) {
@@ -589,45 +853,8 @@ public class Worker {
         // qEntry
         // Add DataONE sysmeta, if it was provided.
         if (sysmeta != null) {
-            SysmetaModel smm = new SysmetaModel();
-            // These sysmeta fields are always provided
-            smm.setOriginMemberNode(sysmeta.getOriginMemberNode().getValue());
-            smm.setRightsHolder(sysmeta.getRightsHolder().getValue());
-            smm.setDateUploaded(sysmeta.getDateUploaded());
-            smm.setFormatId(sysmeta.getFormatId().getValue());
-            // These fields aren't required.
-            if (sysmeta.getObsoletes() != null)
-                smm.setObsoletes(sysmeta.getObsoletes().getValue());
-            if (sysmeta.getObsoletedBy() != null)
-                smm.setObsoletedBy(sysmeta.getObsoletedBy().getValue());
-            if (sysmeta.getSeriesId() != null)
-                smm.setSeriesId(sysmeta.getSeriesId().getValue());
-
-            // Now make the call to DataONE to get the group information for this
-            // rightsHolder.
-            // Only wait for a certain amount of time before we will give up.
-            ExecutorService executorService = Executors.newSingleThreadExecutor();
-
-            // Provide the rightsHolder to the DataONE group lookup.
-            GroupLookupCheck glc = new GroupLookupCheck();
-            glc.setRightsHolder(sysmeta.getRightsHolder().getValue());
-            Future<List<String>> future = executorService.submit(glc);
-
-            List<String> groups = new ArrayList<String>();
-            try {
-                groups = future.get();
-            } catch (Throwable thrown) {
-                log.error("Error while waiting for group lookup thread completion");
-            }
-
-            if (groups != null) {
-                smm.setGroups(groups);
-            } else {
-                log.debug("No groups to set");
-            }
-            executorService.shutdown();
-
-            run.setSysmeta(smm);
+            // the same summary as a run of the engine, with a bounded group lookup
+            run.setSysmeta(MDQEngine.getSysmetaModel(sysmeta));
         }
 
         return (run);
@@ -657,8 +884,7 @@ public class Worker {
         // configuration
         // file.
         try {
-            IndexApplicationController iac = new IndexApplicationController();
-            iac.initialize(this.springConfigFileURL, solrLocation);
+            IndexApplicationController iac = IndexApplicationController.getShared(springConfigFileURL, solrLocation);
             InputStream runIS = new ByteArrayInputStream(runXML.getBytes());
             Identifier pid = new Identifier();
             pid.setValue(metadataId);
@@ -668,7 +894,6 @@ public class Worker {
             sysmeta.setFormatId(objFormatId);
             iac.insertSolrDoc(pid, sysmeta, runIS);
             log.info("Done indexing metadata PID: " + metadataId + ", suite id: " + suiteId);
-            iac.shutdown();
         } catch (Exception e) {
             throw new MetadigIndexException("Error during indexing", e);
         }
@@ -692,15 +917,13 @@ public class Worker {
             throws MetadigIndexException {
 
         try {
-            IndexApplicationController iac = new IndexApplicationController();
-            iac.initialize(this.springConfigFileURL, solrLocation);
+            IndexApplicationController iac = IndexApplicationController.getShared(springConfigFileURL, solrLocation);
             Identifier pid = new Identifier();
             pid.setValue(metadataId);
             // Update the solr doc fields, replacing the current value (other types of
             // updates are available)
             String updateFieldModifier = "set";
             iac.updateSolrDoc(pid, suiteId, fields, updateFieldModifier);
-            iac.shutdown();
         } catch (Exception e) {
             throw new MetadigIndexException("Error during index updating", e);
         }
@@ -815,7 +1038,9 @@ public class Worker {
                 .deliveryMode(2) // set this message to persistent
                 .type(MESSAGE_TYPE_QUALITY)
                 .build();
-        RabbitMQchannel.basicPublish(EXCHANGE_NAME, COMPLETED_ROUTING_KEY, basicProperties, message);
+        synchronized (channelLock) {
+            RabbitMQchannel.basicPublish(EXCHANGE_NAME, COMPLETED_ROUTING_KEY, basicProperties, message);
+        }
     }
 
     /**
@@ -2,6 +2,7 @@ package edu.ucsb.nceas.mdqengine.dispatch;
 
 import edu.ucsb.nceas.mdqengine.MDQconfig;
 import edu.ucsb.nceas.mdqengine.exception.MetadigException;
+import edu.ucsb.nceas.mdqengine.model.Check;
 import edu.ucsb.nceas.mdqengine.model.Output;
 import edu.ucsb.nceas.mdqengine.model.Result;
 import edu.ucsb.nceas.mdqengine.model.Status;
@@ -23,9 +24,12 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
 
 public class Dispatcher {
 
@@ -33,14 +37,26 @@ public class Dispatcher {
 
     protected ScriptEngine engine = null;
     protected String engineName = null;
-    protected String prefix = "store.";
 
     protected Map<String, Object> bindings = null;
 
+    // the run variables last set in the engine
+    private Map<String, Object> boundRunVariables = null;
+
     // create a script engine manager:
     protected ScriptEngineManager manager = new ScriptEngineManager();
 
-    private static Map<String, Dispatcher> instances = new HashMap<>();
+    /** The time budget of a check, in seconds, if none is configured */
+    public static final int DEFAULT_TIMEOUT = 600;
+
+    // how long past its budget a python check is waited for before giving up on its interpreter
+    private static final int TIMEOUT_GRACE = 10;
+
+    // dispatchers are looked up from concurrently running checks
+    private static Map<String, Dispatcher> instances = new ConcurrentHashMap<>();
+
+    // the python dispatcher leased from the interpreter pool by each thread
+    private static ThreadLocal<Dispatcher> leased = new ThreadLocal<>();
 
     /**
      * Dispatches the code and variables to the script engine.
@@ -58,20 +74,64 @@ public class Dispatcher {
      * @throws ScriptException
      */
     public Result dispatch(Map<String, Object> variables, String code) throws ScriptException {
+        return run(variables, code, null, getDefaultTimeout());
+    }
 
-        try {
-            MDQconfig cfg = new MDQconfig();
-            Iterator<String> keys = cfg.getKeys();
-            Map<String, Object> storeConfig = new HashMap<>();
-
-            while (keys.hasNext()) {
-                String key = keys.next();
-                if (key.startsWith(prefix)) {
-                    String value = cfg.getString(key);
-                    String strippedKey = key.substring(prefix.length());
-                    storeConfig.put(strippedKey, value);
+    /**
+     * Runs the code of a check, stopping it if it runs for longer than its time
+     * budget. Dispatchers that don't use a script engine override this.
+     *
+     * @param variables the variable name/values that will be made available to
+     *                  the script
+     * @param code      the code, function definition, or classname
+     * @param codeKey   identifies the code, or null, see
+     *                  {@link #dispatch(Map, String, Map, String)}
+     * @param timeout   the time budget of the check in seconds, or 0 for no limit
+     * @return result of type mdqengine.Result, an ERROR if the check ran out of
+     *         time
+     * @throws ScriptException
+     */
+    protected Result run(Map<String, Object> variables, String code, String codeKey, int timeout)
+            throws ScriptException {
+
+        if (engine instanceof JepScriptEngine jepEngine) {
+            if (!jepEngine.isInterpreterThread()) {
+                // run the whole check on the interpreter's thread, rather than each call to it
+                return callInterpreter(jepEngine, () -> run(variables, code, codeKey, timeout), timeout);
+            }
+            if (timeout > 0) {
+                Result result;
+                jepEngine.startTimer(timeout);
+                try {
+                    result = dispatchCode(variables, code, codeKey);
+                } finally {
+                    if (jepEngine.stopTimer()) {
+                        result = null;
+                    }
                 }
+                return result != null ? result : timedOut(timeout);
             }
+        }
+        return dispatchCode(variables, code, codeKey);
+    }
+
+    // waits a little longer than the check's budget, as the interpreter stops the check itself
+    private Result callInterpreter(JepScriptEngine jepEngine, Callable<Result> task, int timeout)
+            throws ScriptException {
+        try {
+            return jepEngine.call(task, timeout > 0 ? (timeout + TIMEOUT_GRACE) * 1000L : 0);
+        } catch (TimeoutException e) {
+            log.error("The python interpreter did not stop a check after " + timeout
+                    + " seconds, it will be replaced");
+            return timedOut(timeout);
+        }
+    }
+
+    private Result dispatchCode(Map<String, Object> variables, String code, String codeKey) throws ScriptException {
+
+        try {
+            // the 'store.' parameters, taken from the cached configuration
+            Map<String, Object> storeConfig = new MDQconfig().getStoreConfiguration();
             variables.put("storeConfiguration", storeConfig);
         } catch (ConfigurationException ce) {
             throw new RuntimeException("Error reading metadig configuration, ConfigurationException: " + ce);
@@ -83,13 +143,22 @@ public class Dispatcher {
 
         for (Entry<String, Object> entry : variables.entrySet()) {
             log.trace("Setting variable: " + entry.getKey() + "=" + entry.getValue());
-            engine.put(entry.getKey(), entry.getValue());
+            if (entry.getKey().equals("document") && engine instanceof JepScriptEngine jepEngine) {
+                // the same for every check of a document, so it is only copied into python once
+                jepEngine.putShared(entry.getKey(), entry.getValue());
+            } else {
+                engine.put(entry.getKey(), entry.getValue());
+            }
         }
         log.debug("Evaluating code: " + code);
 
         Object res = null;
         try {
-            res = engine.eval(code);
+            if (codeKey != null && engine instanceof JepScriptEngine jepEngine) {
+                res = jepEngine.eval(code, codeKey);
+            } else {
+                res = engine.eval(code);
+            }
             if (res != "_NA_") {
                 log.trace("Result: " + res);
             }
@@ -125,6 +194,26 @@ public class Dispatcher {
             dr = (Result) res;
         } else if (res != null && res != "_NA_") { // if res is a string, save it
             dr.setOutput(new Output(res.toString()));
+        } else if (engine instanceof JepScriptEngine jepEngine) {
+            // collect the python results in a single call to the interpreter
+            List<?> harvested;
+            try {
+                harvested = jepEngine.harvest();
+            } catch (Exception e) {
+                log.error(e.getMessage());
+                log.error(e.getStackTrace());
+                dr.setOutput(new Output("ERROR: " + e.getMessage())); // catch the python stack trace
+                dr.setStatus(Status.valueOf("ERROR"));
+                // if it errors, just exit
+                bindings = engine.getBindings(ScriptContext.ENGINE_SCOPE);
+                return dr;
+            }
+            if (harvested.size() == 1) {
+                dr = (Result) harvested.get(0);
+            } else {
+                setOutput(dr, harvested.get(0), harvested.get(1), harvested.get(2), harvested.get(3),
+                        harvested.get(4));
+            }
         } else {
             // for R and Python, the result has to be retrieved from engine global vars
             Object var_r = null;
@@ -171,42 +260,6 @@ public class Dispatcher {
                     // catch this silently since we are just fishing
                     // the no result case is handled later
                 }
-
-                if (out_type == null) {
-                    out_type = "text";
-                }
-
-                // save the output
-                if (out_py != null && !out_py.toString().equals("<unbound>")) {
-
-                    if (out_py instanceof ArrayList) {
-                        ArrayList<Output> outputList = new ArrayList<>();
-
-                        ArrayList<?> out_py_l = (ArrayList<?>) out_py;
-                        ArrayList<?> out_type_l = (ArrayList<?>) out_type;
-                        ArrayList<?> out_ids_l = (ArrayList<?>) out_ids;
-
-                        for (int i = 0; i < out_py_l.size(); i++) {
-                            Output o = new Output(String.valueOf(out_py_l.get(i)));
-                            String id = String.valueOf(out_ids_l.get(i));
-                            String type = String.valueOf(out_type_l.get(i));
-
-                            o.setIdentifier(id);
-                            o.setType(type);
-                            outputList.add(o);
-                        }
-                        dr.setOutput(outputList);
-                    } else {
-                        Output o = new Output(out_py.toString());
-                        dr.setOutput(o);
-                    }
-
-                }
-                // if we didn't get any "normal" output from python grab whatever got returned
-                if (out != null & out_py == null) {
-                    Output o = new Output(out.toString());
-                    dr.setOutput(o);
-                }
                 // try to get the global status variable from python
                 try {
                     out_status = engine.get("status");
@@ -215,13 +268,7 @@ public class Dispatcher {
                     // the no result case is handled later
                     log.trace("No result found for python check variable variable status.");
                 }
-                // save the status
-                if (out_status != null && !out_status.toString().equals("<unbound>")) {
-                    dr.setStatus(Status.valueOf(out_status.toString()));
-                } else {
-                    // if we haven't found anything at this point it probably failed
-                    dr.setStatus(Status.FAILURE);
-                }
+                setOutput(dr, out, out_py, out_ids, out_type, out_status);
             }
         }
 
@@ -232,6 +279,185 @@ public class Dispatcher {
 
     }
 
+    // save the output and status that a python check left in its globals
+    private static void setOutput(Result dr, Object out, Object out_py, Object out_ids, Object out_type,
+            Object out_status) {
+
+        if (out_type == null) {
+            out_type = "text";
+        }
+
+        // save the output
+        if (out_py != null && !out_py.toString().equals("<unbound>")) {
+
+            if (out_py instanceof ArrayList) {
+                ArrayList<Output> outputList = new ArrayList<>();
+
+                ArrayList<?> out_py_l = (ArrayList<?>) out_py;
+                ArrayList<?> out_type_l = (ArrayList<?>) out_type;
+                ArrayList<?> out_ids_l = (ArrayList<?>) out_ids;
+
+                for (int i = 0; i < out_py_l.size(); i++) {
+                    Output o = new Output(String.valueOf(out_py_l.get(i)));
+                    String id = String.valueOf(out_ids_l.get(i));
+                    String type = String.valueOf(out_type_l.get(i));
+
+                    o.setIdentifier(id);
+                    o.setType(type);
+                    outputList.add(o);
+                }
+                dr.setOutput(outputList);
+            } else {
+                Output o = new Output(out_py.toString());
+                dr.setOutput(o);
+            }
+
+        }
+        // if we didn't get any "normal" output from python grab whatever got returned
+        if (out != null & out_py == null) {
+            Output o = new Output(out.toString());
+            dr.setOutput(o);
+        }
+        // save the status
+        if (out_status != null && !out_status.toString().equals("<unbound>")) {
+            dr.setStatus(Status.valueOf(out_status.toString()));
+        } else {
+            // if we haven't found anything at this point it probably failed
+            dr.setStatus(Status.FAILURE);
+        }
+    }
+
+    /**
+     * Dispatches the code with the variables of a check and the variables shared
+     * by every check in the run. For script engines the run variables are only
+     * set in the engine when the run changes, rather than for every check, so
+     * checks must not modify them. Other dispatchers get all of the variables with
+     * each check. As when they are given with the check variables, the run
+     * variables take precedence over check variables with the same name.
+     *
+     * @param variables    the variable name/values of the check
+     * @param code         the code, function definition, or classname
+     * @param runVariables the variable name/values of the run, which must not
+     *                     change during the run
+     * @return result of type mdqengine.Result
+     * @throws ScriptException
+     */
+    public Result dispatch(Map<String, Object> variables, String code, Map<String, Object> runVariables)
+            throws ScriptException {
+        return dispatch(variables, code, runVariables, null);
+    }
+
+    /**
+     * Dispatches the code of a check as above, identifying the code with a key so
+     * that engines that compile the code (i.e. python) can compile it once and
+     * reuse it for every document. The same key must always be given with the
+     * same code.
+     *
+     * @param variables    the variable name/values of the check
+     * @param code         the code, function definition, or classname
+     * @param runVariables the variable name/values of the run, which must not
+     *                     change during the run
+     * @param codeKey      identifies the code, e.g. the check id and a hash of the
+     *                     code, or null to compile the code every time
+     * @return result of type mdqengine.Result
+     * @throws ScriptException
+     */
+    public Result dispatch(Map<String, Object> variables, String code, Map<String, Object> runVariables,
+            String codeKey) throws ScriptException {
+        return dispatch(variables, code, runVariables, codeKey, getDefaultTimeout());
+    }
+
+    /**
+     * Dispatches the code of a check as above, stopping it if it runs for longer
+     * than the given time. A check that is stopped gets an ERROR result, and the
+     * dispatcher can be used for the next check.
+     *
+     * @param variables    the variable name/values of the check
+     * @param code         the code, function definition, or classname
+     * @param runVariables the variable name/values of the run, which must not
+     *                     change during the run
+     * @param codeKey      identifies the code, or null to compile the code every
+     *                     time
+     * @param timeout      the time budget of the check in seconds, or 0 for no
+     *                     limit, see {@link #getTimeout(Check)}
+     * @return result of type mdqengine.Result
+     * @throws ScriptException
+     */
+    public Result dispatch(Map<String, Object> variables, String code, Map<String, Object> runVariables,
+            String codeKey, int timeout) throws ScriptException {
+
+        if (engine instanceof JepScriptEngine jepEngine && !jepEngine.isInterpreterThread()) {
+            return callInterpreter(jepEngine, () -> dispatch(variables, code, runVariables, codeKey, timeout),
+                    timeout);
+        }
+
+        Map<String, Object> names = new HashMap<>(variables);
+        if (engine == null) {
+            names.putAll(runVariables);
+            return run(names, code, codeKey, timeout);
+        }
+
+        if (runVariables != boundRunVariables) {
+            // don't leave values from the previous run behind
+            if (boundRunVariables != null) {
+                for (String key : boundRunVariables.keySet()) {
+                    if (!runVariables.containsKey(key)) {
+                        engine.put(key, null);
+                    }
+                }
+            }
+            for (Entry<String, Object> entry : runVariables.entrySet()) {
+                log.trace("Setting run variable: " + entry.getKey() + "=" + entry.getValue());
+                engine.put(entry.getKey(), entry.getValue());
+            }
+            boundRunVariables = runVariables;
+        }
+        names.keySet().removeAll(runVariables.keySet());
+
+        return run(names, code, codeKey, timeout);
+    }
+
+    /**
+     * Get the time budget of a check: the timeout given in the check, or else
+     * 'engine.check.timeout' (default 600 seconds).
+     *
+     * @param check the check
+     * @return the time budget in seconds, 0 for no limit
+     */
+    public static int getTimeout(Check check) {
+        if (check != null && check.getTimeout() != null) {
+            return Math.max(check.getTimeout(), 0);
+        }
+        return getDefaultTimeout();
+    }
+
+    /**
+     * Get the time budget of checks that don't give their own, from
+     * 'engine.check.timeout' (default 600 seconds).
+     *
+     * @return the time budget in seconds, 0 for no limit
+     */
+    public static int getDefaultTimeout() {
+        try {
+            return Math.max(new MDQconfig().getInt("engine.check.timeout", DEFAULT_TIMEOUT), 0);
+        } catch (ConfigurationException | IOException e) {
+            return DEFAULT_TIMEOUT;
+        }
+    }
+
+    /**
+     * The result of a check that ran out of time.
+     *
+     * @param timeout the time budget of the check in seconds
+     * @return an ERROR result
+     */
+    protected static Result timedOut(int timeout) {
+        Result result = new Result();
+        result.setStatus(Status.ERROR);
+        result.setOutput(new Output("The check did not complete within its time limit of " + timeout + " seconds"));
+        return result;
+    }
+
     /**
      * Checks if the environment is supported by the ScriptEngine.
      *
@@ -245,6 +471,10 @@ public class Dispatcher {
         return env.equalsIgnoreCase(currentEnv);
     }
 
+    /**
+     * Close the engine. Python dispatchers belong to the {@link JepInterpreterPool}
+     * and should be released with {@link #releaseDispatchers()} instead.
+     */
     public void close() {
         if (engine instanceof JepScriptEngine jepEngine) {
             jepEngine.close();
@@ -252,7 +482,57 @@ public class Dispatcher {
         } else {
             log.debug("Didn't close Jep interpreter");
         }
-        instances = new HashMap<>(); // reset the static variable
+    }
+
+    /**
+     * Determine if the engine was left running a check that couldn't be stopped,
+     * in which case the dispatcher can't be used any more.
+     */
+    boolean isAbandoned() {
+        return engine instanceof JepScriptEngine jepEngine && jepEngine.isAbandoned();
+    }
+
+    /**
+     * Clear the state left in the engine by the checks that have been run, so the
+     * dispatcher can be used for another run.
+     */
+    void reset() {
+        if (engine instanceof JepScriptEngine jepEngine) {
+            jepEngine.reset();
+        }
+        boundRunVariables = null;
+        bindings = null;
+    }
+
+    /**
+     * Release the dispatchers leased by the current thread (i.e. its python
+     * interpreter) back to their pool, once the thread has finished running a
+     * suite. The thread gets a reset interpreter the next time it asks for one.
+     */
+    public static void releaseDispatchers() {
+        Dispatcher dispatcher = leased.get();
+        if (dispatcher != null) {
+            leased.remove();
+            JepInterpreterPool.getShared().release(dispatcher);
+        }
+    }
+
+    /**
+     * Create a python dispatcher whose interpreter runs on its own thread, see
+     * {@link JepInterpreterPool}.
+     *
+     * @param threadName the name of the interpreter thread
+     * @return the dispatcher
+     */
+    static Dispatcher createPythonDispatcher(String threadName) {
+        Dispatcher dispatcher = new Dispatcher();
+        JepScriptEngineFactory factory = new JepScriptEngineFactory();
+        dispatcher.manager.registerEngineName("python", factory);
+        JepScriptEngine jepEngine = new JepScriptEngine(threadName);
+        jepEngine.setFactory(factory);
+        dispatcher.engine = jepEngine;
+        dispatcher.engineName = "python";
+        return dispatcher;
     }
 
     protected Dispatcher() {
@@ -283,7 +563,10 @@ public class Dispatcher {
     }
 
     /**
-     * Get the dispatcher for a given environment
+     * Get the dispatcher for a given environment. Python dispatchers are leased
+     * to the calling thread from the shared {@link JepInterpreterPool}, so each
+     * thread gets its own interpreter until it calls
+     * {@link #releaseDispatchers()}.
      * 
      * @param env The environment name.
      */
@@ -304,6 +587,15 @@ public class Dispatcher {
             engineName = "Java";
         }
 
+        if ("python".equals(engineName)) {
+            instance = leased.get();
+            if (instance == null) {
+                instance = JepInterpreterPool.getShared().acquire();
+                leased.set(instance);
+            }
+            return instance;
+        }
+
         if (!instances.containsKey(engineName)) {
             synchronized (Dispatcher.class) {
                 if (!instances.containsKey(engineName)) {
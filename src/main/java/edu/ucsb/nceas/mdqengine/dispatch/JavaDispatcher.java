@@ -1,46 +1,267 @@
 package edu.ucsb.nceas.mdqengine.dispatch;
 
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.script.ScriptException;
 
 import org.apache.commons.beanutils.BeanUtils;
+import org.apache.commons.logging.Log;
 
+import edu.ucsb.nceas.mdqengine.MDQconfig;
+import edu.ucsb.nceas.mdqengine.model.Output;
 import edu.ucsb.nceas.mdqengine.model.Result;
+import edu.ucsb.nceas.mdqengine.model.Status;
 
+/**
+ * Runs Java checks: classes implementing Callable&lt;Result&gt; with a bean
+ * property for each check variable.
+ *
+ * The class, its constructor and the setters of its properties are looked up
+ * the first time a check class is used. Values that need converting to the
+ * property type are set with BeanUtils, as before, and variables without a
+ * property are ignored.
+ *
+ * Checks run on a pool of 'java.pool.size' threads (default 8) shared by all
+ * suites, and a check that runs for longer than its time budget is interrupted
+ * and gets an ERROR result. The budget starts when the check starts running,
+ * not while it waits for a thread, but a check that doesn't get a thread within
+ * the same time isn't run and gets an ERROR result. A check that ignores the
+ * interrupt keeps its thread, so the pool gets an extra thread until that check
+ * returns. Checks without a time limit run on the calling thread.
+ */
 public class JavaDispatcher extends Dispatcher {
-		
+
+	public static final int DEFAULT_POOL_SIZE = 8;
+
+	private static Map<String, CheckClass> checkClasses = new ConcurrentHashMap<String, CheckClass>();
+
+	private static ThreadPoolExecutor pool = null;
+
+	// threads held by checks that timed out but haven't returned yet
+	private static int abandoned = 0;
+
+	// the state of a check run on the pool
+	private static final int RUNNING = 0;
+	private static final int FINISHED = 1;
+	private static final int ABANDONED = 2;
+
 	@Override
-	public Result dispatch(Map<String, Object> names, String className) throws ScriptException {
+	protected Result run(Map<String, Object> names, String className, String codeKey, int timeout)
+			throws ScriptException {
 
+		long start = System.nanoTime();
 		Result result = null;
+		Callable<Result> runner = null;
 		try {
-			// create instance of the given class - must be impl of Callable<String>
-			Class clazz = Class.forName(className);
+			// create instance of the given class - must be impl of Callable<Result>
 			log.debug("Calling class: " + className);
-			Callable<Result> runner = (Callable<Result>) clazz.newInstance();
-			// set the properties from name/value Map
-			for (Entry<String, Object> entry: names.entrySet()) {
-				log.trace("Setting property: " + entry.getKey() + "=" + entry.getValue());
-				BeanUtils.setProperty(runner, entry.getKey(), entry.getValue());
-			}
-			// call the bean, blocking for results
-			ExecutorService exec = Executors.newSingleThreadExecutor();
-			Future<Result> future = exec.submit(runner);
-			result = future.get();
-			
+			runner = getCheckClass(className).newInstance(names, log);
 		} catch (Exception e) {
 			throw new ScriptException(e);
 		}
-		
-		log.debug("Result: " + result.getStatus());
+
+		if (timeout <= 0) {
+			try {
+				result = runner.call();
+			} catch (Exception e) {
+				throw new ScriptException(e);
+			}
+		} else {
+			// call the bean, blocking for results
+			Callable<Result> check = runner;
+			CountDownLatch started = new CountDownLatch(1);
+			AtomicInteger state = new AtomicInteger(RUNNING);
+			Future<Result> future = getPool().submit(() -> {
+				started.countDown();
+				try {
+					return check.call();
+				} finally {
+					if (!state.compareAndSet(RUNNING, FINISHED)) {
+						returnThread();
+					}
+				}
+			});
+			try {
+				if (!started.await(timeout, TimeUnit.SECONDS) && future.cancel(false)) {
+					// every thread is busy, the check was never started
+					log.warn("Java check " + className + " did not get a thread within " + timeout + " seconds");
+					result = new Result();
+					result.setStatus(Status.ERROR);
+					result.setOutput(new Output("The check could not be started within its time limit of " + timeout
+							+ " seconds, all threads for java checks were busy"));
+				} else {
+					result = future.get(timeout, TimeUnit.SECONDS);
+				}
+			} catch (TimeoutException e) {
+				future.cancel(true);
+				log.warn("Java check " + className + " did not complete within " + timeout + " seconds");
+				if (state.compareAndSet(RUNNING, ABANDONED)) {
+					replaceThread(className);
+				}
+				result = timedOut(timeout);
+			} catch (InterruptedException e) {
+				future.cancel(true);
+				Thread.currentThread().interrupt();
+				throw new ScriptException(e);
+			} catch (ExecutionException e) {
+				throw new ScriptException(e);
+			}
+		}
+
+		log.debug("Result: " + result.getStatus() + " from " + className + " in "
+				+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
 
 		return result;
 	}
 
+	private static CheckClass getCheckClass(String className) throws Exception {
+		CheckClass checkClass = checkClasses.get(className);
+		if (checkClass == null) {
+			checkClass = new CheckClass(Class.forName(className));
+			checkClasses.put(className, checkClass);
+		}
+		return checkClass;
+	}
+
+	private ExecutorService getPool() {
+		// the pool is shared by all instances
+		synchronized (JavaDispatcher.class) {
+			if (pool == null) {
+				int size = DEFAULT_POOL_SIZE;
+				try {
+					size = new MDQconfig().getInt("java.pool.size", DEFAULT_POOL_SIZE);
+				} catch (Exception e) {
+					log.warn("Could not read 'java.pool.size', using " + DEFAULT_POOL_SIZE + " threads: "
+							+ e.getMessage());
+				}
+				AtomicInteger count = new AtomicInteger();
+				ThreadPoolExecutor executor = new ThreadPoolExecutor(Math.max(size, 1), Math.max(size, 1), 60,
+						TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), runnable -> {
+							Thread thread = new Thread(runnable, "mdq-java-" + count.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						});
+				executor.allowCoreThreadTimeOut(true);
+				pool = executor;
+			}
+			return pool;
+		}
+	}
+
+	/**
+	 * Add a thread to the pool in place of one held by a check that timed out,
+	 * since interrupting the check doesn't stop it if it is blocked in I/O.
+	 */
+	private void replaceThread(String className) {
+		int held;
+		synchronized (JavaDispatcher.class) {
+			held = ++abandoned;
+			pool.setMaximumPoolSize(pool.getMaximumPoolSize() + 1);
+			pool.setCorePoolSize(pool.getCorePoolSize() + 1);
+		}
+		log.warn("Java check " + className + " is still running after timing out, " + held
+				+ " threads are held by checks that timed out");
+	}
+
+	/**
+	 * Remove the thread added by {@link #replaceThread(String)} once the check
+	 * that timed out has returned.
+	 */
+	private static synchronized void returnThread() {
+		abandoned--;
+		pool.setCorePoolSize(pool.getCorePoolSize() - 1);
+		pool.setMaximumPoolSize(pool.getMaximumPoolSize() - 1);
+	}
+
+	/**
+	 * A check class, with its constructor and the setters of its properties.
+	 */
+	private static class CheckClass {
+
+		private static final MethodType CONSTRUCTOR = MethodType.methodType(Object.class);
+		private static final MethodType SETTER = MethodType.methodType(void.class, Object.class, Object.class);
+
+		private String name;
+		private MethodHandle constructor;
+		private Map<String, Property> properties = new HashMap<String, Property>();
+
+		CheckClass(Class<?> clazz) throws Exception {
+			if (!Callable.class.isAssignableFrom(clazz)) {
+				throw new ClassCastException(clazz.getName() + " does not implement Callable");
+			}
+			name = clazz.getName();
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			constructor = lookup.findConstructor(clazz, MethodType.methodType(void.class)).asType(CONSTRUCTOR);
+			for (PropertyDescriptor descriptor : Introspector.getBeanInfo(clazz).getPropertyDescriptors()) {
+				Method writer = descriptor.getWriteMethod();
+				if (writer != null) {
+					Class<?> type = writer.getParameterTypes()[0];
+					properties.put(descriptor.getName(), new Property(lookup.unreflect(writer).asType(SETTER), type));
+				}
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		Callable<Result> newInstance(Map<String, Object> names, Log log) throws Exception {
+			try {
+				Callable<Result> runner = (Callable<Result>) (Object) constructor.invokeExact();
+				// set the properties from name/value Map
+				for (Entry<String, Object> entry : names.entrySet()) {
+					Property property = properties.get(entry.getKey());
+					if (property != null) {
+						log.trace("Setting property: " + entry.getKey() + "=" + entry.getValue());
+						property.set(runner, entry.getKey(), entry.getValue());
+					}
+				}
+				return runner;
+			} catch (Exception | Error e) {
+				throw e;
+			} catch (Throwable t) {
+				throw new Exception("Could not create " + name, t);
+			}
+		}
+	}
+
+	/**
+	 * A property of a check class, and how to set it.
+	 */
+	private static class Property {
+
+		private MethodHandle setter;
+		private Class<?> type;
+		private Class<?> boxedType;
+
+		Property(MethodHandle setter, Class<?> type) {
+			this.setter = setter;
+			this.type = type;
+			this.boxedType = MethodType.methodType(type).wrap().returnType();
+		}
+
+		void set(Object bean, String name, Object value) throws Throwable {
+			if (value == null ? !type.isPrimitive() : boxedType.isInstance(value)) {
+				setter.invokeExact(bean, value);
+			} else {
+				BeanUtils.setProperty(bean, name, value);
+			}
+		}
+	}
 }
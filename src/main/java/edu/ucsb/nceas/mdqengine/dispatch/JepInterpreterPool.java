@@ -0,0 +1,213 @@
+package edu.ucsb.nceas.mdqengine.dispatch;
+
+import edu.ucsb.nceas.mdqengine.MDQconfig;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fixed number of python dispatchers, each with its own Jep interpreter, that
+ * are created once and shared by the threads running suites.
+ *
+ * A thread running python checks leases a dispatcher from the pool the first
+ * time it asks for one (see {@link Dispatcher#getDispatcher(String)}), waiting
+ * if they are all in use, and keeps it until it releases it at the end of the
+ * run (see {@link Dispatcher#releaseDispatchers()}). Released interpreters are
+ * reset rather than closed, so modules imported by checks stay loaded for the
+ * next run. An interpreter that can't be reset is closed, and a new one is
+ * started in its place when it is next needed. The size of the shared pool is
+ * set by 'jep.pool.size' (default 1).
+ */
+public class JepInterpreterPool {
+
+    public static Log log = LogFactory.getLog(JepInterpreterPool.class);
+
+    public static final int DEFAULT_SIZE = 1;
+
+    private static JepInterpreterPool shared = null;
+
+    private int size;
+    private int created = 0;
+    // interpreters that are running or being started, at most 'size'
+    private int live = 0;
+    private List<Dispatcher> dispatchers = new ArrayList<>();
+    private BlockingQueue<Dispatcher> idle = new LinkedBlockingQueue<>();
+
+    /**
+     * Create a pool, starting all of its interpreters.
+     *
+     * @param size the number of interpreters
+     * @throws RuntimeException if an interpreter can't be created, e.g. Jep
+     *                          hasn't been set up
+     */
+    public JepInterpreterPool(int size) {
+        this.size = Math.max(size, 1);
+        for (int i = 0; i < this.size; i++) {
+            idle.add(create());
+        }
+        log.debug("Started " + this.size + " python interpreters");
+    }
+
+    /**
+     * Get the pool shared by all suites run in this process, starting it if it
+     * hasn't been started yet.
+     *
+     * @return the shared pool
+     */
+    public static synchronized JepInterpreterPool getShared() {
+        if (shared == null) {
+            int size = DEFAULT_SIZE;
+            try {
+                size = new MDQconfig().getInt("jep.pool.size", DEFAULT_SIZE);
+            } catch (Exception e) {
+                log.warn("Could not read 'jep.pool.size', using " + DEFAULT_SIZE + " python interpreter: "
+                        + e.getMessage());
+            }
+            shared = new JepInterpreterPool(size);
+        }
+        return shared;
+    }
+
+    /**
+     * Start an interpreter, if the pool has fewer than 'size' of them.
+     *
+     * @return the dispatcher, or null if the pool is full
+     * @throws RuntimeException if the interpreter can't be started
+     */
+    private Dispatcher create() {
+        String name;
+        synchronized (this) {
+            if (live >= size) {
+                return null;
+            }
+            live++;
+            name = "mdq-python-" + (++created);
+        }
+        try {
+            Dispatcher dispatcher = Dispatcher.createPythonDispatcher(name);
+            synchronized (this) {
+                dispatchers.add(dispatcher);
+            }
+            return dispatcher;
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                live--;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Take an idle dispatcher. If there is none, a new interpreter is started
+     * when the pool has room for one, otherwise this waits until one is released.
+     *
+     * @return the dispatcher, for use by the calling thread only
+     * @throws RuntimeException if a new interpreter can't be started
+     */
+    public Dispatcher acquire() {
+        try {
+            while (true) {
+                Dispatcher dispatcher = idle.poll();
+                if (dispatcher == null) {
+                    dispatcher = create();
+                }
+                // an interpreter that failed to restart frees its place, so check again
+                if (dispatcher == null) {
+                    dispatcher = idle.poll(1, TimeUnit.SECONDS);
+                }
+                if (dispatcher != null) {
+                    return dispatcher;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for a python interpreter");
+        }
+    }
+
+    /**
+     * Reset a dispatcher taken from this pool and make it available again. If the
+     * interpreter can't be reset, or is still running a check that couldn't be
+     * stopped, it is replaced with a new one. If that can't be started either, the
+     * pool is left one short and {@link #acquire()} tries again later, so this
+     * never throws.
+     *
+     * @param dispatcher the dispatcher
+     */
+    public void release(Dispatcher dispatcher) {
+        try {
+            if (dispatcher.isAbandoned()) {
+                throw new IllegalStateException("it is still running a check that timed out");
+            }
+            dispatcher.reset();
+        } catch (RuntimeException e) {
+            log.warn("Could not reset python interpreter, replacing it: " + e.getMessage());
+            synchronized (this) {
+                if (dispatchers.remove(dispatcher)) {
+                    live--;
+                }
+            }
+            try {
+                dispatcher.close();
+            } catch (RuntimeException ce) {
+                log.debug("Could not close python interpreter: " + ce.getMessage());
+            }
+            try {
+                dispatcher = create();
+            } catch (RuntimeException ce) {
+                log.error("Could not start a python interpreter, one will be started when needed: "
+                        + ce.getMessage());
+                return;
+            }
+            if (dispatcher == null) {
+                return;
+            }
+        }
+        idle.add(dispatcher);
+    }
+
+    /**
+     * Get the number of interpreters in the pool.
+     *
+     * @return the pool size
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the number of interpreters that aren't leased to a thread.
+     *
+     * @return the number of idle interpreters
+     */
+    public int available() {
+        return idle.size();
+    }
+
+    /**
+     * Close all of the interpreters. Interpreters in use are closed as well, so
+     * this should only be called once no more checks will be run.
+     */
+    public synchronized void close() {
+        for (Dispatcher dispatcher : dispatchers) {
+            try {
+                dispatcher.close();
+            } catch (RuntimeException e) {
+                log.debug("Could not close python interpreter: " + e.getMessage());
+            }
+        }
+        dispatchers.clear();
+        idle.clear();
+        live = 0;
+        synchronized (JepInterpreterPool.class) {
+            if (shared == this) {
+                shared = null;
+            }
+        }
+    }
+}
@@ -4,6 +4,18 @@ import jep.SharedInterpreter;
 import jep.JepException;
 
 import java.io.Reader;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.script.Bindings;
 import javax.script.ScriptContext;
@@ -18,7 +30,83 @@ import javax.script.SimpleBindings;
  */
 public class JepScriptEngine implements ScriptEngine {
 
+    // keeps the code objects compiled from check code, by key
+    private static final String DEFINE_CODE_CACHE = "_mdq_code = {}\n"
+            + "def _mdq_compile(key, source):\n"
+            + "    _mdq_code[key] = compile(source, key, 'exec')\n"
+            + "def _mdq_run(key):\n"
+            + "    exec(_mdq_code[key], globals())\n";
+    // the most compiled code objects kept, the cache is emptied when it is full
+    private static final int MAX_COMPILED = 1000;
+    // stops a check that runs for too long by raising MDQTimeout in the thread
+    // running it, from a timer thread. This only happens between python
+    // instructions, so it can't stop a check that is blocked in a call to C
+    // code, e.g. reading from a socket.
+    private static final String DEFINE_TIMER = "import ctypes as _mdq_ctypes\n"
+            + "import threading as _mdq_threading\n"
+            + "class MDQTimeout(Exception):\n"
+            + "    pass\n"
+            + "_mdq_timer_lock = _mdq_threading.Lock()\n"
+            + "_mdq_timer = [None, 0, False]\n"
+            + "def _mdq_raise(thread, exception):\n"
+            + "    _mdq_ctypes.pythonapi.PyThreadState_SetAsyncExc(_mdq_ctypes.c_ulong(thread), exception)\n"
+            + "def _mdq_arm(seconds):\n"
+            + "    def expire():\n"
+            + "        with _mdq_timer_lock:\n"
+            + "            if _mdq_timer[0] is timer:\n"
+            + "                _mdq_timer[2] = True\n"
+            + "                _mdq_raise(_mdq_timer[1], _mdq_ctypes.py_object(MDQTimeout))\n"
+            + "    timer = _mdq_threading.Timer(seconds, expire)\n"
+            + "    timer.daemon = True\n"
+            + "    with _mdq_timer_lock:\n"
+            + "        _mdq_timer[:] = [timer, _mdq_threading.get_ident(), False]\n"
+            + "    timer.start()\n"
+            + "def _mdq_disarm():\n"
+            + "    with _mdq_timer_lock:\n"
+            + "        timer, thread, expired = _mdq_timer\n"
+            + "        _mdq_timer[:] = [None, 0, False]\n"
+            + "    if timer is not None:\n"
+            + "        timer.cancel()\n"
+            + "    if expired:\n"
+            + "        _mdq_raise(thread, None)\n"
+            + "    return expired\n";
+    // collects what a check left in the globals in one call, in the order the
+    // dispatcher used to get them: mdq_result, or else the value of call(), output,
+    // output_identifiers and output_type (each None if it, or one before it, isn't
+    // set) and status
+    private static final String DEFINE_HARVEST = "def _mdq_harvest():\n"
+            + "    g = globals()\n"
+            + "    result = g.get('mdq_result')\n"
+            + "    if result is not None:\n"
+            + "        return [result]\n"
+            + "    values = [eval('call()', g)]\n"
+            + "    for name in ('output', 'output_identifiers', 'output_type'):\n"
+            + "        if name not in g:\n"
+            + "            break\n"
+            + "        values.append(g[name])\n"
+            + "    values += [None] * (4 - len(values))\n"
+            + "    values.append(g.get('status'))\n"
+            + "    return values\n";
+    // the prefix of the globals holding values shared by the checks of a run
+    private static final String SHARED_PREFIX = "_mdq_shared_";
+    // remembers the globals of a new interpreter, so that the names defined by
+    // checks can be removed
+    private static final String SAVE_GLOBALS = "_mdq_baseline = set(globals()) | {'_mdq_baseline', '_mdq_name'}";
+    private static final String RESET_GLOBALS = "for _mdq_name in [n for n in globals() if n not in _mdq_baseline]:\n"
+            + "    del globals()[_mdq_name]\n";
+
     private SharedInterpreter jepInterpreter = null;
+    // the thread that owns the interpreter, if it isn't the thread that created
+    // the engine
+    private ExecutorService interpreterThread = null;
+    private volatile Thread owner = null;
+    // set when a call to the interpreter didn't complete in time, the
+    // interpreter is still busy with it and can't be used any more
+    private volatile boolean abandoned = false;
+    // the keys of the code compiled in the interpreter
+    private Set<String> compiled = new HashSet<>();
+    // the values shared by the checks of a run that are in the interpreter, by name
+    private Map<String, Object> shared = new HashMap<>();
     private Bindings bindings = new SimpleBindings();
     private Bindings globalBindings = new SimpleBindings();
     private ScriptEngineFactory factory = null;
@@ -42,11 +130,181 @@ public class JepScriptEngine implements ScriptEngine {
         try {
             // create the interpreter for python executing
             jepInterpreter = new SharedInterpreter();
+            jepInterpreter.exec(DEFINE_CODE_CACHE);
+            jepInterpreter.exec(DEFINE_TIMER);
+            jepInterpreter.exec(DEFINE_HARVEST);
+            jepInterpreter.exec(SAVE_GLOBALS);
+            owner = Thread.currentThread();
         } catch (JepException e) {
             throw new RuntimeException("Error initializing Jep interpreter: " + e);
         }
     }
 
+    /**
+     * Create a JepScriptEngine whose interpreter lives on its own thread.
+     * 
+     * A Jep interpreter can only be used by the thread that created it, so the
+     * interpreter is created on a dedicated thread and every call to it is run on
+     * that thread. The engine can then be used from any thread, one thread at a
+     * time.
+     * 
+     * @param threadName the name of the interpreter thread
+     * @throws RuntimeException if the interpreter can't be created
+     */
+    public JepScriptEngine(String threadName) {
+
+        interpreterThread = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, threadName);
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            call(() -> {
+                jepInterpreter = new SharedInterpreter();
+                jepInterpreter.exec(DEFINE_CODE_CACHE);
+                jepInterpreter.exec(DEFINE_TIMER);
+                jepInterpreter.exec(DEFINE_HARVEST);
+                jepInterpreter.exec(SAVE_GLOBALS);
+                owner = Thread.currentThread();
+                return null;
+            });
+        } catch (ScriptException e) {
+            interpreterThread.shutdown();
+            throw new RuntimeException("Error initializing Jep interpreter: " + e.getCause());
+        }
+    }
+
+    /**
+     * Determine if the current thread can use the interpreter directly.
+     * 
+     * @return true if the current thread owns the interpreter
+     */
+    public boolean isInterpreterThread() {
+        return Thread.currentThread() == owner;
+    }
+
+    /**
+     * Run a task on the thread that owns the interpreter, waiting for it to
+     * complete. The task is run directly if called from that thread.
+     * 
+     * @param task the task, which can use this engine
+     * @return the result of the task
+     * @throws ScriptException if the task throws a checked exception
+     */
+    public <T> T call(Callable<T> task) throws ScriptException {
+        try {
+            return call(task, 0);
+        } catch (TimeoutException e) {
+            // without a limit there is no timeout
+            throw new ScriptException(e);
+        }
+    }
+
+    /**
+     * Run a task on the thread that owns the interpreter as above, waiting at
+     * most the given time for it to complete. If it doesn't, the interpreter is
+     * left to the task and this engine can't be used any more, see
+     * {@link #isAbandoned()}.
+     * 
+     * @param task          the task, which can use this engine
+     * @param timeoutMillis the most milliseconds to wait, or 0 to wait until the
+     *                      task completes
+     * @return the result of the task
+     * @throws ScriptException  if the task throws a checked exception
+     * @throws TimeoutException if the task didn't complete in time
+     */
+    public <T> T call(Callable<T> task, long timeoutMillis) throws ScriptException, TimeoutException {
+        try {
+            if (interpreterThread == null || isInterpreterThread()) {
+                return task.call();
+            }
+            if (abandoned) {
+                throw new ScriptException("The Jep interpreter is still running a check that timed out");
+            }
+            Future<T> future = interpreterThread.submit(task);
+            try {
+                return timeoutMillis > 0 ? future.get(timeoutMillis, TimeUnit.MILLISECONDS) : future.get();
+            } catch (TimeoutException e) {
+                abandoned = true;
+                future.cancel(true);
+                throw e;
+            } catch (InterruptedException e) {
+                future.cancel(false);
+                Thread.currentThread().interrupt();
+                throw new ScriptException("Interrupted while waiting for the Jep interpreter");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception cause) {
+                    throw cause;
+                }
+                throw (Error) e.getCause();
+            }
+        } catch (ScriptException | TimeoutException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ScriptException(e);
+        }
+    }
+
+    /**
+     * Determine if the interpreter was left running a task that didn't complete
+     * in time, see {@link #call(Callable, long)}.
+     * 
+     * @return true if the engine can't be used any more
+     */
+    public boolean isAbandoned() {
+        return abandoned;
+    }
+
+    /**
+     * Start timing a check that is about to be run by the current thread. If it
+     * is still running after the given time, an MDQTimeout exception is raised
+     * in it. Must be followed by {@link #stopTimer()} once the check completes.
+     * 
+     * @param seconds the time the check can take
+     * @throws RuntimeException if the timer can't be started
+     */
+    public void startTimer(int seconds) {
+        onInterpreter(() -> jepInterpreter.invoke("_mdq_arm", seconds));
+    }
+
+    /**
+     * Stop timing the check started with {@link #startTimer(int)}.
+     * 
+     * @return true if the check ran out of time
+     * @throws RuntimeException if the timer can't be stopped
+     */
+    public boolean stopTimer() {
+        return onInterpreter(() -> {
+            try {
+                return Boolean.TRUE.equals(jepInterpreter.invoke("_mdq_disarm"));
+            } catch (JepException e) {
+                // the timeout was raised here rather than in the check
+                jepInterpreter.invoke("_mdq_disarm");
+                return true;
+            }
+        });
+    }
+
+    // interpreter calls that only throw JepException, run on the interpreter thread
+    private interface InterpreterCall<T> {
+        T call() throws JepException;
+    }
+
+    private <T> T onInterpreter(InterpreterCall<T> call) {
+        try {
+            return call(() -> {
+                try {
+                    return call.call();
+                } catch (JepException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+        } catch (ScriptException e) {
+            // the caller was interrupted while waiting
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Mapping of eval method for ScriptEngine to the jep SharedInterpreter
      * 
@@ -69,19 +327,105 @@ public class JepScriptEngine implements ScriptEngine {
     @Override
     public Object eval(String script) throws RuntimeException {
         // Implement the evaluation logic using the jepInterpreter
-        try {
+        return onInterpreter(() -> {
             jepInterpreter.exec(script);
             return "_NA_";
-        } catch (JepException e) {
-            throw new RuntimeException(e);
-        }
+        });
+    }
+
+    /**
+     * Run a script that is identified by a key, compiling it the first time the
+     * key is seen by this interpreter and running the compiled code after that.
+     * The compiled code is kept when the interpreter is reset, so it is reused by
+     * later runs.
+     * 
+     * @param script The python script as a string
+     * @param key    identifies the script, the same key must always be given
+     *               with the same script
+     * @return a null-looking value, see {@link #eval(String)}
+     * @throws RuntimeException If an error occurs during script compilation or
+     *                          execution.
+     */
+    public Object eval(String script, String key) throws RuntimeException {
+        return onInterpreter(() -> {
+            if (!compiled.contains(key)) {
+                if (compiled.size() >= MAX_COMPILED) {
+                    jepInterpreter.exec("_mdq_code.clear()");
+                    compiled.clear();
+                }
+                jepInterpreter.invoke("_mdq_compile", key, script);
+                compiled.add(key);
+            }
+            jepInterpreter.invoke("_mdq_run", key);
+            return "_NA_";
+        });
+    }
+
+    /**
+     * Remove every global variable and function defined since the interpreter
+     * was created, so that it can be reused without the state of previous checks.
+     * Imported modules stay loaded.
+     */
+    public void reset() {
+        eval(RESET_GLOBALS);
+        shared.clear();
+    }
+
+    /**
+     * Set a variable to a value that is shared by many checks, e.g. the
+     * serialized document, which is the same object for every check of a run.
+     * The value is only copied into the interpreter when it changes, and is
+     * assigned to the variable from a hidden copy for each check, so a check
+     * that reassigns the variable doesn't affect the next one.
+     *
+     * @param key   the variable name
+     * @param value the value, compared by identity with the previous value
+     */
+    public void putShared(String key, Object value) {
+        onInterpreter(() -> {
+            if (shared.get(key) != value || !shared.containsKey(key)) {
+                jepInterpreter.set(SHARED_PREFIX + key, value);
+                shared.put(key, value);
+            }
+            jepInterpreter.exec(key + " = " + SHARED_PREFIX + key);
+            return null;
+        });
     }
 
+    /**
+     * Collect the results of a python check in one call to the interpreter,
+     * rather than getting each variable in turn: the 'mdq_result' if the check
+     * set one, or else the value returned by calling the check's call()
+     * function, followed by the 'output', 'output_identifiers', 'output_type'
+     * and 'status' variables.
+     *
+     * @return a list holding either the mdq_result, or the other five values,
+     *         which are null if they are not set
+     * @throws RuntimeException if call() is not defined, or raises an error
+     */
+    public List<?> harvest() {
+        return onInterpreter(() -> (List<?>) jepInterpreter.invoke("_mdq_harvest"));
+    }
+
+    /**
+     * Close the interpreter, and stop its thread if it has one.
+     */
     public void close() {
+        if (abandoned) {
+            // the interpreter thread is busy, and the interpreter can only be
+            // closed by it
+            interpreterThread.shutdownNow();
+            return;
+        }
         try {
-            jepInterpreter.close();
-        } catch (JepException e) {
-            throw new RuntimeException(e);
+            onInterpreter(() -> {
+                jepInterpreter.close();
+                return null;
+            });
+        } finally {
+            if (interpreterThread != null) {
+                interpreterThread.shutdown();
+            }
         }
     }
 
@@ -95,12 +439,7 @@ public class JepScriptEngine implements ScriptEngine {
      */
     @Override
     public Object get(String key) {
-        try {
-            Object object = jepInterpreter.getValue(key);
-            return object;
-        } catch (JepException e) {
-            throw new RuntimeException(e);
-        }
+        return onInterpreter(() -> jepInterpreter.getValue(key));
     }
 
     /**
@@ -113,11 +452,10 @@ public class JepScriptEngine implements ScriptEngine {
      */
     @Override
     public void put(String key, Object value) {
-        try {
+        onInterpreter(() -> {
             jepInterpreter.set(key, value);
-        } catch (JepException e) {
-            throw new RuntimeException(e);
-        }
+            return null;
+        });
     }
 
     /**
@@ -1,79 +1,680 @@
 package edu.ucsb.nceas.mdqengine.dispatch;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
+import edu.ucsb.nceas.mdqengine.MDQconfig;
+
+/**
+ * A local cache of content fetched from URLs, shared by every check (see the
+ * mdq-cache helpers for python, R and JavaScript).
+ *
+ * Each URL is kept in a file named by the MD5 hash of the URL, with the time it
+ * was last validated and its ETag and Last-Modified headers alongside it. An
+ * entry is used without contacting the server for 'cache.ttl' seconds (default
+ * 3600), after which it is revalidated with a conditional request. If the server
+ * can't be reached, the cached copy is used anyway, and the server isn't asked
+ * again for another 'cache.ttl' seconds.
+ *
+ * Only one thread fetches a given URL at a time, and other threads asking for
+ * it wait for that fetch. Files are written to a temporary file and renamed, so
+ * a reader never sees a partly written file. The least recently used entries
+ * are removed when the cache is larger than 'cache.disk.size' MB (default
+ * 1024), and small entries read as text are also kept in memory, up to
+ * 'cache.memory.size' MB (default 16).
+ *
+ * The entries can be exported to a bundle, a zip file with a manifest of the
+ * SHA-256 hash of each file, and imported from one, so that a new process starts
+ * with the content another process has already fetched.
+ */
 public class MDQCache {
-	
+
+	public static Log log = LogFactory.getLog(MDQCache.class);
+
 	public static String DIRECTORY_PROPERTY = "MDQE_CACHE_DIR";
-		
+
+	public static final int DEFAULT_TTL = 3600;
+	public static final int DEFAULT_DISK_SIZE = 1024;
+	public static final int DEFAULT_MEMORY_SIZE = 16;
+
+	// milliseconds to wait for a server when fetching content
+	private static final int CONNECT_TIMEOUT = 10 * 1000;
+	private static final int READ_TIMEOUT = 30 * 1000;
+
+	private static final String METADATA_SUFFIX = ".properties";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final String BUNDLE_MANIFEST = "manifest.properties";
+
+	// milliseconds an entry is kept after its path is returned, so that a check
+	// can open the file before it is evicted
+	public static final long DEFAULT_SERVED_GRACE = 30 * 1000;
+	static long servedGraceMillis = DEFAULT_SERVED_GRACE;
+
 	private static String cacheDir = null;
-	
+
+	private static long ttlMillis;
+	private static long maxDiskBytes;
+	private static long maxMemoryBytes;
+
+	// the cached entries, least recently used first
+	private static LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private static long diskBytes = 0;
+
+	// the content of small entries, least recently used first
+	private static LinkedHashMap<String, byte[]> memory = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+	private static long memoryBytes = 0;
+
+	// the fetches in progress, by key
+	private static Map<String, CompletableFuture<Void>> fetches = new ConcurrentHashMap<String, CompletableFuture<Void>>();
+
+	private static AtomicLong hits = new AtomicLong();
+	private static AtomicLong memoryHits = new AtomicLong();
+	private static AtomicLong misses = new AtomicLong();
+	private static AtomicLong revalidations = new AtomicLong();
+	private static AtomicLong staleHits = new AtomicLong();
+	private static AtomicLong bytesFetched = new AtomicLong();
+	private static AtomicLong evictions = new AtomicLong();
+
 	static {
 		initialize(null);
 	}
-	
+
+	/**
+	 * A cached URL.
+	 */
+	private static class Entry {
+		long size;
+		long validated;
+		long served = 0;
+
+		Entry(long size, long validated) {
+			this.size = size;
+			this.validated = validated;
+		}
+	}
+
+	/**
+	 * Use the given directory for the cache, or the mdq_cache directory in the
+	 * temporary directory if it is null. The files already in the directory are
+	 * part of the cache. Initializing the cache again with the directory it
+	 * already uses only reads the configured limits again.
+	 *
+	 * @param dir the cache directory, ending with a separator
+	 */
 	public static void initialize(String dir) {
 		if (dir == null) {
-			cacheDir = System.getProperty("java.io.tmpdir");
-			if (!cacheDir.endsWith(File.separator)) {
-				cacheDir += File.separator;
+			dir = System.getProperty("java.io.tmpdir");
+			if (!dir.endsWith(File.separator)) {
+				dir += File.separator;
 			}
-			cacheDir += "mdq_cache" + File.separator;
-		} else {
-			cacheDir = dir;
+			dir += "mdq_cache" + File.separator;
 		}
 		// make sure it exists
-		File d = new File(cacheDir);
+		File d = new File(dir);
 		if (!d.exists()) {
 			d.mkdirs();
 		}
-		System.setProperty(DIRECTORY_PROPERTY, cacheDir);
+
+		int ttl = DEFAULT_TTL;
+		int diskSize = DEFAULT_DISK_SIZE;
+		int memorySize = DEFAULT_MEMORY_SIZE;
+		try {
+			MDQconfig cfg = new MDQconfig();
+			ttl = cfg.getInt("cache.ttl", DEFAULT_TTL);
+			diskSize = cfg.getInt("cache.disk.size", DEFAULT_DISK_SIZE);
+			memorySize = cfg.getInt("cache.memory.size", DEFAULT_MEMORY_SIZE);
+		} catch (Exception e) {
+			log.debug("Could not read the cache configuration, using the defaults: " + e.getMessage());
+		}
+
+		synchronized (MDQCache.class) {
+			configure(ttl, Math.max(diskSize, 1) * 1024L * 1024L, Math.max(memorySize, 0) * 1024L * 1024L);
+			// an engine is created for each report, don't index the directory again for each one
+			if (!dir.equals(cacheDir)) {
+				cacheDir = dir;
+				memory.clear();
+				memoryBytes = 0;
+				load(d);
+			}
+		}
+		System.setProperty(DIRECTORY_PROPERTY, dir);
+	}
+
+	/**
+	 * Set the limits of the cache, removing entries that no longer fit.
+	 *
+	 * @param ttl            the seconds an entry is used without revalidating it
+	 * @param maxDiskBytes   the most bytes of content kept on disk
+	 * @param maxMemoryBytes the most bytes of content kept in memory
+	 */
+	static synchronized void configure(int ttl, long maxDiskBytes, long maxMemoryBytes) {
+		MDQCache.ttlMillis = Math.max(ttl, 0) * 1000L;
+		MDQCache.maxDiskBytes = maxDiskBytes;
+		MDQCache.maxMemoryBytes = maxMemoryBytes;
+		trimMemory();
+		evict(null);
+	}
+
+	// remove the least recently used entries from memory until it fits
+	private static void trimMemory() {
+		Iterator<Map.Entry<String, byte[]>> eldest = memory.entrySet().iterator();
+		while (memoryBytes > maxMemoryBytes && eldest.hasNext()) {
+			memoryBytes -= eldest.next().getValue().length;
+			eldest.remove();
+		}
+	}
+
+	// index the files already in the cache directory, oldest first
+	private static void load(File dir) {
+		entries.clear();
+		diskBytes = 0;
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		List<File> contents = new ArrayList<File>();
+		for (File file : files) {
+			String name = file.getName();
+			if (name.endsWith(TEMP_SUFFIX)) {
+				// left behind by a process that stopped while writing
+				file.delete();
+			} else if (file.isFile() && !name.endsWith(METADATA_SUFFIX)) {
+				contents.add(file);
+			}
+		}
+		contents.sort(Comparator.comparingLong(File::lastModified));
+		for (File file : contents) {
+			long validated = file.lastModified();
+			Properties metadata = readMetadata(new File(dir, file.getName() + METADATA_SUFFIX));
+			if (metadata.getProperty("validated") != null) {
+				try {
+					validated = Long.parseLong(metadata.getProperty("validated"));
+				} catch (NumberFormatException e) {
+					// use the time the file was written
+				}
+			}
+			entries.put(file.getName(), new Entry(file.length(), validated));
+			diskBytes += file.length();
+		}
+		evict(null);
 	}
-	
+
 	public static String getCacheDir() {
 		return cacheDir;
 	}
-	
+
+	/**
+	 * Get the cached copy of a URL, fetching it if it is not cached or has not
+	 * been validated for longer than the TTL.
+	 *
+	 * @param url the URL
+	 * @return the path of the cached file, whose name is the MD5 hash of the URL.
+	 *         The file isn't evicted for a while after it is returned, see
+	 *         {@link #DEFAULT_SERVED_GRACE}
+	 * @throws IOException if the URL can't be fetched and there is no cached copy
+	 */
 	public static String get(String url) throws IOException {
-		File f = null;
-		
-		// get MD5 of the URL string as the standard filename in the cache dir
-		String key = url.toString();
-		key = DigestUtils.md5Hex(key);
-		
-		// make sure we have the cache directory
+		String key = DigestUtils.md5Hex(url);
+		lookup(key, new URL(url));
+		return new File(cacheDir, key).getAbsolutePath();
+	}
+
+	/**
+	 * Get the content of a URL as UTF-8 text, through the cache as for
+	 * {@link #get(String)}. Small entries are kept in memory as well. URLs that
+	 * aren't http(s), e.g. file: or jar: URLs, are read directly.
+	 *
+	 * @param url the URL of the content
+	 * @return the content
+	 * @throws IOException if the content can't be fetched and there is no cached
+	 *                     copy
+	 */
+	public static String getContent(URL url) throws IOException {
+		String protocol = url.getProtocol();
+		if (!protocol.equals("http") && !protocol.equals("https")) {
+			try (InputStream input = url.openStream()) {
+				return IOUtils.toString(input, "UTF-8");
+			}
+		}
+
+		String key = DigestUtils.md5Hex(url.toString());
+		if (lookup(key, url)) {
+			synchronized (MDQCache.class) {
+				byte[] content = memory.get(key);
+				if (content != null) {
+					memoryHits.incrementAndGet();
+					return new String(content, StandardCharsets.UTF_8);
+				}
+			}
+		}
+		byte[] content = Files.readAllBytes(new File(cacheDir, key).toPath());
+		synchronized (MDQCache.class) {
+			// only keep entries that are a small part of the memory tier
+			if (content.length <= maxMemoryBytes / 16 && entries.containsKey(key) && !memory.containsKey(key)) {
+				memory.put(key, content);
+				memoryBytes += content.length;
+				trimMemory();
+			}
+		}
+		return new String(content, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Make sure a URL is cached and current.
+	 *
+	 * @return true if the cached copy was current, false if it was fetched
+	 */
+	private static boolean lookup(String key, URL url) throws IOException {
+		synchronized (MDQCache.class) {
+			Entry entry = entries.get(key);
+			long now = System.currentTimeMillis();
+			if (entry != null && now - entry.validated < ttlMillis) {
+				entry.served = now;
+				hits.incrementAndGet();
+				return true;
+			}
+		}
+		fetch(key, url);
+		return false;
+	}
+
+	// only one thread fetches a key, the others wait for it
+	private static void fetch(String key, URL url) throws IOException {
+		CompletableFuture<Void> fetch = new CompletableFuture<Void>();
+		CompletableFuture<Void> running = fetches.putIfAbsent(key, fetch);
+		if (running != null) {
+			try {
+				running.get();
+				return;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for " + url);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new IOException("Could not fetch " + url, e.getCause());
+			}
+		}
+		try {
+			download(key, url);
+			fetch.complete(null);
+		} catch (IOException | RuntimeException e) {
+			fetch.completeExceptionally(e);
+			throw e;
+		} finally {
+			fetches.remove(key, fetch);
+		}
+	}
+
+	private static void download(String key, URL url) throws IOException {
 		File dir = new File(cacheDir);
 		if (!dir.exists()) {
-			dir.mkdir();
+			dir.mkdirs();
 		}
-		
-		// look for the file
-		String path = cacheDir + key;
-		f = new File(path);
+		File content = new File(dir, key);
+		File metadata = new File(dir, key + METADATA_SUFFIX);
+		boolean cached;
+		synchronized (MDQCache.class) {
+			cached = entries.containsKey(key) && content.exists();
+		}
+		Properties validators = cached ? readMetadata(metadata) : new Properties();
 
-		// if we don't find it, then download and store it
-		if (!f.exists()) {
-			InputStream input = new URL(url).openStream();
-			IOUtils.copyLarge(input, new FileOutputStream(f));
+		try {
+			URLConnection connection = url.openConnection();
+			connection.setConnectTimeout(CONNECT_TIMEOUT);
+			connection.setReadTimeout(READ_TIMEOUT);
+			if (connection instanceof HttpURLConnection http) {
+				if (validators.getProperty("etag") != null) {
+					http.setRequestProperty("If-None-Match", validators.getProperty("etag"));
+				}
+				if (validators.getProperty("last-modified") != null) {
+					http.setRequestProperty("If-Modified-Since", validators.getProperty("last-modified"));
+				}
+				int status = http.getResponseCode();
+				if (status == HttpURLConnection.HTTP_NOT_MODIFIED && cached) {
+					http.disconnect();
+					revalidations.incrementAndGet();
+					log.debug("Cached copy of " + url + " is current");
+					validators.setProperty("validated", String.valueOf(System.currentTimeMillis()));
+					writeMetadata(metadata, validators);
+					validated(key, content.length(), false);
+					return;
+				}
+				if (status != HttpURLConnection.HTTP_OK) {
+					http.disconnect();
+					throw new IOException("HTTP status " + status);
+				}
+			}
+			byte[] bytes;
+			try (InputStream input = connection.getInputStream()) {
+				bytes = IOUtils.toByteArray(input);
+			}
+			if (!cached) {
+				misses.incrementAndGet();
+			}
+			bytesFetched.addAndGet(bytes.length);
+			store(content, bytes);
+			Properties fetched = new Properties();
+			fetched.setProperty("url", url.toString());
+			fetched.setProperty("validated", String.valueOf(System.currentTimeMillis()));
+			if (connection.getHeaderField("ETag") != null) {
+				fetched.setProperty("etag", connection.getHeaderField("ETag"));
+			}
+			if (connection.getHeaderField("Last-Modified") != null) {
+				fetched.setProperty("last-modified", connection.getHeaderField("Last-Modified"));
+			}
+			writeMetadata(metadata, fetched);
+			validated(key, bytes.length, true);
+			log.debug("Fetched " + url + " into the cache");
+		} catch (IOException e) {
+			if (cached) {
+				staleHits.incrementAndGet();
+				log.warn("Could not fetch " + url + ", using the cached copy: " + e.getMessage());
+				// don't wait on the server for every use while it is down, only in memory
+				// so that the entry isn't exported or read on restart as current
+				validated(key, content.length(), false);
+				return;
+			}
+			throw new IOException("Could not fetch " + url + ": " + e.getMessage(), e);
 		}
-		
-		// done!
-		return f.getAbsolutePath();
-		
 	}
-	
-	public static void clearCache() {
-		File dir = new File(cacheDir);
-		if (dir.exists()) {
-			dir.delete();
+
+	// record that an entry is current, with its new size if it was fetched again
+	private static synchronized void validated(String key, long size, boolean changed) {
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			entry = new Entry(0, 0);
+			entries.put(key, entry);
+		}
+		diskBytes += size - entry.size;
+		entry.size = size;
+		entry.validated = System.currentTimeMillis();
+		entry.served = entry.validated;
+		if (changed) {
+			byte[] content = memory.remove(key);
+			if (content != null) {
+				memoryBytes -= content.length;
+			}
+		}
+		evict(key);
+	}
+
+	// remove the least recently used entries until the cache fits, except the
+	// given one and the ones that may still be about to be opened
+	private static void evict(String keep) {
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+		while (diskBytes > maxDiskBytes && eldest.hasNext()) {
+			Map.Entry<String, Entry> entry = eldest.next();
+			String key = entry.getKey();
+			if (key.equals(keep) || fetches.containsKey(key) || now - entry.getValue().served < servedGraceMillis) {
+				continue;
+			}
+			eldest.remove();
+			diskBytes -= entry.getValue().size;
+			byte[] content = memory.remove(key);
+			if (content != null) {
+				memoryBytes -= content.length;
+			}
+			new File(cacheDir, key).delete();
+			new File(cacheDir, key + METADATA_SUFFIX).delete();
+			evictions.incrementAndGet();
+			log.debug("Removed " + key + " from the cache");
+		}
+	}
+
+	private static Properties readMetadata(File metadata) {
+		Properties properties = new Properties();
+		if (metadata.exists()) {
+			try (InputStream input = new FileInputStream(metadata)) {
+				properties.load(input);
+			} catch (IOException e) {
+				log.debug("Could not read " + metadata + ": " + e.getMessage());
+			}
+		}
+		return properties;
+	}
+
+	private static void writeMetadata(File metadata, Properties properties) throws IOException {
+		try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+			properties.store(out, null);
+			store(metadata, out.toByteArray());
+		}
+	}
+
+	// write to a temporary file first, so a reader never sees a partly written file
+	private static void store(File file, byte[] bytes) throws IOException {
+		File temp = File.createTempFile(file.getName() + "-", TEMP_SUFFIX, file.getParentFile());
+		try {
+			try (OutputStream out = new FileOutputStream(temp)) {
+				out.write(bytes);
+			}
+			try {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Write every entry of the cache to a bundle, replacing the bundle if it
+	 * exists. The bundle is written to a temporary file and renamed, so a process
+	 * importing it never sees a partly written bundle.
+	 *
+	 * @param bundle the bundle file
+	 * @return the number of entries written
+	 * @throws IOException if the bundle can't be written
+	 */
+	public static int exportBundle(File bundle) throws IOException {
+		List<String> keys;
+		synchronized (MDQCache.class) {
+			keys = new ArrayList<String>(entries.keySet());
+		}
+		File dir = bundle.getAbsoluteFile().getParentFile();
+		if (!dir.exists()) {
+			dir.mkdirs();
+		}
+		Properties manifest = new Properties();
+		int exported = 0;
+		File temp = File.createTempFile(bundle.getName() + "-", TEMP_SUFFIX, dir);
+		try {
+			try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(temp))) {
+				for (String key : keys) {
+					byte[] content;
+					byte[] metadata;
+					try {
+						content = Files.readAllBytes(new File(cacheDir, key).toPath());
+						metadata = Files.readAllBytes(new File(cacheDir, key + METADATA_SUFFIX).toPath());
+					} catch (IOException e) {
+						// removed since the keys were listed
+						continue;
+					}
+					writeBundleEntry(zip, manifest, key, content);
+					writeBundleEntry(zip, manifest, key + METADATA_SUFFIX, metadata);
+					exported++;
+				}
+				zip.putNextEntry(new ZipEntry(BUNDLE_MANIFEST));
+				manifest.store(zip, "SHA-256 hashes of the cache bundle entries");
+				zip.closeEntry();
+			}
+			try {
+				Files.move(temp.toPath(), bundle.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp.toPath(), bundle.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			temp.delete();
+		}
+		log.info("Exported " + exported + " cache entries to " + bundle);
+		return exported;
+	}
+
+	private static void writeBundleEntry(ZipOutputStream zip, Properties manifest, String name, byte[] bytes)
+			throws IOException {
+		zip.putNextEntry(new ZipEntry(name));
+		zip.write(bytes);
+		zip.closeEntry();
+		manifest.setProperty(name, DigestUtils.sha256Hex(bytes));
+	}
+
+	/**
+	 * Add the entries of a bundle to the cache. An entry is only imported if its
+	 * hashes match the manifest, and if the cache doesn't already have a copy that
+	 * was validated more recently. Imported entries keep the time they were last
+	 * validated, so entries older than the TTL are revalidated when they are first
+	 * used.
+	 *
+	 * @param bundle the bundle file
+	 * @return the number of entries imported
+	 * @throws IOException if the bundle can't be read
+	 */
+	public static int importBundle(File bundle) throws IOException {
+		int imported = 0;
+		try (ZipFile zip = new ZipFile(bundle)) {
+			ZipEntry manifestEntry = zip.getEntry(BUNDLE_MANIFEST);
+			if (manifestEntry == null) {
+				throw new IOException(bundle + " is not a cache bundle, it has no " + BUNDLE_MANIFEST);
+			}
+			Properties manifest = new Properties();
+			try (InputStream input = zip.getInputStream(manifestEntry)) {
+				manifest.load(input);
+			}
+			File dir = new File(cacheDir);
+			for (String key : manifest.stringPropertyNames()) {
+				if (key.endsWith(METADATA_SUFFIX) || !key.matches("[0-9a-f]{32}")) {
+					continue;
+				}
+				byte[] content = readBundleEntry(zip, manifest, key);
+				byte[] metadata = readBundleEntry(zip, manifest, key + METADATA_SUFFIX);
+				if (content == null || metadata == null) {
+					log.warn("Skipping cache bundle entry " + key + ", it is missing or does not match its hash");
+					continue;
+				}
+				Properties properties = new Properties();
+				properties.load(new ByteArrayInputStream(metadata));
+				long validated;
+				try {
+					validated = Long.parseLong(properties.getProperty("validated", "0"));
+				} catch (NumberFormatException e) {
+					validated = 0;
+				}
+				synchronized (MDQCache.class) {
+					Entry entry = entries.get(key);
+					if (fetches.containsKey(key) || (entry != null && entry.validated >= validated)) {
+						continue;
+					}
+					store(new File(dir, key), content);
+					store(new File(dir, key + METADATA_SUFFIX), metadata);
+					if (entry == null) {
+						entry = new Entry(0, 0);
+						entries.put(key, entry);
+					}
+					diskBytes += content.length - entry.size;
+					entry.size = content.length;
+					entry.validated = validated;
+					byte[] cached = memory.remove(key);
+					if (cached != null) {
+						memoryBytes -= cached.length;
+					}
+					imported++;
+				}
+			}
+			synchronized (MDQCache.class) {
+				evict(null);
+			}
+		}
+		log.info("Imported " + imported + " cache entries from " + bundle);
+		return imported;
+	}
+
+	// the content of a bundle entry, or null if it is missing or doesn't match the manifest
+	private static byte[] readBundleEntry(ZipFile zip, Properties manifest, String name) throws IOException {
+		ZipEntry entry = zip.getEntry(name);
+		String hash = manifest.getProperty(name);
+		if (entry == null || hash == null) {
+			return null;
+		}
+		byte[] bytes;
+		try (InputStream input = zip.getInputStream(entry)) {
+			bytes = IOUtils.toByteArray(input);
+		}
+		return hash.equals(DigestUtils.sha256Hex(bytes)) ? bytes : null;
+	}
+
+	/**
+	 * Get the cache metrics: hits (entries used without contacting the server),
+	 * memoryHits (of those, read from memory), misses (URLs that weren't cached),
+	 * revalidations (entries the server said were unchanged), staleHits (entries
+	 * used because the server couldn't be reached), bytesFetched, evictions, and
+	 * the current diskBytes, memoryBytes and entries.
+	 *
+	 * @return the metrics, by name
+	 */
+	public static synchronized Map<String, Long> getMetrics() {
+		Map<String, Long> metrics = new LinkedHashMap<String, Long>();
+		metrics.put("hits", hits.get());
+		metrics.put("memoryHits", memoryHits.get());
+		metrics.put("misses", misses.get());
+		metrics.put("revalidations", revalidations.get());
+		metrics.put("staleHits", staleHits.get());
+		metrics.put("bytesFetched", bytesFetched.get());
+		metrics.put("evictions", evictions.get());
+		metrics.put("diskBytes", diskBytes);
+		metrics.put("memoryBytes", memoryBytes);
+		metrics.put("entries", (long) entries.size());
+		return metrics;
+	}
+
+	/**
+	 * Remove every entry from the cache.
+	 */
+	public static synchronized void clearCache() {
+		for (String key : new ArrayList<String>(entries.keySet())) {
+			new File(cacheDir, key).delete();
+			new File(cacheDir, key + METADATA_SUFFIX).delete();
 		}
+		entries.clear();
+		diskBytes = 0;
+		memory.clear();
+		memoryBytes = 0;
 	}
 
 }
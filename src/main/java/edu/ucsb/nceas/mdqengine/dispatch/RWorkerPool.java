@@ -0,0 +1,386 @@
+package edu.ucsb.nceas.mdqengine.dispatch;
+
+import edu.ucsb.nceas.mdqengine.MDQconfig;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A number of long-lived R processes that run R checks, so that each check
+ * doesn't pay for starting R and loading jsonlite.
+ *
+ * Each process runs code/mdq-r-worker.R, which loads jsonlite, sources
+ * code/helper.R and then connects back to the engine on a local socket to
+ * receive checks. A check is run in the process's global environment, with
+ * the same variables and result conventions as a script run by Rscript.
+ * Before each check the global environment is cleared (including the random
+ * seed), and the options, the search path and the working directory are
+ * restored to how they were when the process started. Packages attached by a
+ * check are detached again, but stay loaded for the next one.
+ *
+ * Processes are started when first needed, up to 'r.pool.size' (default 2).
+ * An idle process is pinged before it is given a check, and one that has
+ * exited, e.g. because a check called quit(), or that doesn't answer is
+ * replaced. A check that runs for longer than its time budget is stopped by
+ * killing its process.
+ */
+public class RWorkerPool {
+
+    public static Log log = LogFactory.getLog(RWorkerPool.class);
+
+    public static final int DEFAULT_SIZE = 2;
+
+    private static final String WORKER_SCRIPT = "code/mdq-r-worker.R";
+    private static final String HELPER_SCRIPT = "code/helper.R";
+
+    // how long to wait for a new process to load its packages and connect
+    private static final int START_TIMEOUT = 60 * 1000;
+
+    // how long an idle process has to answer a ping
+    private static final int PING_TIMEOUT = 5 * 1000;
+
+    private static RWorkerPool shared = null;
+
+    private int size;
+    private int started = 0;
+    private Semaphore permits;
+    private BlockingQueue<RWorker> idle = new LinkedBlockingQueue<>();
+    private List<RWorker> workers = new ArrayList<>();
+    private File workerScript = null;
+    private File helperScript = null;
+
+    /**
+     * Create a pool. No processes are started until a check is run.
+     *
+     * @param size the maximum number of R processes
+     */
+    public RWorkerPool(int size) {
+        this.size = Math.max(size, 1);
+        this.permits = new Semaphore(this.size, true);
+    }
+
+    /**
+     * Get the pool shared by all R dispatchers in this process.
+     *
+     * @return the shared pool
+     */
+    public static synchronized RWorkerPool getShared() {
+        if (shared == null) {
+            int size = DEFAULT_SIZE;
+            try {
+                size = new MDQconfig().getInt("r.pool.size", DEFAULT_SIZE);
+            } catch (Exception e) {
+                log.warn("Could not read 'r.pool.size', using " + DEFAULT_SIZE + " R processes: " + e.getMessage());
+            }
+            shared = new RWorkerPool(size);
+        }
+        return shared;
+    }
+
+    /**
+     * Run R code in one of the pool's processes, waiting for a process to be free
+     * if they are all busy.
+     *
+     * @param code      the check code
+     * @param inputJson the check variables, as a JSON object
+     * @param timeout   the number of seconds the check can run for, or 0 for no
+     *                  limit
+     * @return the response of the process
+     * @throws IOException      if a process can't be started
+     * @throws TimeoutException if the check ran out of time, and was stopped
+     */
+    public Response run(String code, String inputJson, int timeout) throws IOException, TimeoutException {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for an R process");
+        }
+        RWorker worker = null;
+        try {
+            worker = idle.poll();
+            if (worker != null && !worker.isAlive()) {
+                log.warn("R process " + worker.name + " has exited, replacing it");
+                discard(worker);
+                worker = null;
+            } else if (worker != null && !worker.ping(PING_TIMEOUT)) {
+                log.warn("R process " + worker.name + " did not answer a ping, replacing it");
+                discard(worker);
+                worker = null;
+            }
+            if (worker == null) {
+                worker = start();
+            }
+            Response response;
+            try {
+                response = worker.run(code, inputJson, Math.max(timeout, 0) * 1000);
+            } catch (SocketTimeoutException e) {
+                log.warn("R process " + worker.name + " did not complete a check within " + timeout
+                        + " seconds, stopping it");
+                discard(worker);
+                worker = null;
+                throw new TimeoutException("The check did not complete within " + timeout + " seconds");
+            } catch (IOException e) {
+                log.warn("R process " + worker.name + " failed, replacing it: " + e.getMessage());
+                discard(worker);
+                worker = null;
+                return new Response(false, "Error: the R process running the check exited: " + e.getMessage());
+            }
+            idle.add(worker);
+            worker = null;
+            return response;
+        } finally {
+            if (worker != null) {
+                discard(worker);
+            }
+            permits.release();
+        }
+    }
+
+    private RWorker start() throws IOException {
+        String name;
+        synchronized (this) {
+            if (workerScript == null) {
+                workerScript = extract(WORKER_SCRIPT);
+                helperScript = extract(HELPER_SCRIPT);
+            }
+            name = "mdq-r-" + (++started);
+        }
+        RWorker worker = new RWorker(name, workerScript, helperScript);
+        synchronized (this) {
+            workers.add(worker);
+        }
+        log.debug("Started R process " + name);
+        return worker;
+    }
+
+    private synchronized void discard(RWorker worker) {
+        workers.remove(worker);
+        worker.close();
+    }
+
+    // Rscript needs the scripts on the file system, not in the jar
+    private static File extract(String resource) throws IOException {
+        InputStream in = RWorkerPool.class.getClassLoader().getResourceAsStream(resource);
+        if (in == null) {
+            throw new IOException("Could not find " + resource);
+        }
+        String name = new File(resource).getName();
+        File file = File.createTempFile(name.substring(0, name.lastIndexOf('.')) + "-", ".R");
+        file.deleteOnExit();
+        try (InputStream is = in; OutputStream out = new FileOutputStream(file)) {
+            IOUtils.copy(is, out);
+        }
+        return file;
+    }
+
+    /**
+     * Get the maximum number of processes in the pool.
+     *
+     * @return the pool size
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the number of processes that are running.
+     *
+     * @return the number of processes
+     */
+    public synchronized int running() {
+        return workers.size();
+    }
+
+    /**
+     * Stop all of the processes. Checks that are running are stopped as well, so
+     * this should only be called once no more checks will be run.
+     */
+    public synchronized void close() {
+        for (RWorker worker : workers) {
+            worker.close();
+        }
+        workers.clear();
+        idle.clear();
+        synchronized (RWorkerPool.class) {
+            if (shared == this) {
+                shared = null;
+            }
+        }
+    }
+
+    /**
+     * The outcome of a check run by an R process: either the JSON encoded
+     * mdq_result, or an error message.
+     */
+    public static class Response {
+
+        private boolean ok;
+        private String text;
+
+        Response(boolean ok, String text) {
+            this.ok = ok;
+            this.text = text;
+        }
+
+        public boolean isOk() {
+            return ok;
+        }
+
+        public String getText() {
+            return text;
+        }
+    }
+
+    /**
+     * An R process and its connection. Used by one thread at a time.
+     */
+    static class RWorker {
+
+        private String name;
+        private Process process;
+        private Socket socket;
+        private DataInputStream in;
+        private OutputStream out;
+
+        RWorker(String name, File workerScript, File helperScript) throws IOException {
+            this.name = name;
+            try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+                ProcessBuilder pb = new ProcessBuilder(
+                        "Rscript",
+                        "--vanilla",
+                        workerScript.getAbsolutePath(),
+                        String.valueOf(server.getLocalPort()),
+                        helperScript.getAbsolutePath());
+                pb.environment().put(MDQCache.DIRECTORY_PROPERTY, MDQCache.getCacheDir());
+                pb.redirectErrorStream(true);
+                process = pb.start();
+                drain(name, process.getInputStream());
+
+                // wait for the process to connect, unless it exits first
+                server.setSoTimeout(1000);
+                long deadline = System.currentTimeMillis() + START_TIMEOUT;
+                while (socket == null) {
+                    try {
+                        socket = server.accept();
+                    } catch (SocketTimeoutException e) {
+                        if (!process.isAlive()) {
+                            throw new IOException("R process " + name + " exited with status "
+                                    + process.exitValue() + " before it was ready");
+                        }
+                        if (System.currentTimeMillis() > deadline) {
+                            throw new IOException("R process " + name + " was not ready after "
+                                    + START_TIMEOUT / 1000 + " seconds");
+                        }
+                    }
+                }
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out = socket.getOutputStream();
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        // log what checks print, and keep the process from blocking on a full pipe
+        private static void drain(String name, InputStream stream) {
+            Thread thread = new Thread(() -> {
+                try (BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        log.debug(name + ": " + line);
+                    }
+                } catch (IOException e) {
+                    // the process has exited
+                }
+            }, name + "-output");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        boolean isAlive() {
+            return process.isAlive() && !socket.isClosed();
+        }
+
+        // check that the process still reads requests and answers them in step
+        boolean ping(int timeoutMillis) {
+            try {
+                out.write("PING\n".getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                socket.setSoTimeout(timeoutMillis);
+                return "OK 0".equals(readLine());
+            } catch (IOException e) {
+                log.debug("R process " + name + " did not answer a ping: " + e.getMessage());
+                return false;
+            }
+        }
+
+        Response run(String code, String inputJson, int timeoutMillis) throws IOException {
+            byte[] codeBytes = code.getBytes(StandardCharsets.UTF_8);
+            byte[] inputBytes = inputJson.getBytes(StandardCharsets.UTF_8);
+            out.write((codeBytes.length + " " + inputBytes.length + "\n").getBytes(StandardCharsets.UTF_8));
+            out.write(codeBytes);
+            out.write(inputBytes);
+            out.flush();
+
+            socket.setSoTimeout(timeoutMillis);
+            String[] header = readLine().split(" ");
+            if (header.length != 2) {
+                throw new IOException("Unexpected response from R process " + name);
+            }
+            int length = Integer.parseInt(header[1]);
+            byte[] body = new byte[length];
+            in.readFully(body);
+            return new Response("OK".equals(header[0]), new String(body, StandardCharsets.UTF_8));
+        }
+
+        private String readLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b == -1) {
+                    throw new EOFException("R process " + name + " closed its connection");
+                }
+                line.write(b);
+            }
+            return new String(line.toByteArray(), StandardCharsets.UTF_8);
+        }
+
+        void close() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    log.debug("Could not close connection to R process " + name + ": " + e.getMessage());
+                }
+            }
+            if (process != null) {
+                process.destroyForcibly();
+            }
+        }
+    }
+}
@@ -27,6 +27,7 @@ import java.util.List;
  * <li>A code block or Java class that implements the logic</li>
  * <li>Optional library URLs for external script dependencies</li>
  * <li>An inheritState flag for sharing variables between checks</li>
+ * <li>An optional timeout overriding the default time budget of a check</li>
  * <li>One or more Selectors that extract values from the document</li>
  * <li>Dialects used to conditionally apply the check or ensure Check is valid
  * for a document</li>
@@ -89,6 +90,7 @@ public class Check {
 	 * 'JavaScript' (the JavaScript engine)
 	 * 'python' (the Jython engine)
 	 * 'Java' (Java class implementations of Callable<Result>)
+	 * 'builtin' (common tests run by the engine itself, see BuiltinCheck)
 	 */
 	@XmlElement(required = false)
 	private String environment;
@@ -130,6 +132,14 @@ public class Check {
 	@XmlElement(required = false)
 	private Boolean inheritState = false;
 
+	/**
+	 * The number of seconds the check can run for before it is stopped and given
+	 * an ERROR result. If not given, the engine's default time budget applies
+	 * ('engine.check.timeout'). A value of 0 means the check is not stopped.
+	 */
+	@XmlElement(required = false)
+	private Integer timeout;
+
 	/**
 	 * Selectors are used to extract certain parts of the metadata document and make
 	 * those values available to the Check.code. Each selector should have a unique
@@ -157,6 +167,42 @@ public class Check {
 	@XmlElement(required = false)
 	private List<Dialect> dialect;
 
+	/**
+	 * A hash of the definition this check was loaded from, if it was loaded by a
+	 * store. It is used to tell whether a compiled suite plan is still current,
+	 * and is not part of the serialized check.
+	 */
+	@XmlTransient
+	private String contentHash;
+
+	/**
+	 * Creates an empty check.
+	 */
+	public Check() {
+	}
+
+	/**
+	 * Creates a shallow copy of the given check, so that a suite can override the
+	 * level or type of a check without changing the shared definition.
+	 * 
+	 * @param other the check to copy
+	 */
+	public Check(Check other) {
+		this.id = other.id;
+		this.name = other.name;
+		this.description = other.description;
+		this.type = other.type;
+		this.level = other.level;
+		this.environment = other.environment;
+		this.code = other.code;
+		this.library = other.library;
+		this.inheritState = other.inheritState;
+		this.timeout = other.timeout;
+		this.selector = other.selector;
+		this.dialect = other.dialect;
+		this.contentHash = other.contentHash;
+	}
+
 	/**
 	 * Gets the unique identifier for the check.
 	 * 
@@ -365,4 +411,41 @@ public class Check {
 	public void setInheritState(Boolean inheritState) {
 		this.inheritState = inheritState;
 	}
+
+	/**
+	 * Gets the time budget of the check.
+	 * 
+	 * @return the timeout in seconds, or null to use the engine's default
+	 */
+	public Integer getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Sets the time budget of the check.
+	 * 
+	 * @param timeout the timeout in seconds, 0 for no limit, or null to use the
+	 *                engine's default
+	 */
+	public void setTimeout(Integer timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Gets the hash of the definition this check was loaded from.
+	 * 
+	 * @return the content hash, or null if the check was not loaded by a store
+	 */
+	public String getContentHash() {
+		return contentHash;
+	}
+
+	/**
+	 * Sets the hash of the definition this check was loaded from.
+	 * 
+	 * @param contentHash the content hash
+	 */
+	public void setContentHash(String contentHash) {
+		this.contentHash = contentHash;
+	}
 }
@@ -53,6 +53,14 @@ public class Suite {
 	})
 	private List<Check> check;
 
+	/**
+	 * A hash of the definition this suite was loaded from, if it was loaded by a
+	 * store. It is used to cache the compiled plan for the suite, and is not part
+	 * of the serialized suite.
+	 */
+	@XmlTransient
+	private String contentHash;
+
 	public String getId() {
 		return id;
 	}
@@ -105,4 +113,11 @@ public class Suite {
 		this.namespace = namespace;
 	}
 
+	public String getContentHash() {
+		return contentHash;
+	}
+
+	public void setContentHash(String contentHash) {
+		this.contentHash = contentHash;
+	}
 }
@@ -1,3 +1,3 @@
-@XmlSchema(namespace = "https://nceas.ucsb.edu/mdqe/v1.2")
+@XmlSchema(namespace = "https://nceas.ucsb.edu/mdqe/v1.3")
 package edu.ucsb.nceas.mdqengine.model;
 import javax.xml.bind.annotation.XmlSchema;
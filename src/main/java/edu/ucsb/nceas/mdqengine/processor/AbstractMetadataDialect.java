@@ -1,5 +1,7 @@
 package edu.ucsb.nceas.mdqengine.processor;
 
+import edu.ucsb.nceas.mdqengine.dispatch.Dispatcher;
+import edu.ucsb.nceas.mdqengine.model.Check;
 import edu.ucsb.nceas.mdqengine.model.Result;
 import edu.ucsb.nceas.mdqengine.model.Output;
 import edu.ucsb.nceas.mdqengine.model.Namespace;
@@ -9,12 +11,16 @@ import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import javax.xml.xpath.XPathExpressionException;
+
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import net.thisptr.jackson.jq.exception.JsonQueryException;
 import org.dataone.service.types.v2.SystemMetadata;
 
 /**
@@ -34,9 +40,28 @@ public abstract class AbstractMetadataDialect implements MetadataDialect {
 	protected String directory;
 	protected SystemMetadata systemMetadata;
 	protected Map<String, Namespace> namespaces = new HashMap<String, Namespace>();
+	private volatile RunContext runContext;
+
+	/**
+	 * The dispatcher used by the most recent check run on the current thread. Checks
+	 * with inheritState=true reuse it, and since a chain of inheriting checks always
+	 * runs on a single thread this stays correct when independent checks run
+	 * concurrently.
+	 */
+	protected ThreadLocal<Dispatcher> dispatcher = new ThreadLocal<Dispatcher>();
 
 	public static Log log = LogFactory.getLog(XMLDialect.class);
 
+	@Override
+	public Result runCheck(Check check) throws XPathExpressionException, JsonQueryException {
+		return runCheck(new CompiledCheck(check));
+	}
+
+	@Override
+	public void prepare(List<CompiledCheck> checks) {
+		// nothing to prepare by default
+	}
+
 	@Override
 	public Result postProcess(Result result) {
 		// Return the result as-is if there are no outputs to post-process
@@ -80,6 +105,11 @@ public abstract class AbstractMetadataDialect implements MetadataDialect {
 		return result;
 	}
 
+	@Override
+	public void resetState() {
+		dispatcher.remove();
+	}
+
 	@Override
 	public Map<String, Object> getParams() {
 		return params;
@@ -88,11 +118,13 @@ public abstract class AbstractMetadataDialect implements MetadataDialect {
 	@Override
 	public void setParams(Map<String, Object> params) {
 		this.params = params;
+		this.runContext = null;
 	}
 
 	@Override
 	public void setDirectory(String dir) {
 		this.directory = dir;
+		this.runContext = null;
 	}
 
 	@Override
@@ -103,5 +135,24 @@ public abstract class AbstractMetadataDialect implements MetadataDialect {
 	@Override
 	public void setSystemMetadata(SystemMetadata systemMetadata) {
 		this.systemMetadata = systemMetadata;
+		this.runContext = null;
+	}
+
+	@Override
+	public synchronized void setRunContext(RunContext runContext) {
+		this.runContext = runContext;
+	}
+
+	/**
+	 * Gets the run variables to give to each check, building them from the system
+	 * metadata, parameters and directory if they haven't been set.
+	 *
+	 * @return the run context
+	 */
+	protected synchronized RunContext getRunContext() {
+		if (runContext == null) {
+			runContext = new RunContext(systemMetadata, params, directory);
+		}
+		return runContext;
 	}
 }
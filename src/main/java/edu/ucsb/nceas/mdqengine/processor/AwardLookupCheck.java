@@ -11,6 +11,7 @@ import org.apache.commons.logging.LogFactory;
 
 import java.io.InputStream;
 import java.net.URL;
+import java.net.URLConnection;
 import java.net.MalformedURLException;
 import java.io.IOException;
 import net.minidev.json.parser.ParseException;
@@ -35,6 +36,11 @@ public class AwardLookupCheck implements Callable<Result> {
             + "primaryProgram"
             + "&id=";
 
+    // milliseconds to wait for the award service, so a slow service doesn't
+    // hold a check thread for the whole time budget of the check
+    private static final int CONNECT_TIMEOUT = 10 * 1000;
+    private static final int READ_TIMEOUT = 30 * 1000;
+
     // the award identifier[s]
     private Object awards;
 
@@ -67,11 +73,16 @@ public class AwardLookupCheck implements Callable<Result> {
                     url = new URL(apiUrl + idString);
                     log.debug("URL=" + url.toString());
 
-                    InputStream jsonStream = url.openStream();
+                    URLConnection connection = url.openConnection();
+                    connection.setConnectTimeout(CONNECT_TIMEOUT);
+                    connection.setReadTimeout(READ_TIMEOUT);
 
                     // parse the JSON array directly
                     JSONParser parser = new JSONParser(JSONParser.DEFAULT_PERMISSIVE_MODE);
-                    JSONObject json = (JSONObject) parser.parse(jsonStream);
+                    JSONObject json;
+                    try (InputStream jsonStream = connection.getInputStream()) {
+                        json = (JSONObject) parser.parse(jsonStream);
+                    }
 
                     JSONObject jsonResponse = (JSONObject) json.get("response");
                     JSONArray jsonAwards = (JSONArray) jsonResponse.get("award");
@@ -0,0 +1,525 @@
+package edu.ucsb.nceas.mdqengine.processor;
+
+import edu.ucsb.nceas.mdqengine.model.Output;
+import edu.ucsb.nceas.mdqengine.model.Result;
+import edu.ucsb.nceas.mdqengine.model.Status;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A check of the 'builtin' environment: one of a few common tests, implemented
+ * in Java and run by the dialect itself, without a script engine.
+ *
+ * The code of a builtin check names the test on its first line, followed by
+ * its parameters, one 'name = value' per line. Blank lines and lines starting
+ * with '#' are ignored. For example:
+ *
+ * <pre>
+ * length
+ * variable = abstract
+ * unit = words
+ * min = 100
+ * failure = The abstract word count of {value} is less than the recommended minimum of {min}
+ * </pre>
+ *
+ * The tests are:
+ * <ul>
+ * <li>present: the variable has a value that isn't blank</li>
+ * <li>length: the length of the variable's value is at least 'min' and at
+ * most 'max' characters, or words with 'unit = words'. The values of a
+ * variable that selects several nodes are joined with a space.</li>
+ * <li>matches: every value of the variable matches the regular expression
+ * 'pattern', or at least one of them with 'all = false'</li>
+ * <li>count: the variable has at least 'min' and at most 'max' values that
+ * aren't blank. A variable whose value is a number, e.g. the value of a
+ * count() xpath, is taken as the count.</li>
+ * </ul>
+ *
+ * Every test takes the 'variable' to test, which is the name of one of the
+ * check's selectors, and optionally the 'success' and 'failure' output
+ * messages. The present, length and matches tests fail with the 'missing'
+ * message (or else the failure message, if given) if the variable has no
+ * value. In the messages, {value} is replaced with what was measured (the
+ * length, the number of values or of matching values) and {name} with the
+ * parameter of that name.
+ */
+public abstract class BuiltinCheck {
+
+    /** The environment of builtin checks */
+    public static final String ENVIRONMENT = "builtin";
+
+    private static final Pattern PLACEHOLDER = Pattern.compile("\\{(\\w+)\\}");
+
+    private static final String MISSING = "'{variable}' was not found or is blank";
+
+    private static final Set<String> COMMON_PARAMETERS = new HashSet<String>(
+            Arrays.asList("variable", "success", "failure", "missing"));
+
+    protected String name;
+    protected String variable;
+    protected Map<String, String> parameters;
+
+    /**
+     * Parse the code of a builtin check.
+     *
+     * @param code the check code
+     * @return the check
+     * @throws IllegalArgumentException if the code doesn't name a known test, or
+     *                                  its parameters are missing or invalid
+     */
+    public static BuiltinCheck parse(String code) {
+        if (code == null) {
+            throw new IllegalArgumentException("The check has no code");
+        }
+        String name = null;
+        Map<String, String> parameters = new LinkedHashMap<String, String>();
+        for (String line : code.split("\\r?\\n")) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            if (name == null) {
+                name = line.toLowerCase(Locale.ROOT);
+                continue;
+            }
+            int equals = line.indexOf('=');
+            if (equals <= 0) {
+                throw new IllegalArgumentException("Expected 'name = value', not '" + line + "'");
+            }
+            String key = line.substring(0, equals).trim();
+            if (parameters.put(key, line.substring(equals + 1).trim()) != null) {
+                throw new IllegalArgumentException("The parameter '" + key + "' is given more than once");
+            }
+        }
+        if (name == null) {
+            throw new IllegalArgumentException("The check code doesn't name a builtin test");
+        }
+
+        BuiltinCheck check;
+        switch (name) {
+        case "present":
+            check = new Present();
+            break;
+        case "length":
+            check = new Length();
+            break;
+        case "matches":
+            check = new Matches();
+            break;
+        case "count":
+            check = new Count();
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown builtin test '" + name + "'");
+        }
+        check.name = name;
+        check.parameters = parameters;
+        check.variable = parameters.get("variable");
+        if (check.variable == null || check.variable.isEmpty()) {
+            throw new IllegalArgumentException("The '" + name + "' test needs a 'variable'");
+        }
+        for (String key : parameters.keySet()) {
+            if (!COMMON_PARAMETERS.contains(key) && !check.getParameterNames().contains(key)) {
+                throw new IllegalArgumentException("Unknown parameter '" + key + "' for the '" + name + "' test");
+            }
+        }
+        check.configure();
+        return check;
+    }
+
+    /**
+     * Parse the code of a builtin check, as {@link #parse(String)}, except that
+     * code that can't be parsed gives a check that reports why as an ERROR
+     * each time it is run.
+     *
+     * @param code the check code
+     * @return the check
+     */
+    public static BuiltinCheck compile(String code) {
+        try {
+            return parse(code);
+        } catch (IllegalArgumentException e) {
+            return new Invalid(e.getMessage());
+        }
+    }
+
+    /**
+     * Get the name of the test, e.g. 'length'.
+     *
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the name of the variable that is tested.
+     *
+     * @return the variable name
+     */
+    public String getVariable() {
+        return variable;
+    }
+
+    /**
+     * Run the check.
+     *
+     * @param variables the values selected from the document, by selector name
+     * @return the result, with a single output
+     */
+    public Result run(Map<String, Object> variables) {
+        Object value = variables.get(variable);
+        List<String> values = new ArrayList<String>();
+        addValues(value, values);
+
+        Result result = new Result();
+        if (values.isEmpty() && needsValue()) {
+            result.setStatus(Status.FAILURE);
+            result.setOutput(new Output(format(message("missing", message("failure", MISSING)), 0)));
+            return result;
+        }
+        long measured = measure(value, values);
+        if (passes(measured, values)) {
+            result.setStatus(Status.SUCCESS);
+            result.setOutput(new Output(format(message("success", defaultSuccess()), measured)));
+        } else {
+            result.setStatus(Status.FAILURE);
+            result.setOutput(new Output(format(message("failure", defaultFailure()), measured)));
+        }
+        return result;
+    }
+
+    /**
+     * The names of the parameters of this test, besides the common ones.
+     */
+    protected abstract Collection<String> getParameterNames();
+
+    /**
+     * Read the parameters of this test.
+     *
+     * @throws IllegalArgumentException if a parameter is missing or invalid
+     */
+    protected void configure() {
+    }
+
+    /**
+     * Determine if the test fails, with the 'missing' message, when the variable
+     * has no value.
+     */
+    protected boolean needsValue() {
+        return true;
+    }
+
+    /**
+     * Measure the value of the variable.
+     *
+     * @param value  the value of the variable, as selected
+     * @param values the values of the variable that aren't blank, as strings
+     * @return the measurement that is tested and replaces {value} in the output
+     */
+    protected abstract long measure(Object value, List<String> values);
+
+    /**
+     * Test the measurement.
+     */
+    protected abstract boolean passes(long measured, List<String> values);
+
+    protected abstract String defaultSuccess();
+
+    protected abstract String defaultFailure();
+
+    private String message(String key, String defaultMessage) {
+        String message = parameters.get(key);
+        return message != null ? message : defaultMessage;
+    }
+
+    private String format(String message, long measured) {
+        Matcher matcher = PLACEHOLDER.matcher(message);
+        StringBuffer formatted = new StringBuffer();
+        while (matcher.find()) {
+            String key = matcher.group(1);
+            String replacement;
+            if (key.equals("value")) {
+                replacement = String.valueOf(measured);
+            } else if (parameters.containsKey(key)) {
+                replacement = parameters.get(key);
+            } else {
+                replacement = matcher.group();
+            }
+            matcher.appendReplacement(formatted, Matcher.quoteReplacement(replacement));
+        }
+        matcher.appendTail(formatted);
+        return formatted.toString();
+    }
+
+    // flatten the selected value into its non-blank values
+    private static void addValues(Object value, List<String> values) {
+        if (value instanceof Collection<?>) {
+            for (Object item : (Collection<?>) value) {
+                addValues(item, values);
+            }
+        } else if (value != null) {
+            String text = value.toString().trim();
+            if (!text.isEmpty()) {
+                values.add(text);
+            }
+        }
+    }
+
+    protected long getLong(String key, long defaultValue) {
+        String value = parameters.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("The parameter '" + key + "' must be a whole number, not '" + value
+                    + "'");
+        }
+    }
+
+    protected String describeBounds() {
+        String min = parameters.get("min");
+        String max = parameters.get("max");
+        if (min != null && max != null) {
+            return "between " + min + " and " + max;
+        } else if (min != null) {
+            return "at least " + min;
+        } else if (max != null) {
+            return "at most " + max;
+        }
+        return "any number";
+    }
+
+    static class Present extends BuiltinCheck {
+
+        @Override
+        protected Collection<String> getParameterNames() {
+            return Arrays.asList();
+        }
+
+        @Override
+        protected long measure(Object value, List<String> values) {
+            return values.size();
+        }
+
+        @Override
+        protected boolean passes(long measured, List<String> values) {
+            return measured > 0;
+        }
+
+        @Override
+        protected String defaultSuccess() {
+            return "'{variable}' is present";
+        }
+
+        @Override
+        protected String defaultFailure() {
+            return MISSING;
+        }
+    }
+
+    static class Length extends BuiltinCheck {
+
+        private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+        private boolean words;
+        private long min;
+        private long max;
+
+        @Override
+        protected Collection<String> getParameterNames() {
+            return Arrays.asList("min", "max", "unit");
+        }
+
+        @Override
+        protected void configure() {
+            String unit = parameters.getOrDefault("unit", "characters");
+            if (!unit.equals("characters") && !unit.equals("words")) {
+                throw new IllegalArgumentException("The unit must be 'characters' or 'words', not '" + unit + "'");
+            }
+            words = unit.equals("words");
+            min = getLong("min", 0);
+            max = getLong("max", Long.MAX_VALUE);
+        }
+
+        @Override
+        protected long measure(Object value, List<String> values) {
+            String text = String.join(" ", values);
+            if (words) {
+                return WHITESPACE.split(text.trim()).length;
+            }
+            return text.codePointCount(0, text.length());
+        }
+
+        @Override
+        protected boolean passes(long measured, List<String> values) {
+            return measured >= min && measured <= max;
+        }
+
+        @Override
+        protected String defaultSuccess() {
+            return "The length of '{variable}' is {value} " + (words ? "words" : "characters");
+        }
+
+        @Override
+        protected String defaultFailure() {
+            return "The length of '{variable}' is {value} " + (words ? "words" : "characters") + ", it should be "
+                    + describeBounds();
+        }
+    }
+
+    static class Matches extends BuiltinCheck {
+
+        private Pattern pattern;
+        private boolean all;
+
+        @Override
+        protected Collection<String> getParameterNames() {
+            return Arrays.asList("pattern", "all");
+        }
+
+        @Override
+        protected void configure() {
+            String regex = parameters.get("pattern");
+            if (regex == null) {
+                throw new IllegalArgumentException("The 'matches' test needs a 'pattern'");
+            }
+            try {
+                pattern = Pattern.compile(regex);
+            } catch (PatternSyntaxException e) {
+                throw new IllegalArgumentException("Invalid pattern: " + e.getMessage());
+            }
+            all = Boolean.parseBoolean(parameters.getOrDefault("all", "true"));
+        }
+
+        @Override
+        protected long measure(Object value, List<String> values) {
+            long matching = 0;
+            for (String v : values) {
+                if (pattern.matcher(v).matches()) {
+                    matching++;
+                }
+            }
+            return matching;
+        }
+
+        @Override
+        protected boolean passes(long measured, List<String> values) {
+            return all ? measured == values.size() : measured > 0;
+        }
+
+        @Override
+        protected String defaultSuccess() {
+            return "'{variable}' matches the expected pattern";
+        }
+
+        @Override
+        protected String defaultFailure() {
+            return "'{variable}' does not match the expected pattern {pattern}";
+        }
+    }
+
+    static class Count extends BuiltinCheck {
+
+        private long min;
+        private long max;
+
+        @Override
+        protected Collection<String> getParameterNames() {
+            return Arrays.asList("min", "max");
+        }
+
+        @Override
+        protected void configure() {
+            min = getLong("min", 0);
+            max = getLong("max", Long.MAX_VALUE);
+        }
+
+        @Override
+        protected boolean needsValue() {
+            return false;
+        }
+
+        @Override
+        protected long measure(Object value, List<String> values) {
+            if (value instanceof Number) {
+                return ((Number) value).longValue();
+            }
+            return values.size();
+        }
+
+        @Override
+        protected boolean passes(long measured, List<String> values) {
+            return measured >= min && measured <= max;
+        }
+
+        @Override
+        protected String defaultSuccess() {
+            return "'{variable}' has {value} values";
+        }
+
+        @Override
+        protected String defaultFailure() {
+            return "'{variable}' has {value} values, it should have " + describeBounds();
+        }
+    }
+
+    /**
+     * A check whose code couldn't be parsed.
+     */
+    static class Invalid extends BuiltinCheck {
+
+        private String error;
+
+        Invalid(String error) {
+            this.error = error;
+            this.parameters = new LinkedHashMap<String, String>();
+        }
+
+        @Override
+        public Result run(Map<String, Object> variables) {
+            Result result = new Result();
+            result.setStatus(Status.ERROR);
+            result.setOutput(new Output("Invalid builtin check: " + error));
+            return result;
+        }
+
+        @Override
+        protected Collection<String> getParameterNames() {
+            return Arrays.asList();
+        }
+
+        @Override
+        protected long measure(Object value, List<String> values) {
+            return 0;
+        }
+
+        @Override
+        protected boolean passes(long measured, List<String> values) {
+            return false;
+        }
+
+        @Override
+        protected String defaultSuccess() {
+            return "";
+        }
+
+        @Override
+        protected String defaultFailure() {
+            return "";
+        }
+    }
+}
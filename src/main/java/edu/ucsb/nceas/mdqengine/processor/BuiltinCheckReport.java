@@ -0,0 +1,319 @@
+package edu.ucsb.nceas.mdqengine.processor;
+
+import edu.ucsb.nceas.mdqengine.model.Check;
+import edu.ucsb.nceas.mdqengine.model.Selector;
+import edu.ucsb.nceas.mdqengine.model.Suite;
+import edu.ucsb.nceas.mdqengine.serialize.XmlMarshaller;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reports which checks could be migrated to the 'builtin' environment (see
+ * {@link BuiltinCheck}), with the code of the builtin check that could replace
+ * each of them.
+ *
+ * The code of a check is only looked at, not run, so a suggestion is a starting
+ * point that has to be reviewed, e.g. for the output messages and for how the
+ * check treats unusual values, before the check is replaced.
+ *
+ * Usage: BuiltinCheckReport &lt;check or suite file, or directory&gt;...
+ */
+public class BuiltinCheckReport {
+
+    public static Log log = LogFactory.getLog(BuiltinCheckReport.class);
+
+    private static final Pattern ROOT_ELEMENT = Pattern.compile("<(?:[\\w.-]+:)?(suite|check)[\\s>/]");
+
+    // code that a builtin check can't reproduce
+    private static final Pattern[] UNSUPPORTED = {
+            Pattern.compile("\\bdocument\\b"),
+            Pattern.compile("\\bstoreConfiguration\\b"),
+            Pattern.compile("\\boutput_identifiers\\b"),
+            Pattern.compile("^\\s*(for|while)\\b.*:\\s*$", Pattern.MULTILINE),
+            Pattern.compile("\\b(for|while|repeat|lapply|sapply)\\s*\\("),
+            Pattern.compile("\\b(requests|urllib|http|url|download\\.file|readLines|open)\\b"),
+            Pattern.compile("^\\s*(import|from)\\s+(?!re\\b|metadig\\.variable\\b)", Pattern.MULTILINE),
+            Pattern.compile("\\blibrary\\s*\\((?!jsonlite\\b)")
+    };
+
+    private static final Pattern REGEX_CALL = Pattern.compile(
+            "\\b(?:re\\.(match|search|fullmatch)|(grepl))\\s*\\(\\s*r?(['\"])(.*?)\\3");
+    private static final Pattern WORD_SPLIT = Pattern.compile(
+            "\\.split\\(\\s*\\)|re\\.split\\(\\s*r?['\"]\\\\s\\+?['\"]|strsplit\\(");
+    private static final Pattern LENGTH_CALL = Pattern.compile("\\b(len|nchar|length)\\s*\\(");
+    private static final Pattern MIN_CONSTANT = Pattern.compile("(?i)\\bmin\\w*\\s*(?:=|<-)\\s*(\\d+)");
+    private static final Pattern MAX_CONSTANT = Pattern.compile("(?i)\\bmax\\w*\\s*(?:=|<-)\\s*(\\d+)");
+    private static final Pattern LESS_THAN = Pattern.compile("<\\s*(\\d+)");
+    private static final Pattern AT_LEAST = Pattern.compile(">=\\s*(\\d+)");
+    private static final Pattern MORE_THAN = Pattern.compile(">\\s*(\\d+)");
+    private static final Pattern ANY_NUMBER = Pattern.compile("[<>]=?\\s*\\d+");
+    // tests for a missing or empty value
+    private static final Pattern PRESENCE_TEST = Pattern.compile(
+            "\\bis\\s+(?:not\\s+)?None\\b|[=!]=\\s*None\\b|\\bis\\.null\\s*\\("
+                    + "|\\b(?:len|nchar|length)\\s*\\([^()]*(?:\\([^()]*\\)[^()]*)*\\)\\s*(?:[=!]=|>)\\s*0\\b");
+
+    /**
+     * How a check could be migrated, or why it can't be.
+     */
+    public static class Suggestion {
+
+        private Check check;
+        private String code;
+        private String reason;
+
+        Suggestion(Check check, String code, String reason) {
+            this.check = check;
+            this.code = code;
+            this.reason = reason;
+        }
+
+        public Check getCheck() {
+            return check;
+        }
+
+        /**
+         * Get the code of the builtin check that could replace the check.
+         *
+         * @return the code, or null if the check can't be migrated
+         */
+        public String getCode() {
+            return code;
+        }
+
+        /**
+         * Get the reason the check can't be migrated.
+         *
+         * @return the reason, or null if it can be
+         */
+        public String getReason() {
+            return reason;
+        }
+
+        public boolean isMigratable() {
+            return code != null;
+        }
+    }
+
+    /**
+     * Look at the code of a check for one of the patterns of the builtin tests.
+     *
+     * @param check the check
+     * @return the suggested builtin check, or why there is none
+     */
+    public static Suggestion analyze(Check check) {
+        String env = check.getEnvironment() == null ? "" : check.getEnvironment().toLowerCase();
+        String code = check.getCode();
+        if (env.equals(BuiltinCheck.ENVIRONMENT)) {
+            return new Suggestion(check, null, "already a builtin check");
+        }
+        if (!env.equals("python") && !env.equals("r") && !env.equals("rscript")) {
+            return new Suggestion(check, null, "the " + check.getEnvironment() + " environment is not analyzed");
+        }
+        if (code == null || code.trim().isEmpty()) {
+            return new Suggestion(check, null, "the check has no code");
+        }
+        if (check.getLibrary() != null && !check.getLibrary().isEmpty()) {
+            return new Suggestion(check, null, "the check uses library code");
+        }
+        if (check.isInheritState()) {
+            return new Suggestion(check, null, "the check uses the state of previous checks");
+        }
+        List<Selector> selectors = check.getSelector();
+        if (selectors == null || selectors.size() != 1) {
+            return new Suggestion(check, null, "builtin tests test exactly one selector");
+        }
+        Selector selector = selectors.get(0);
+        if (selector.getSubSelector() != null) {
+            return new Suggestion(check, null, "the selector has a sub-selector");
+        }
+        for (Pattern unsupported : UNSUPPORTED) {
+            Matcher matcher = unsupported.matcher(code);
+            if (matcher.find()) {
+                return new Suggestion(check, null, "the code uses '" + matcher.group().trim() + "'");
+            }
+        }
+
+        String variable = selector.getName();
+        String xpath = selector.getXpath() != null ? selector.getXpath().trim() : "";
+        // comparisons with 0 are usually tests for an empty value
+        boolean bounded = ANY_NUMBER.matcher(code.replaceAll("[<>]=?\\s*0\\b", "")).find()
+                || MIN_CONSTANT.matcher(code).find() || MAX_CONSTANT.matcher(code).find();
+        StringBuilder builtin = new StringBuilder();
+
+        Matcher regex = REGEX_CALL.matcher(code);
+        if (regex.find()) {
+            if (regex.find()) {
+                return new Suggestion(check, null, "the code uses more than one regular expression");
+            }
+            regex.reset().find();
+            String pattern = regex.group(4);
+            if ("match".equals(regex.group(1))) {
+                // re.match only anchors at the start
+                pattern = pattern.endsWith("$") ? pattern.substring(0, pattern.length() - 1) : pattern + ".*";
+            } else if (!"fullmatch".equals(regex.group(1))) {
+                pattern = (pattern.startsWith("^") ? pattern.substring(1) : ".*" + pattern);
+                pattern = pattern.endsWith("$") ? pattern.substring(0, pattern.length() - 1) : pattern + ".*";
+            }
+            builtin.append("matches\n");
+            builtin.append("variable = ").append(variable).append('\n');
+            builtin.append("pattern = ").append(pattern).append('\n');
+        } else if (xpath.startsWith("count(")) {
+            builtin.append("count\n");
+            builtin.append("variable = ").append(variable).append('\n');
+            appendBounds(builtin, code, 1);
+        } else if (LENGTH_CALL.matcher(code).find() && bounded) {
+            builtin.append("length\n");
+            builtin.append("variable = ").append(variable).append('\n');
+            if (WORD_SPLIT.matcher(code).find()) {
+                builtin.append("unit = words\n");
+            }
+            appendBounds(builtin, code, 0);
+        } else if (bounded) {
+            return new Suggestion(check, null, "the code compares numbers in a way that wasn't recognized");
+        } else if (PRESENCE_TEST.matcher(code).find()) {
+            // nothing more than tests that the value is there
+            builtin.append("present\n");
+            builtin.append("variable = ").append(variable).append('\n');
+        } else {
+            return new Suggestion(check, null, "the code wasn't recognized as one of the builtin tests");
+        }
+        return new Suggestion(check, builtin.toString(), null);
+    }
+
+    // take the bounds from constants named min... and max..., or else from the comparisons
+    private static void appendBounds(StringBuilder builtin, String code, int defaultMin) {
+        Matcher min = MIN_CONSTANT.matcher(code);
+        Matcher max = MAX_CONSTANT.matcher(code);
+        String minimum = null;
+        String maximum = null;
+        if (min.find()) {
+            minimum = min.group(1);
+        } else {
+            Matcher lessThan = LESS_THAN.matcher(code);
+            Matcher atLeast = AT_LEAST.matcher(code);
+            Matcher moreThan = MORE_THAN.matcher(code);
+            if (lessThan.find()) {
+                minimum = lessThan.group(1);
+            } else if (atLeast.find()) {
+                minimum = atLeast.group(1);
+            } else if (moreThan.find()) {
+                minimum = String.valueOf(Long.parseLong(moreThan.group(1)) + 1);
+            } else if (defaultMin > 0) {
+                minimum = String.valueOf(defaultMin);
+            }
+        }
+        if (max.find()) {
+            maximum = max.group(1);
+        }
+        if (minimum != null) {
+            builtin.append("min = ").append(minimum).append('\n');
+        }
+        if (maximum != null) {
+            builtin.append("max = ").append(maximum).append('\n');
+        }
+    }
+
+    /**
+     * Read the checks in a check or suite file.
+     *
+     * @param file the file
+     * @return the checks
+     * @throws Exception if the file can't be read
+     */
+    public static List<Check> readChecks(File file) throws Exception {
+        String xml = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        Matcher root = ROOT_ELEMENT.matcher(xml);
+        List<Check> checks = new ArrayList<Check>();
+        if (!root.find()) {
+            return checks;
+        }
+        if (root.group(1).equals("suite")) {
+            Suite suite = (Suite) XmlMarshaller.fromXml(xml, Suite.class);
+            if (suite.getCheck() != null) {
+                checks.addAll(suite.getCheck());
+            }
+        } else {
+            checks.add((Check) XmlMarshaller.fromXml(xml, Check.class));
+        }
+        return checks;
+    }
+
+    /**
+     * Write the report for the checks in the given files, and in the XML files in
+     * the given directories and their subdirectories.
+     *
+     * @param files the check and suite files and directories
+     * @param out   where to write the report
+     * @return the number of checks that could be migrated
+     */
+    public static int report(List<File> files, PrintStream out) {
+        int total = 0;
+        int migratable = 0;
+        for (File file : listFiles(files)) {
+            List<Check> checks;
+            try {
+                checks = readChecks(file);
+            } catch (Exception e) {
+                log.debug("Could not read checks from " + file, e);
+                out.println(file + ": not a check or suite (" + e.getMessage() + ")");
+                continue;
+            }
+            for (Check check : checks) {
+                total++;
+                Suggestion suggestion = analyze(check);
+                String heading = check.getId() + " (" + check.getEnvironment() + ", " + file.getName() + "): ";
+                if (suggestion.isMigratable()) {
+                    migratable++;
+                    out.println(heading + "can be migrated to");
+                    for (String line : suggestion.getCode().split("\n")) {
+                        out.println("    " + line);
+                    }
+                } else {
+                    out.println(heading + suggestion.getReason());
+                }
+            }
+        }
+        out.println(migratable + " of " + total + " checks can be migrated to builtin checks");
+        return migratable;
+    }
+
+    private static List<File> listFiles(List<File> files) {
+        List<File> listed = new ArrayList<File>();
+        for (File file : files) {
+            if (file.isDirectory()) {
+                File[] children = file.listFiles(
+                        (dir, name) -> name.endsWith(".xml") || new File(dir, name).isDirectory());
+                if (children != null) {
+                    Arrays.sort(children);
+                    listed.addAll(listFiles(Arrays.asList(children)));
+                }
+            } else {
+                listed.add(file);
+            }
+        }
+        return listed;
+    }
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.err.println("Usage: BuiltinCheckReport <check or suite file, or directory>...");
+            System.exit(1);
+        }
+        List<File> files = new ArrayList<File>();
+        for (String arg : args) {
+            files.add(new File(arg));
+        }
+        report(files, System.out);
+    }
+}
@@ -0,0 +1,238 @@
+package edu.ucsb.nceas.mdqengine.processor;
+
+import edu.ucsb.nceas.mdqengine.model.Check;
+import edu.ucsb.nceas.mdqengine.model.Output;
+import edu.ucsb.nceas.mdqengine.model.Result;
+import edu.ucsb.nceas.mdqengine.model.Status;
+import net.thisptr.jackson.jq.exception.JsonQueryException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.xml.xpath.XPathExpressionException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the checks of a suite against a metadata document, fanning independent
+ * checks out to a bounded pool of threads.
+ *
+ * Checks are grouped into chains: a check with inheritState=true always runs
+ * after, and on the same thread as, the check before it. Each chain is run
+ * sequentially, different chains may run at the same time. Results are
+ * returned in the same order as the checks were given, so the assembled Run is
+ * the same as when the checks are run one after another.
+ *
+ * The number of checks running at once for a given environment can be limited
+ * separately (e.g. to bound the number of concurrent Rscript processes). Chains
+ * containing python checks are always run on the calling thread, since the Jep
+ * interpreter used for a run is leased to the thread running the suite.
+ */
+public class CheckExecutor {
+
+    public static Log log = LogFactory.getLog(CheckExecutor.class);
+
+    private int parallelism;
+    private ExecutorService executor = null;
+    private Map<String, Semaphore> environmentLimits = new HashMap<String, Semaphore>();
+
+    /**
+     * Create an executor that runs up to the given number of checks at once.
+     *
+     * @param parallelism       the maximum number of checks to run concurrently, a
+     *                          value of 1 or less runs every check on the calling
+     *                          thread
+     * @param environmentLimits the maximum number of concurrently running checks
+     *                          per check environment (e.g. "r", "java")
+     */
+    public CheckExecutor(int parallelism, Map<String, Integer> environmentLimits) {
+        this.parallelism = parallelism;
+        if (environmentLimits != null) {
+            for (Map.Entry<String, Integer> entry : environmentLimits.entrySet()) {
+                if (entry.getValue() != null && entry.getValue() > 0) {
+                    this.environmentLimits.put(normalizeEnvironment(entry.getKey()),
+                            new Semaphore(entry.getValue(), true));
+                }
+            }
+        }
+        if (parallelism > 1) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            ThreadFactory threadFactory = runnable -> {
+                Thread thread = new Thread(runnable, "mdq-check-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            };
+            executor = Executors.newFixedThreadPool(parallelism, threadFactory);
+            log.debug("Running checks with parallelism: " + parallelism);
+        }
+    }
+
+    /**
+     * Run the given checks against a document.
+     *
+     * @param dialect the document to run the checks against
+     * @param checks  the compiled checks, in suite order
+     * @return the results, in the same order as the checks
+     * @throws XPathExpressionException if a check selector could not be evaluated
+     * @throws JsonQueryException       if a check jq expression could not be
+     *                                  evaluated
+     */
+    public List<Result> run(MetadataDialect dialect, List<CompiledCheck> checks)
+            throws XPathExpressionException, JsonQueryException {
+
+        Result[] results = new Result[checks.size()];
+
+        // group checks that inherit state behind the check they inherit from
+        List<List<Integer>> chains = new ArrayList<List<Integer>>();
+        List<Integer> chain = null;
+        for (int i = 0; i < checks.size(); i++) {
+            Check check = checks.get(i).getCheck();
+            // checks that can't be run are reported without taking part in a chain
+            if (checks.get(i).getSkipReason() != null) {
+                Result result = new Result();
+                result.setCheck(check);
+                result.setStatus(Status.SKIP);
+                result.setOutput(new Output(checks.get(i).getSkipReason()));
+                results[i] = result;
+                continue;
+            }
+            if (chain == null || !Boolean.TRUE.equals(check.isInheritState())) {
+                chain = new ArrayList<Integer>();
+                chains.add(chain);
+            }
+            chain.add(i);
+        }
+
+        if (executor == null) {
+            for (List<Integer> indexes : chains) {
+                runChain(dialect, checks, indexes, results);
+            }
+            return Arrays.asList(results);
+        }
+
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        List<List<Integer>> localChains = new ArrayList<List<Integer>>();
+        for (List<Integer> indexes : chains) {
+            if (isThreadConfined(checks, indexes)) {
+                localChains.add(indexes);
+            } else {
+                futures.add(executor.submit(() -> {
+                    runChain(dialect, checks, indexes, results);
+                    return null;
+                }));
+            }
+        }
+
+        // run the chains that cannot leave this thread while the others are running
+        try {
+            for (List<Integer> indexes : localChains) {
+                runChain(dialect, checks, indexes, results);
+            }
+        } finally {
+            // wait for everything to finish, even if a local chain failed
+            ExecutionException failure = null;
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while waiting for checks to complete", e);
+                }
+            }
+            if (failure != null) {
+                rethrow(failure.getCause());
+            }
+        }
+
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Stop the worker threads. Checks that are already running will complete.
+     */
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Get the maximum number of checks that are run concurrently.
+     *
+     * @return the configured parallelism
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    private void runChain(MetadataDialect dialect, List<CompiledCheck> checks, List<Integer> indexes,
+            Result[] results)
+            throws XPathExpressionException, JsonQueryException {
+
+        // the first check of a chain never inherits state from a check run earlier
+        // on this thread
+        dialect.resetState();
+        for (Integer index : indexes) {
+            CompiledCheck check = checks.get(index);
+            Semaphore limit = environmentLimits.get(normalizeEnvironment(check.getCheck().getEnvironment()));
+            if (limit != null) {
+                limit.acquireUninterruptibly();
+            }
+            try {
+                results[index] = dialect.runCheck(check);
+            } finally {
+                if (limit != null) {
+                    limit.release();
+                }
+            }
+        }
+    }
+
+    private boolean isThreadConfined(List<CompiledCheck> checks, List<Integer> indexes) {
+        for (Integer index : indexes) {
+            String env = normalizeEnvironment(checks.get(index).getCheck().getEnvironment());
+            if (env == null || env.equals("python")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String normalizeEnvironment(String env) {
+        if (env == null) {
+            return null;
+        }
+        env = env.toLowerCase();
+        if (env.equals("rscript")) {
+            env = "r";
+        }
+        return env;
+    }
+
+    private static void rethrow(Throwable cause) throws XPathExpressionException, JsonQueryException {
+        if (cause instanceof XPathExpressionException xpee) {
+            throw xpee;
+        } else if (cause instanceof JsonQueryException jqe) {
+            throw jqe;
+        } else if (cause instanceof RuntimeException re) {
+            throw re;
+        } else if (cause instanceof Error err) {
+            throw err;
+        }
+        throw new RuntimeException(cause);
+    }
+}
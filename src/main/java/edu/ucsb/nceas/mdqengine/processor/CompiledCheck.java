@@ -0,0 +1,470 @@
+package edu.ucsb.nceas.mdqengine.processor;
+
+import edu.ucsb.nceas.mdqengine.dispatch.MDQCache;
+import edu.ucsb.nceas.mdqengine.model.Check;
+import edu.ucsb.nceas.mdqengine.model.Dialect;
+import edu.ucsb.nceas.mdqengine.model.Expression;
+import edu.ucsb.nceas.mdqengine.model.Namespace;
+import edu.ucsb.nceas.mdqengine.model.Selector;
+import net.thisptr.jackson.jq.JsonQuery;
+import net.thisptr.jackson.jq.Versions;
+import net.thisptr.jackson.jq.exception.JsonQueryException;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.xml.xpath.XPathExpressionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.io.IOException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * A check that has been prepared to be run against many documents: its selector
+ * and dialect expressions are compiled and its library code is loaded once,
+ * rather than for every document.
+ *
+ * Expressions that cannot be prepared ahead of time (xpaths that use namespace
+ * prefixes, whose meaning depends on the document, or expressions that fail to
+ * compile) are left out, and are evaluated from the check definition when the
+ * check is run, exactly as they were before.
+ */
+public class CompiledCheck {
+
+    public static Log log = LogFactory.getLog(CompiledCheck.class);
+
+    // the name of the variable holding the serialized metadata document
+    private static Pattern documentVariable = Pattern.compile("\\bdocument\\b");
+
+    // how long the code is run without a library that failed to load, before
+    // trying to load it again
+    public static final long DEFAULT_LIBRARY_RETRY = 60000;
+    static long libraryRetryMillis = DEFAULT_LIBRARY_RETRY;
+
+    private Check check;
+    private String skipReason = null;
+
+    private Map<Selector, CompiledXPath> selectorXPaths = new IdentityHashMap<Selector, CompiledXPath>();
+    private Map<Selector, JsonQuery> selectorQueries = new IdentityHashMap<Selector, JsonQuery>();
+    private Map<Dialect, CompiledXPath> dialectXPaths = new IdentityHashMap<Dialect, CompiledXPath>();
+    private Map<Dialect, JsonQuery> dialectQueries = new IdentityHashMap<Dialect, JsonQuery>();
+    private Map<Selector, String> selectorKeys = new IdentityHashMap<Selector, String>();
+    private Map<Selector, SimplePath> selectorPaths = new IdentityHashMap<Selector, SimplePath>();
+    private Map<Dialect, SimplePath> dialectPaths = new IdentityHashMap<Dialect, SimplePath>();
+
+    private BuiltinCheck builtin = null;
+
+    private volatile String code = null;
+    private volatile String codeKey = null;
+    private volatile boolean usesDocument;
+    // the code without the libraries that failed to load, and when they failed
+    private volatile String partialCode = null;
+    private volatile long failed = 0;
+
+    /**
+     * Prepare the given check.
+     *
+     * @param check the check to prepare, which must not be modified afterwards
+     */
+    public CompiledCheck(Check check) {
+        this.check = check;
+
+        if (BuiltinCheck.ENVIRONMENT.equalsIgnoreCase(check.getEnvironment())) {
+            builtin = BuiltinCheck.compile(check.getCode());
+        }
+
+        if (check.getSelector() != null) {
+            for (Selector selector : check.getSelector()) {
+                selectorKeys.put(selector, selectorKey(selector));
+                classifySelector(selector);
+                // sub-selectors are evaluated against the nodes their parent selects
+                for (Selector s = selector; s != null; s = s.getSubSelector()) {
+                    compileSelector(s);
+                }
+            }
+        }
+        if (check.getDialect() != null) {
+            for (Dialect dialect : check.getDialect()) {
+                compileDialect(dialect);
+            }
+        }
+    }
+
+    private CompiledCheck(Check check, String skipReason) {
+        this.check = check;
+        this.skipReason = skipReason;
+    }
+
+    /**
+     * Create a placeholder for a check that cannot be run, e.g. a reference to a
+     * check that is not in the store.
+     *
+     * @param check      the check as it is given in the suite
+     * @param skipReason the reason to report in the skipped result
+     * @return the placeholder
+     */
+    public static CompiledCheck skipped(Check check, String skipReason) {
+        return new CompiledCheck(check, skipReason);
+    }
+
+    public Check getCheck() {
+        return check;
+    }
+
+    /**
+     * Get the reason this check is skipped without being run.
+     *
+     * @return the reason, or null if the check should be run
+     */
+    public String getSkipReason() {
+        return skipReason;
+    }
+
+    /**
+     * Get the test of a check in the 'builtin' environment, which the dialect runs
+     * itself rather than dispatching the check code.
+     *
+     * @return the test, or null if the check is not a builtin check
+     */
+    public BuiltinCheck getBuiltin() {
+        return builtin;
+    }
+
+    /**
+     * Get the compiled xpath of a selector.
+     *
+     * @param selector a selector (or sub-selector) of this check
+     * @return the compiled xpath, or null if it has to be evaluated from the
+     *         selector
+     */
+    public CompiledXPath getXPath(Selector selector) {
+        return selectorXPaths.get(selector);
+    }
+
+    /**
+     * Get the compiled jq expression of a selector.
+     *
+     * @param selector a selector of this check
+     * @return the compiled query, or null if it has to be compiled from the
+     *         selector
+     */
+    public JsonQuery getJsonQuery(Selector selector) {
+        return selectorQueries.get(selector);
+    }
+
+    /**
+     * Get a key that identifies what a selector selects from a document: selectors
+     * of any check with the same key select the same value.
+     *
+     * @param selector a (top level) selector of this check
+     * @return the key for the selector
+     */
+    public String getSelectorKey(Selector selector) {
+        String key = selectorKeys.get(selector);
+        if (key == null) {
+            key = selectorKey(selector);
+        }
+        return key;
+    }
+
+    /**
+     * Get the simple path of a selector that can be evaluated while streaming
+     * through the document, see {@link SimplePath}.
+     *
+     * @param selector a (top level) selector of this check
+     * @return the path, or null if the selector has to be evaluated against the
+     *         DOM
+     */
+    public SimplePath getSimplePath(Selector selector) {
+        return selectorPaths.get(selector);
+    }
+
+    /**
+     * Get the simple path tested by a dialect, if the test can be evaluated while
+     * streaming through the document.
+     *
+     * @param dialect a dialect of this check
+     * @return the path, or null if the test has to be evaluated against the DOM
+     */
+    public SimplePath getSimplePath(Dialect dialect) {
+        return dialectPaths.get(dialect);
+    }
+
+    /**
+     * Get the compiled xpath that tests whether a dialect applies to a document.
+     *
+     * @param dialect a dialect of this check
+     * @return the compiled xpath, or null if it has to be evaluated from the dialect
+     */
+    public CompiledXPath getXPath(Dialect dialect) {
+        return dialectXPaths.get(dialect);
+    }
+
+    /**
+     * Get the compiled jq expression that tests whether a dialect applies to a
+     * document.
+     *
+     * @param dialect a dialect of this check
+     * @return the compiled query, or null if it has to be compiled from the dialect
+     */
+    public JsonQuery getJsonQuery(Dialect dialect) {
+        return dialectQueries.get(dialect);
+    }
+
+    /**
+     * Get the code to run for this check: the content of its libraries, in the
+     * order they are listed, followed by the check code. The libraries are loaded
+     * when the suite plan is compiled, or else the first time this is called,
+     * through the {@link MDQCache}. A library that cannot be loaded, and was never
+     * cached, is left out, and is tried again once the code is needed after
+     * waiting a while, so that every run of the check doesn't try to fetch it.
+     *
+     * The code can differ between calls, so a dialect should call this once each
+     * time it runs the check, and pass the code to {@link #getCodeKey(String)} and
+     * {@link #usesDocument(String)}.
+     *
+     * @return the code to dispatch
+     */
+    public String getCode() {
+        if (code != null) {
+            return code;
+        }
+        String partial = partialCode;
+        if (partial != null && System.currentTimeMillis() - failed < libraryRetryMillis) {
+            return partial;
+        }
+        return loadCode(new HashMap<String, String>());
+    }
+
+    /**
+     * Load the libraries of the check, unless they are loaded already.
+     *
+     * @param loaded the content of the libraries loaded so far, by URL, which is
+     *               shared by the checks of a suite so each library is fetched
+     *               once
+     * @return the code to dispatch
+     */
+    synchronized String loadCode(Map<String, String> loaded) {
+        if (code != null) {
+            return code;
+        }
+        List<URL> libraries = check.getLibrary();
+        if (libraries == null) {
+            usesDocument = findDocumentVariable(check.getCode());
+            code = check.getCode();
+            return code;
+        }
+        boolean complete = true;
+        StringBuilder libraryContent = new StringBuilder();
+        for (URL library : libraries) {
+            String content = loaded.get(library.toString());
+            if (content == null) {
+                // TODO: loading random code from a URL is very risky!
+                log.debug("Loading library code from URL: " + library);
+                try {
+                    content = MDQCache.getContent(library);
+                    loaded.put(library.toString(), content);
+                } catch (IOException e) {
+                    log.error("Could not load code library: " + e.getMessage(), e);
+                    complete = false;
+                    continue;
+                }
+            }
+            libraryContent.append(content);
+        }
+        String combined = libraryContent + check.getCode();
+        if (complete) {
+            usesDocument = findDocumentVariable(combined);
+            code = combined;
+            partialCode = null;
+        } else {
+            partialCode = combined;
+            failed = System.currentTimeMillis();
+        }
+        return combined;
+    }
+
+    /**
+     * Get a key that identifies the code returned by {@link #getCode()}: the check
+     * id and a hash of the code. Script engines that compile check code keep the
+     * compiled code by this key, so it is compiled again if the check or one of
+     * its libraries changes.
+     *
+     * @return the key, or null if the check has no code
+     */
+    public String getCodeKey() {
+        return getCodeKey(getCode());
+    }
+
+    /**
+     * Get the key that identifies code returned by {@link #getCode()}.
+     *
+     * @param current the code, as returned by {@link #getCode()}
+     * @return the key, or null if the check has no code
+     */
+    public String getCodeKey(String current) {
+        if (current == null) {
+            return null;
+        }
+        if (current != code) {
+            // a library is missing, so this code isn't kept
+            return check.getId() + "@" + DigestUtils.sha256Hex(current);
+        }
+        if (codeKey == null) {
+            codeKey = check.getId() + "@" + DigestUtils.sha256Hex(current);
+        }
+        return codeKey;
+    }
+
+    /**
+     * Determine if the check needs the serialized metadata document, i.e. if its
+     * code or libraries refer to the 'document' variable. For java checks, this is
+     * the case if the check class has a 'document' property.
+     *
+     * @return true if the 'document' variable should be made available to the check
+     */
+    public boolean usesDocument() {
+        return usesDocument(getCode());
+    }
+
+    /**
+     * Determine if code returned by {@link #getCode()} needs the serialized
+     * metadata document.
+     *
+     * @param checkCode the code, as returned by {@link #getCode()}
+     * @return true if the 'document' variable should be made available to the check
+     */
+    public boolean usesDocument(String checkCode) {
+        if (checkCode != code) {
+            // a library is missing, so this wasn't remembered
+            return findDocumentVariable(checkCode);
+        }
+        return usesDocument;
+    }
+
+    private boolean findDocumentVariable(String checkCode) {
+        if (checkCode == null || builtin != null) {
+            return false;
+        }
+        if ("java".equalsIgnoreCase(check.getEnvironment())) {
+            try {
+                Class<?> clazz = Class.forName(checkCode.trim());
+                for (PropertyDescriptor property : Introspector.getBeanInfo(clazz).getPropertyDescriptors()) {
+                    if (property.getName().equals("document") && property.getWriteMethod() != null) {
+                        return true;
+                    }
+                }
+                return false;
+            } catch (Exception | LinkageError e) {
+                // let the dispatcher report any problem with the class
+                return true;
+            }
+        }
+        return documentVariable.matcher(checkCode).find();
+    }
+
+    private static String selectorKey(Selector selector) {
+        StringBuilder key = new StringBuilder();
+        for (Selector s = selector; s != null; s = s.getSubSelector()) {
+            key.append(s.isNamespaceAware() ? "ns " : "");
+            if (s.getXpath() != null) {
+                key.append(s.getXpath());
+            } else if (s.getExpression() != null) {
+                key.append(s.getExpression().getSyntax()).append(' ').append(s.getExpression().getValue());
+            }
+            if (s.getNamespace() != null) {
+                for (Namespace namespace : s.getNamespace()) {
+                    key.append(' ').append(namespace.getPrefix()).append('=').append(namespace.getUri());
+                }
+            }
+            key.append('\n');
+        }
+        return key.toString();
+    }
+
+    private void compileSelector(Selector selector) {
+        Expression expression = selector.getExpression();
+        String xpath = selector.getXpath();
+        if (xpath == null && expression != null && "xpath".equals(expression.getSyntax())) {
+            xpath = expression.getValue();
+        }
+        if (xpath != null) {
+            CompiledXPath compiled = compileXPath(xpath);
+            if (compiled != null) {
+                selectorXPaths.put(selector, compiled);
+            }
+        } else if (expression != null && "json-path".equals(expression.getSyntax())) {
+            JsonQuery query = compileJsonQuery(expression.getValue());
+            if (query != null) {
+                selectorQueries.put(selector, query);
+            }
+        }
+    }
+
+    // selectors that namespaces or sub-selectors apply to need the DOM
+    private void classifySelector(Selector selector) {
+        if (selector.isNamespaceAware() || selector.getSubSelector() != null) {
+            return;
+        }
+        Expression expression = selector.getExpression();
+        String xpath = selector.getXpath();
+        if (xpath == null && expression != null && "xpath".equals(expression.getSyntax())) {
+            xpath = expression.getValue();
+        }
+        SimplePath path = SimplePath.parse(xpath);
+        if (path != null) {
+            selectorPaths.put(selector, path);
+        }
+    }
+
+    private void compileDialect(Dialect dialect) {
+        Expression expression = dialect.getExpression();
+        String xpath = dialect.getXpath();
+        if (xpath == null && expression != null && "xpath".equals(expression.getSyntax())) {
+            xpath = expression.getValue();
+        }
+        SimplePath path = SimplePath.parseTest(xpath);
+        if (path != null) {
+            dialectPaths.put(dialect, path);
+        }
+        if (xpath != null) {
+            CompiledXPath compiled = compileXPath(xpath);
+            if (compiled != null) {
+                dialectXPaths.put(dialect, compiled);
+            }
+        } else if (expression != null && expression.getValue() != null) {
+            JsonQuery query = compileJsonQuery(expression.getValue());
+            if (query != null) {
+                dialectQueries.put(dialect, query);
+            }
+        }
+    }
+
+    private CompiledXPath compileXPath(String expression) {
+        // prefixes are resolved against the namespaces of each document
+        if (CompiledXPath.usesPrefixes(expression)) {
+            return null;
+        }
+        try {
+            return XPathCache.getShared().get(expression, null);
+        } catch (XPathExpressionException e) {
+            log.debug("Could not compile xpath for check " + check.getId() + ": " + expression);
+            return null;
+        }
+    }
+
+    private JsonQuery compileJsonQuery(String expression) {
+        try {
+            return JsonQuery.compile(expression, Versions.JQ_1_6);
+        } catch (JsonQueryException e) {
+            log.debug("Could not compile jq expression for check " + check.getId() + ": " + expression);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package edu.ucsb.nceas.mdqengine.processor;
+
+import javax.xml.xpath.XPathExpressionException;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * An xpath expression that has been parsed and compiled ahead of evaluation by
+ * an {@link XPathBackend}. The expression is compiled when this object is
+ * created, so syntax errors are reported up front. Compiled expressions can be
+ * evaluated by several threads at once.
+ */
+public abstract class CompiledXPath {
+
+    // a prefixed name (e.g. 'eml:eml'), but not an axis (e.g. 'child::title')
+    private static Pattern prefixedName = Pattern.compile("(?<![\\w.:-])[A-Za-z_][\\w.-]*:(?!:)[A-Za-z_*]");
+    private static Pattern stringLiteral = Pattern.compile("\"[^\"]*\"|'[^']*'");
+
+    private String expression;
+
+    protected CompiledXPath(String expression) {
+        this.expression = expression;
+    }
+
+    /**
+     * Evaluate the expression, returning the nodes it selects.
+     *
+     * @param item the node or document to evaluate the expression against, from
+     *             the backend that compiled the expression
+     * @return the selected nodes, in document order
+     * @throws XPathExpressionException if the expression cannot be evaluated, or
+     *                                  it doesn't select nodes (e.g. count())
+     */
+    public abstract List<?> selectNodes(Object item) throws XPathExpressionException;
+
+    /**
+     * Evaluate the expression, returning the result as a String.
+     *
+     * @param item the node or document to evaluate the expression against, from
+     *             the backend that compiled the expression
+     * @return the result of the evaluation
+     * @throws XPathExpressionException if the expression cannot be evaluated
+     */
+    public abstract String evaluate(Object item) throws XPathExpressionException;
+
+    /**
+     * Get the backend that compiled the expression, and that the documents it is
+     * evaluated against must come from.
+     *
+     * @return the backend
+     */
+    public abstract XPathBackend getBackend();
+
+    public String getExpression() {
+        return expression;
+    }
+
+    /**
+     * Determine if an expression uses namespace prefixes, and so depends on the
+     * namespace bindings in effect when it is compiled.
+     *
+     * @param expression the xpath expression
+     * @return true if the expression contains a prefixed name
+     */
+    public static boolean usesPrefixes(String expression) {
+        String unquoted = stringLiteral.matcher(expression).replaceAll("''");
+        return prefixedName.matcher(unquoted).find();
+    }
+}
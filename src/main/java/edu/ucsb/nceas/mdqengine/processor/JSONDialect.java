@@ -13,14 +13,10 @@ import edu.ucsb.nceas.mdqengine.model.*;
 
 import javax.script.ScriptException;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.dataone.service.util.TypeMarshaller;
 
 import java.io.*;
-import java.net.URL;
-import java.text.SimpleDateFormat;
 import java.util.*;
 
 /**
@@ -32,8 +28,8 @@ import java.util.*;
  */
 public class JSONDialect extends AbstractMetadataDialect {
     private JsonNode rootNode;
-    private Dispatcher dispatcher;
     private Scope rootScope = Scope.newEmptyScope();
+    private String documentString;
     public static Log log = LogFactory.getLog(JSONDialect.class);
 
     public JSONDialect(InputStream input) throws IOException {
@@ -58,17 +54,18 @@ public class JSONDialect extends AbstractMetadataDialect {
     /**
      * Executes a quality check against a JSON document and returns the result.
      *
-     * @param check the {@link Check} to be executed
+     * @param compiled the {@link CompiledCheck} to be executed
      * @return a {@link Result} object representing the outcome of the check
      */
     @Override
-    public Result runCheck(Check check) {
+    public Result runCheck(CompiledCheck compiled) {
 
         Result result = new Result();
+        Check check = compiled.getCheck();
 
         log.debug("Running Check: " + check.getId());
 
-        if (!this.isCheckValid(check)) {
+        if (!this.isCheckValid(compiled)) {
             result.setStatus(Status.SKIP);
             result.setOutput(new Output("Check is not valid for this document"));
             return result;
@@ -85,10 +82,13 @@ public class JSONDialect extends AbstractMetadataDialect {
                     // NB: we don't have to worry about sub-selectors here because our jq
                     // expressions instead just chain together within a single selector element
                     if ("json-path".equals(syntax)) {
-                        String jq = expression.getValue();
                         Object value;
                         try {
-                            value = this.selectJsonPath(jq, rootNode);
+                            JsonQuery query = compiled.getJsonQuery(selector);
+                            if (query == null) {
+                                query = JsonQuery.compile(expression.getValue(), Versions.JQ_1_6);
+                            }
+                            value = this.selectJsonPath(query, rootNode);
                         } catch (JsonQueryException e) {
                             log.error("Error running check" + check.getId() + e.getMessage());
                             result.setStatus(Status.ERROR);
@@ -105,56 +105,34 @@ public class JSONDialect extends AbstractMetadataDialect {
             }
         }
 
-        // Add full JSON document
-        variables.put("document", rootNode.toPrettyString());
+        // builtin checks are run here, without a script engine
+        if (compiled.getBuiltin() != null) {
+            result = compiled.getBuiltin().run(variables);
+            result.setCheck(check);
+            result.setTimestamp(Calendar.getInstance().getTime());
+            return postProcess(result);
+        }
+
+        String code = compiled.getCode();
+
+        // Add full JSON document, if the check uses it
+        if (compiled.usesDocument(code)) {
+            variables.put("document", getDocumentString());
+        }
 
         // reset the global values to null
         // this prevents the next check from accidentally inheriting results
         variables.put("status", null);
         variables.put("output", null);
 
-        // include system metadata if available
-        if (this.systemMetadata != null) {
-            try {
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                TypeMarshaller.marshalTypeToOutputStream(systemMetadata, baos);
-                variables.put("systemMetadata", baos.toString("UTF-8"));
-                variables.put("datasource", systemMetadata.getOriginMemberNode().getValue());
-                // dateUploaded
-                // This unusual date format is acceptable to Solr - it must be GMT time, with
-                // no offset
-                SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
-                df.setTimeZone(TimeZone.getTimeZone("GMT"));
-                variables.put("dateUploaded", df.format(systemMetadata.getDateUploaded()));
-                variables.put("authoritativeMemberNode", systemMetadata.getAuthoritativeMemberNode().getValue());
-                variables.put("systemMetadataPid", systemMetadata.getIdentifier().getValue());
-            } catch (Exception e) {
-                log.error("Could not serialize SystemMetadata for check", e);
-            }
-        }
-        if (this.params != null) {
-            variables.put("mdq_params", params);
-        }
-        if (this.directory != null) {
-            variables.put("tempDir", directory);
-        }
-
-        String code = check.getCode();
-        if (check.getLibrary() != null) {
-            for (URL library : check.getLibrary()) {
-                try {
-                    code = IOUtils.toString(library.openStream(), "UTF-8") + code;
-                } catch (IOException e) {
-                    log.error("Could not load library", e);
-                }
-            }
-        }
-
         try {
+            Dispatcher dispatcher = this.dispatcher.get();
             if (!check.isInheritState() || dispatcher == null) {
                 dispatcher = Dispatcher.getDispatcher(check.getEnvironment());
+                this.dispatcher.set(dispatcher);
             }
-            result = dispatcher.dispatch(variables, code);
+            result = dispatcher.dispatch(variables, code, getRunContext().getVariables(), compiled.getCodeKey(code),
+                    Dispatcher.getTimeout(check));
         } catch (ScriptException e) {
             result.setStatus(Status.ERROR);
             result.setOutput(new Output(e.getMessage()));
@@ -165,6 +143,19 @@ public class JSONDialect extends AbstractMetadataDialect {
         return postProcess(result);
     }
 
+    /**
+     * Gets the document as a String for checks that use the 'document' variable,
+     * serializing it the first time it is needed.
+     *
+     * @return the pretty printed JSON document
+     */
+    private synchronized String getDocumentString() {
+        if (documentString == null) {
+            documentString = rootNode.toPrettyString();
+        }
+        return documentString;
+    }
+
     /**
      * Determine if the check is valid for the document
      * 
@@ -173,7 +164,12 @@ public class JSONDialect extends AbstractMetadataDialect {
      */
     @Override
     public boolean isCheckValid(Check check) {
+        return isCheckValid(new CompiledCheck(check));
+    }
+
+    private boolean isCheckValid(CompiledCheck compiled) {
 
+        Check check = compiled.getCheck();
         if (check.getDialect() == null) {
             log.debug("No dialects have been specified for check, assuming it is valid for this document");
             return true;
@@ -187,9 +183,12 @@ public class JSONDialect extends AbstractMetadataDialect {
                 continue;
             }
             log.debug("Dialect name: " + name + ", expression: " + expression.getValue());
-            String jq = expression.getValue();
             try {
-                Object value = this.selectJsonPath(jq, rootNode);
+                JsonQuery query = compiled.getJsonQuery(dialect);
+                if (query == null) {
+                    query = JsonQuery.compile(expression.getValue(), Versions.JQ_1_6);
+                }
+                Object value = this.selectJsonPath(query, rootNode);
                 if (value.equals("https://schema.org/")) {
                     return true;
                 }
@@ -213,10 +212,21 @@ public class JSONDialect extends AbstractMetadataDialect {
      */
 
     public Object selectJsonPath(String jqExpression, JsonNode jsonDoc) throws JsonQueryException {
-        Object value = null;
-
         // compile the jq expression
-        JsonQuery query;
+        return selectJsonPath(JsonQuery.compile(jqExpression, Versions.JQ_1_6), jsonDoc);
+    }
+
+    /**
+     * Applies a compiled jq expression to the given JSON document and returns the
+     * resulting value.
+     *
+     * @param query   the compiled jq expression
+     * @param jsonDoc the JSON document represented as a JsonNode
+     * @return the value resulting from the jq query
+     * @throws JsonQueryException if evaluation fails
+     */
+    public Object selectJsonPath(JsonQuery query, JsonNode jsonDoc) throws JsonQueryException {
+        Object value = null;
 
         // create child scope, this is very lightweight and we don't modify the root
         // scope
@@ -225,7 +235,6 @@ public class JSONDialect extends AbstractMetadataDialect {
         // apply the expression to the input JSON document
         List<JsonNode> resultNodes = new ArrayList<>();
 
-        query = JsonQuery.compile(jqExpression, Versions.JQ_1_6);
         query.apply(childScope, jsonDoc, resultNodes::add);
 
         // if only one node, make sure to return a single value
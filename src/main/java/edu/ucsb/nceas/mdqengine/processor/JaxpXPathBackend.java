@@ -0,0 +1,155 @@
+package edu.ucsb.nceas.mdqengine.processor;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.util.xml.SimpleNamespaceContext;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The default xpath backend, which evaluates XPath 1.0 expressions with
+ * javax.xml.xpath against a W3C DOM.
+ */
+public class JaxpXPathBackend implements XPathBackend {
+
+    public static Log log = LogFactory.getLog(JaxpXPathBackend.class);
+
+    private static ThreadLocal<XPathFactory> xPathFactory = ThreadLocal.withInitial(XPathFactory::newInstance);
+
+    @Override
+    public String getName() {
+        return JAXP;
+    }
+
+    @Override
+    public Object parse(byte[] source, boolean namespaceAware) throws XPathExpressionException {
+        try {
+            return parseDocument(source, namespaceAware);
+        } catch (SAXException | IOException | ParserConfigurationException e) {
+            XPathExpressionException xpee = new XPathExpressionException(
+                    "Could not parse the document: " + e.getMessage());
+            xpee.initCause(e);
+            throw xpee;
+        }
+    }
+
+    /**
+     * Parse a document into a DOM.
+     *
+     * @param source         the document
+     * @param namespaceAware if prefixes in the document should be resolved to
+     *                       namespaces
+     * @return the DOM
+     */
+    public static Document parseDocument(byte[] source, boolean namespaceAware)
+            throws SAXException, IOException, ParserConfigurationException {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(namespaceAware);
+        return factory.newDocumentBuilder().parse(new ByteArrayInputStream(source));
+    }
+
+    @Override
+    public CompiledXPath compile(String expression, Map<String, String> bindings) throws XPathExpressionException {
+        SimpleNamespaceContext nsContext = null;
+        if (bindings != null && !bindings.isEmpty()) {
+            nsContext = new SimpleNamespaceContext();
+            nsContext.setBindings(bindings);
+        }
+        return new JaxpCompiledXPath(expression, nsContext);
+    }
+
+    @Override
+    public String getStringValue(Object node) {
+        return ((Node) node).getTextContent();
+    }
+
+    @Override
+    public String serialize(Object document) {
+        try {
+            // not newInstance(), which would pick up Saxon's factory from the classpath
+            Transformer transformer = TransformerFactory.newDefaultInstance().newTransformer();
+            StreamResult result = new StreamResult(new StringWriter());
+            transformer.transform(new DOMSource((Node) document), result);
+            return result.getWriter().toString();
+        } catch (TransformerException ex) {
+            log.error("Error transforming to XML string. " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Compiled javax.xml.xpath expressions are neither thread-safe nor reentrant,
+     * so each thread evaluating the expression gets its own compiled copy.
+     */
+    private class JaxpCompiledXPath extends CompiledXPath {
+
+        private SimpleNamespaceContext namespaceContext;
+        private ThreadLocal<XPathExpression> compiled;
+
+        JaxpCompiledXPath(String expression, SimpleNamespaceContext namespaceContext)
+                throws XPathExpressionException {
+            super(expression);
+            this.namespaceContext = namespaceContext;
+
+            XPathExpression first = compile();
+            this.compiled = ThreadLocal.withInitial(() -> {
+                try {
+                    return compile();
+                } catch (XPathExpressionException e) {
+                    // this compiled without error on the first thread
+                    throw new IllegalStateException("Could not compile xpath: " + getExpression(), e);
+                }
+            });
+            this.compiled.set(first);
+        }
+
+        @Override
+        public List<?> selectNodes(Object item) throws XPathExpressionException {
+            NodeList nodes = (NodeList) compiled.get().evaluate(item, XPathConstants.NODESET);
+            List<Node> selected = new ArrayList<Node>(nodes.getLength());
+            for (int i = 0; i < nodes.getLength(); i++) {
+                selected.add(nodes.item(i));
+            }
+            return selected;
+        }
+
+        @Override
+        public String evaluate(Object item) throws XPathExpressionException {
+            return compiled.get().evaluate(item);
+        }
+
+        @Override
+        public XPathBackend getBackend() {
+            return JaxpXPathBackend.this;
+        }
+
+        private XPathExpression compile() throws XPathExpressionException {
+            XPath xpath = xPathFactory.get().newXPath();
+            if (namespaceContext != null) {
+                xpath.setNamespaceContext(namespaceContext);
+            }
+            return xpath.compile(getExpression());
+        }
+    }
+}
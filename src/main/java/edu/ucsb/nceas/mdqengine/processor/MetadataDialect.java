@@ -49,6 +49,28 @@ public interface MetadataDialect {
      */
     Result runCheck(Check check) throws XPathExpressionException, JsonQueryException;
 
+    /**
+     * Executes a check that has been compiled ahead of time (e.g. as part of a
+     * {@link SuitePlan}) against the metadata document. The result is the same as
+     * running the check itself, but the prepared expressions and library code are
+     * reused instead of being rebuilt for this document.
+     *
+     * @param check the compiled check to execute
+     * @return a {@link Result} object containing the outcome of the check
+     * @throws XPathExpressionException if an XPath evaluation fails
+     * @throws JsonQueryException       if a JQ expression evaluation fails
+     */
+    Result runCheck(CompiledCheck check) throws XPathExpressionException, JsonQueryException;
+
+    /**
+     * Prepares the document for running the given checks, e.g. by selecting the
+     * values the checks need up front. Checks that weren't prepared can still be
+     * run.
+     *
+     * @param checks the checks that will be run against this document
+     */
+    void prepare(List<CompiledCheck> checks);
+
     /**
      * Post-processes a result after the main check execution has completed.
      * 
@@ -67,6 +89,12 @@ public interface MetadataDialect {
      */
     boolean isCheckValid(Check check) throws XPathExpressionException;
 
+    /**
+     * Forgets the dispatcher state kept for checks with inheritState=true on the
+     * current thread, so that the next check starts a new chain.
+     */
+    void resetState();
+
     /**
      * Gets additional runtime parameters associated with the dialect instance.
      *
@@ -102,4 +130,13 @@ public interface MetadataDialect {
      * @param systemMetadata the system metadata object to associate
      */
     void setSystemMetadata(SystemMetadata systemMetadata);
+
+    /**
+     * Sets the run variables shared by every check run against this document.
+     * If no run context is set, one is built from the system metadata, parameters
+     * and directory of this dialect the first time a check is run.
+     *
+     * @param runContext the run variables
+     */
+    void setRunContext(RunContext runContext);
 }
@@ -0,0 +1,87 @@
+package edu.ucsb.nceas.mdqengine.processor;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.dataone.service.types.v2.SystemMetadata;
+import org.dataone.service.util.TypeMarshaller;
+
+import java.io.ByteArrayOutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * The variables that are the same for every check run against a document: the
+ * serialized system metadata and the fields derived from it, the data pids, the
+ * extra run parameters and the run's temporary directory.
+ *
+ * These are built once per run, rather than for every check, and are made
+ * available to each check alongside the values of its selectors. The variables
+ * can't be modified, and checks should treat them as read only.
+ */
+public class RunContext {
+
+    public static Log log = LogFactory.getLog(RunContext.class);
+
+    private Map<String, Object> variables;
+
+    /**
+     * Build the run variables.
+     *
+     * @param systemMetadata the system metadata of the document, may be null
+     * @param params         the extra parameters for the run, may be null
+     * @param directory      the directory checks can write files to, may be null
+     */
+    public RunContext(SystemMetadata systemMetadata, Map<String, Object> params, String directory) {
+
+        Map<String, Object> vars = new LinkedHashMap<String, Object>();
+
+        // include system metadata if available
+        if (systemMetadata != null) {
+            try {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                TypeMarshaller.marshalTypeToOutputStream(systemMetadata, baos);
+                vars.put("systemMetadata", baos.toString("UTF-8"));
+                vars.put("datasource", systemMetadata.getOriginMemberNode().getValue());
+                // dateUploaded
+                // This unusual date format is acceptable to Solr - it must be GMT time, with
+                // no offset
+                SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+                df.setTimeZone(TimeZone.getTimeZone("GMT"));
+                vars.put("dateUploaded", df.format(systemMetadata.getDateUploaded()));
+                vars.put("authoritativeMemberNode", systemMetadata.getAuthoritativeMemberNode().getValue());
+                vars.put("systemMetadataPid", systemMetadata.getIdentifier().getValue());
+            } catch (Exception e) {
+                log.error("Could not serialize SystemMetadata for run", e);
+            }
+        }
+
+        if (params != null) {
+            // if data pids are present, make them available to the check code
+            if (params.get("dataPids") != null) {
+                vars.put("dataPids", params.get("dataPids"));
+            }
+            // make extra parameters available to the check
+            vars.put("mdq_params", Collections.unmodifiableMap(new HashMap<String, Object>(params)));
+        }
+
+        // give the check a place to write files during the run
+        if (directory != null) {
+            vars.put("tempDir", directory);
+        }
+
+        this.variables = Collections.unmodifiableMap(vars);
+    }
+
+    /**
+     * Get the run variables, by name.
+     *
+     * @return the unmodifiable variables
+     */
+    public Map<String, Object> getVariables() {
+        return variables;
+    }
+}
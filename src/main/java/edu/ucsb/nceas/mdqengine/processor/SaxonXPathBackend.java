@@ -0,0 +1,148 @@
+package edu.ucsb.nceas.mdqengine.processor;
+
+import net.sf.saxon.om.TreeModel;
+import net.sf.saxon.s9api.DocumentBuilder;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.UnprefixedElementMatchingPolicy;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XPathExecutable;
+import net.sf.saxon.s9api.XPathSelector;
+import net.sf.saxon.s9api.XdmItem;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmValue;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.xpath.XPathExpressionException;
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An xpath backend that parses documents into Saxon's compact, immutable
+ * TinyTree and evaluates expressions with Saxon's XPath 3.1 engine. Parsed
+ * trees and compiled expressions can be shared by any number of threads.
+ *
+ * The results are the same as the default backend for the expressions used by
+ * checks, with these differences:
+ * <ul>
+ * <li>documents are always parsed with namespaces, so a document that uses an
+ * undeclared prefix can't be read,</li>
+ * <li>an unprefixed name (e.g. '/eml/dataset') matches elements in any
+ * namespace, which is how the default backend matches names against the
+ * namespace unaware view of a document, but a prefixed name only matches the
+ * namespace it is bound to,</li>
+ * <li>numbers are formatted as XPath 3.1 does when a result is converted to a
+ * String, e.g. very large or small numbers use an exponent.</li>
+ * </ul>
+ */
+public class SaxonXPathBackend implements XPathBackend {
+
+    public static Log log = LogFactory.getLog(SaxonXPathBackend.class);
+
+    private Processor processor = new Processor(false);
+
+    @Override
+    public String getName() {
+        return SAXON;
+    }
+
+    @Override
+    public Object parse(byte[] source, boolean namespaceAware) throws XPathExpressionException {
+        DocumentBuilder builder = processor.newDocumentBuilder();
+        builder.setTreeModel(TreeModel.TINY_TREE);
+        try {
+            return builder.build(new StreamSource(new ByteArrayInputStream(source)));
+        } catch (SaxonApiException e) {
+            throw wrap("Could not parse the document: ", e);
+        }
+    }
+
+    @Override
+    public CompiledXPath compile(String expression, Map<String, String> bindings) throws XPathExpressionException {
+        // compilers aren't thread-safe, but are cheap to create
+        XPathCompiler compiler = processor.newXPathCompiler();
+        compiler.setUnprefixedElementMatchingPolicy(UnprefixedElementMatchingPolicy.ANY_NAMESPACE);
+        if (bindings != null) {
+            for (Map.Entry<String, String> binding : bindings.entrySet()) {
+                compiler.declareNamespace(binding.getKey(), binding.getValue());
+            }
+        }
+        try {
+            return new SaxonCompiledXPath(expression, compiler.compile(expression));
+        } catch (SaxonApiException e) {
+            throw wrap("Could not compile xpath: ", e);
+        }
+    }
+
+    @Override
+    public String getStringValue(Object node) {
+        return ((XdmNode) node).getStringValue();
+    }
+
+    @Override
+    public String serialize(Object document) {
+        try {
+            return processor.newSerializer().serializeNodeToString((XdmNode) document);
+        } catch (SaxonApiException e) {
+            log.error("Error serializing document to XML string. " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static XPathExpressionException wrap(String message, SaxonApiException e) {
+        XPathExpressionException xpee = new XPathExpressionException(message + e.getMessage());
+        xpee.initCause(e);
+        return xpee;
+    }
+
+    private class SaxonCompiledXPath extends CompiledXPath {
+
+        // executables are thread-safe, the selectors loaded from them are not
+        private XPathExecutable executable;
+
+        SaxonCompiledXPath(String expression, XPathExecutable executable) {
+            super(expression);
+            this.executable = executable;
+        }
+
+        private XdmValue evaluateValue(Object item) throws XPathExpressionException {
+            try {
+                XPathSelector selector = executable.load();
+                selector.setContextItem((XdmItem) item);
+                return selector.evaluate();
+            } catch (SaxonApiException e) {
+                throw wrap("Could not evaluate xpath: ", e);
+            }
+        }
+
+        @Override
+        public List<?> selectNodes(Object item) throws XPathExpressionException {
+            XdmValue value = evaluateValue(item);
+            List<XdmNode> nodes = new ArrayList<XdmNode>(value.size());
+            for (XdmItem selected : value) {
+                if (selected.isAtomicValue()) {
+                    throw wrap("Could not select nodes: ",
+                            new SaxonApiException("the result of " + getExpression() + " is not a node set"));
+                }
+                nodes.add((XdmNode) selected);
+            }
+            return nodes;
+        }
+
+        @Override
+        public String evaluate(Object item) throws XPathExpressionException {
+            // the string value of the first item, as XPath 1.0 converts a node set
+            XdmValue value = evaluateValue(item);
+            return value.size() == 0 ? "" : value.itemAt(0).getStringValue();
+        }
+
+        @Override
+        public XPathBackend getBackend() {
+            return SaxonXPathBackend.this;
+        }
+    }
+}
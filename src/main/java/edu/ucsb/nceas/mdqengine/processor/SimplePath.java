@@ -0,0 +1,242 @@
+package edu.ucsb.nceas.mdqengine.processor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A simple xpath location path, such as '/eml/dataset/title',
+ * '//attribute/attributeName' or '/eml/@packageId', that can be evaluated
+ * while streaming through a document instead of against a DOM.
+ *
+ * A simple path is made of child ('/') and descendant ('//') steps, each of
+ * which is an element name, '*', or '*' with a predicate that only tests the
+ * local-name() of the element, optionally followed by a final attribute step.
+ * Anything else (other axes, predicates, functions, text() etc.) needs the
+ * DOM. Names are matched the same way as xpath matches them against the
+ * namespace unaware view of a document, that is by local name (so 'title'
+ * also matches 'x:title'), except that a path that is just '//name' only
+ * matches elements without a prefix.
+ */
+public class SimplePath {
+
+    private static Pattern boolTest = Pattern.compile("^\\s*boolean\\s*\\((.*)\\)\\s*$", Pattern.DOTALL);
+    private static Pattern name = Pattern.compile("[A-Za-z_][\\w.-]*");
+    private static Pattern localNameTest = Pattern
+            .compile("\\s*local-name\\(\\s*\\)\\s*=\\s*(?:'([^']*)'|\"([^\"]*)\")\\s*");
+    private static Pattern orOperator = Pattern.compile("or\\b");
+
+    private static class Step {
+        boolean descendant;
+        // the names to match, or null to match any element
+        Set<String> names;
+        // the step is a name, rather than a local-name() test
+        boolean nameTest = false;
+        boolean qualified = false;
+
+        boolean matches(String elementName) {
+            if (names == null) {
+                return true;
+            }
+            if (!qualified) {
+                int colon = elementName.indexOf(':');
+                elementName = colon >= 0 ? elementName.substring(colon + 1) : elementName;
+            }
+            return names.contains(elementName);
+        }
+    }
+
+    private String expression;
+    private List<Step> steps = new ArrayList<Step>();
+    private String attribute = null;
+
+    private SimplePath(String expression) {
+        this.expression = expression;
+    }
+
+    /**
+     * Parse an xpath that selects values, e.g. the xpath of a selector.
+     *
+     * @param xpath the expression
+     * @return the path, or null if the expression isn't a simple path
+     */
+    public static SimplePath parse(String xpath) {
+        if (xpath == null) {
+            return null;
+        }
+        SimplePath path = new SimplePath(xpath);
+        return path.parsePath(xpath.trim()) ? path : null;
+    }
+
+    /**
+     * Parse an xpath that tests a document, i.e. 'boolean(path)' where path is a
+     * simple path, as used by check dialects. The test is true if the path
+     * selects anything.
+     *
+     * @param xpath the expression
+     * @return the path tested by the expression, or null if the expression isn't a
+     *         test of a simple path
+     */
+    public static SimplePath parseTest(String xpath) {
+        if (xpath == null) {
+            return null;
+        }
+        Matcher matcher = boolTest.matcher(xpath);
+        if (!matcher.matches()) {
+            return null;
+        }
+        SimplePath path = parse(matcher.group(1));
+        if (path != null) {
+            path.expression = xpath;
+        }
+        return path;
+    }
+
+    private boolean parsePath(String xpath) {
+        int pos = 0;
+        int length = xpath.length();
+        while (pos < length) {
+            boolean descendant;
+            if (xpath.startsWith("//", pos)) {
+                descendant = true;
+                pos += 2;
+            } else if (xpath.charAt(pos) == '/') {
+                descendant = false;
+                pos += 1;
+            } else {
+                return false;
+            }
+            if (pos >= length) {
+                return false;
+            }
+
+            // a final attribute step
+            if (xpath.charAt(pos) == '@') {
+                Matcher matcher = name.matcher(xpath).region(pos + 1, length);
+                if (descendant || steps.isEmpty() || !matcher.lookingAt() || matcher.end() != length) {
+                    return false;
+                }
+                attribute = matcher.group();
+                return true;
+            }
+
+            Step step = new Step();
+            step.descendant = descendant;
+            if (xpath.charAt(pos) == '*') {
+                pos++;
+                if (pos < length && xpath.charAt(pos) == '[') {
+                    int end = xpath.indexOf(']', pos);
+                    if (end < 0) {
+                        return false;
+                    }
+                    step.names = parseLocalNames(xpath.substring(pos + 1, end));
+                    if (step.names == null) {
+                        return false;
+                    }
+                    pos = end + 1;
+                }
+            } else {
+                Matcher matcher = name.matcher(xpath).region(pos, length);
+                if (!matcher.lookingAt()) {
+                    return false;
+                }
+                step.names = Collections.singleton(matcher.group());
+                step.nameTest = true;
+                pos = matcher.end();
+            }
+            if (pos < length && xpath.charAt(pos) != '/') {
+                return false;
+            }
+            steps.add(step);
+        }
+        if (steps.isEmpty()) {
+            return false;
+        }
+        // xpath matches the name of an element with a prefix in this case
+        Step first = steps.get(0);
+        if (steps.size() == 1 && attribute == null && first.descendant && first.nameTest) {
+            first.qualified = true;
+        }
+        return true;
+    }
+
+    // parses "local-name() = 'a' or local-name() = 'b'"
+    private static Set<String> parseLocalNames(String predicate) {
+        Set<String> names = new HashSet<String>();
+        Matcher matcher = localNameTest.matcher(predicate);
+        int pos = 0;
+        while (true) {
+            matcher.region(pos, predicate.length());
+            if (!matcher.lookingAt()) {
+                return null;
+            }
+            names.add(matcher.group(1) != null ? matcher.group(1) : matcher.group(2));
+            pos = matcher.end();
+            if (pos == predicate.length()) {
+                return names;
+            }
+            Matcher or = orOperator.matcher(predicate).region(pos, predicate.length());
+            if (!or.lookingAt()) {
+                return null;
+            }
+            pos = or.end();
+        }
+    }
+
+    /**
+     * Determine if the path selects the element at the end of the given path from
+     * the root of the document (or, for an attribute path, the element whose
+     * attribute it selects).
+     *
+     * @param elements the names of the element and its ancestors, starting with
+     *                 the root element
+     * @return true if the element is selected
+     */
+    public boolean matches(List<String> elements) {
+        return matches(0, elements, 0);
+    }
+
+    private boolean matches(int stepIndex, List<String> elements, int depth) {
+        if (stepIndex == steps.size()) {
+            return depth == elements.size();
+        }
+        Step step = steps.get(stepIndex);
+        if (!step.descendant) {
+            return depth < elements.size() && step.matches(elements.get(depth))
+                    && matches(stepIndex + 1, elements, depth + 1);
+        }
+        for (int d = depth; d < elements.size(); d++) {
+            if (step.matches(elements.get(d)) && matches(stepIndex + 1, elements, d + 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the attribute selected from the matching elements.
+     *
+     * @return the attribute (local) name, or null if the path selects elements
+     */
+    public String getAttribute() {
+        return attribute;
+    }
+
+    /**
+     * Get the xpath this path was parsed from.
+     *
+     * @return the expression
+     */
+    public String getExpression() {
+        return expression;
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+}
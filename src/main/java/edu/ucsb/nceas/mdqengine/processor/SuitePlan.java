@@ -0,0 +1,138 @@
+package edu.ucsb.nceas.mdqengine.processor;
+
+import edu.ucsb.nceas.mdqengine.dispatch.MDQCache;
+import edu.ucsb.nceas.mdqengine.model.Check;
+import edu.ucsb.nceas.mdqengine.model.Suite;
+import edu.ucsb.nceas.mdqengine.store.MDQStore;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The checks of a suite, resolved and compiled so that the suite can be run
+ * against many documents without repeating that work.
+ *
+ * Check references are resolved against the store, and the level and type given
+ * in the suite are applied to a copy of the referenced check, so the checks in
+ * the store are never modified. The library code of the checks is fetched (or
+ * revalidated, see {@link MDQCache#getContent(java.net.URL)}) once, when the
+ * plan is compiled. A plan remembers the checks it was compiled
+ * from, so it can tell when the suite or one of its referenced checks has
+ * changed.
+ */
+public class SuitePlan {
+
+    public static Log log = LogFactory.getLog(SuitePlan.class);
+
+    private String suiteId;
+    private String contentHash;
+    private List<CompiledCheck> checks;
+    // the referenced check id to the store check it was resolved to (null if missing)
+    private Map<String, Check> references;
+
+    private SuitePlan(Suite suite, List<CompiledCheck> checks, Map<String, Check> references) {
+        this.suiteId = suite.getId();
+        this.contentHash = suite.getContentHash();
+        this.checks = Collections.unmodifiableList(checks);
+        this.references = references;
+    }
+
+    /**
+     * Resolve and compile the checks of a suite.
+     *
+     * @param suite the suite to compile
+     * @param store the store to resolve check references from
+     * @return the plan for the suite
+     */
+    public static SuitePlan compile(Suite suite, MDQStore store) {
+        List<CompiledCheck> checks = new ArrayList<CompiledCheck>();
+        Map<String, Check> references = new LinkedHashMap<String, Check>();
+        Map<String, String> libraries = new HashMap<String, String>();
+
+        if (suite.getCheck() != null) {
+            for (Check check : suite.getCheck()) {
+                // is this a reference to existing check?
+                if (check.getCode() == null && check.getId() != null) {
+                    Check storeCheck = store.getCheck(check.getId());
+                    references.put(check.getId(), storeCheck);
+
+                    // handle missing references gracefully
+                    if (storeCheck == null) {
+                        String msg = "Could not locate referenced check in store: " + check.getId();
+                        log.warn(msg);
+                        checks.add(CompiledCheck.skipped(check, msg));
+                        continue;
+                    }
+
+                    // The check type and level from the suite definition file takes precedence
+                    // over the check type and level defined in the check definition file.
+                    Check resolved = new Check(storeCheck);
+                    if (check.getLevel() != null)
+                        resolved.setLevel(check.getLevel());
+                    if (check.getType() != null)
+                        resolved.setType(check.getType());
+                    check = resolved;
+                }
+                CompiledCheck compiled = new CompiledCheck(check);
+                // fetch the library code now, rather than while running the first document
+                compiled.loadCode(libraries);
+                checks.add(compiled);
+            }
+        }
+
+        log.debug("Compiled plan for suite " + suite.getId() + " with " + checks.size() + " checks");
+        return new SuitePlan(suite, checks, references);
+    }
+
+    /**
+     * Determine if this plan can still be used to run the given suite: the suite
+     * has the same definition, and every referenced check still resolves to the
+     * same definition in the store.
+     *
+     * @param suite the suite to be run
+     * @param store the store that check references are resolved from
+     * @return true if the plan is current
+     */
+    public boolean isCurrent(Suite suite, MDQStore store) {
+        if (contentHash == null || !contentHash.equals(suite.getContentHash())) {
+            return false;
+        }
+        for (Map.Entry<String, Check> reference : references.entrySet()) {
+            Check planned = reference.getValue();
+            Check current = store.getCheck(reference.getKey());
+            if (planned == current) {
+                continue;
+            }
+            if (planned == null || current == null || planned.getContentHash() == null
+                    || !Objects.equals(planned.getContentHash(), current.getContentHash())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String getSuiteId() {
+        return suiteId;
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    /**
+     * Get the compiled checks, in suite order.
+     *
+     * @return the compiled checks
+     */
+    public List<CompiledCheck> getChecks() {
+        return checks;
+    }
+}
@@ -5,29 +5,18 @@ import edu.ucsb.nceas.mdqengine.model.*;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.dataone.service.util.TypeMarshaller;
-import org.springframework.util.xml.SimpleNamespaceContext;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
 import javax.script.ScriptException;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
 import java.io.*;
-import java.net.URL;
-import java.text.SimpleDateFormat;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 /**
@@ -35,64 +24,252 @@ import java.util.*;
  * documents.
  * 
  * This dialect provides xpath-based querying and namespace handling to support
- * extraction of values from XML-based metadata standards.
+ * extraction of values from XML-based metadata standards. Documents are parsed
+ * and expressions evaluated by the {@link XPathBackend} of the shared
+ * {@link XPathCache}.
  */
 public class XMLDialect extends AbstractMetadataDialect {
 
-	private Document document;
-	private Document nsAwareDocument;
-	private XPathFactory xPathfactory;
-	private Dispatcher dispatcher;
+	// the parsed document is only built if a selector or dialect can't be
+	// evaluated while streaming through the source
+	private XPathBackend backend;
+	private Object document;
+	private Object nsAwareDocument;
+	// the document source, used to parse the document and build the serialized
+	// document when they are first needed
+	private byte[] source;
+	private boolean doctype;
+	private String encoding;
+	private String documentString;
+	// values already selected from this document, shared by all checks
+	private Map<String, Object> selectorValues = new HashMap<String, Object>();
+	private Map<String, Boolean> dialectValues = new HashMap<String, Boolean>();
 	public static Log log = LogFactory.getLog(XMLDialect.class);
 
 	public XMLDialect(InputStream input) throws SAXException, IOException, ParserConfigurationException {
-		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-		factory.setNamespaceAware(false);
-		DocumentBuilder builder = factory.newDocumentBuilder();
 
-		DocumentBuilderFactory nsFactory = DocumentBuilderFactory.newInstance();
-		nsFactory.setNamespaceAware(true);
-		DocumentBuilder nsBuilder = nsFactory.newDocumentBuilder();
+		source = IOUtils.toByteArray(input);
+		backend = XPathCache.getShared().getBackend();
 
-		byte[] bytes = IOUtils.toByteArray(input);
+		// read through the document to check it and find its namespaces
+		XMLStreamPass scan = new XMLStreamPass(source, Collections.<SimplePath>emptyList());
+		try {
+			scan.run();
+		} catch (XMLStreamException e) {
+			log.debug("Could not stream document, parsing it instead: " + e.getMessage());
+			scan = null;
+		}
 
-		document = builder.parse(new ByteArrayInputStream(bytes));
-		nsAwareDocument = nsBuilder.parse(new ByteArrayInputStream(bytes));
+		if (scan == null || scan.hasDoctype()) {
+			// documents with a DTD are only read correctly by the DOM parser, which also
+			// reports why a document can't be read
+			Document dom = JaxpXPathBackend.parseDocument(source, false);
+			doctype = dom.getDoctype() != null;
+			encoding = dom.getInputEncoding();
+			if (backend instanceof JaxpXPathBackend) {
+				document = dom;
+			}
+			if (dom.getDocumentElement() != null) {
+				extractNamespaces(dom.getDocumentElement(), new HashMap<String, String>());
+			}
+		} else {
+			encoding = scan.getEncoding();
+			for (Map.Entry<String, String> entry : scan.getNamespaces().entrySet()) {
+				Namespace ns = new Namespace();
+				ns.setPrefix(entry.getValue());
+				ns.setUri(entry.getKey());
+				this.namespaces.put(entry.getKey(), ns);
+			}
+		}
+	}
 
-		// please let garbage collection take this space back
-		bytes = null;
+	/**
+	 * Gets the (namespace unaware) parsed document, parsing it the first time it
+	 * is needed.
+	 *
+	 * @return the document
+	 * @throws XPathExpressionException if the document cannot be parsed
+	 */
+	synchronized Object getDocument() throws XPathExpressionException {
+		if (document == null) {
+			document = backend.parse(source, false);
+		}
+		return document;
+	}
+
+	/**
+	 * Evaluates the selectors and dialect tests of the given checks that are
+	 * simple paths in a single pass through the document, so that the DOM is only
+	 * built if some of them need it. The values are kept for when the checks are
+	 * run.
+	 *
+	 * @param checks the checks that will be run against this document
+	 */
+	@Override
+	public synchronized void prepare(List<CompiledCheck> checks) {
 
-		xPathfactory = XPathFactory.newInstance();
+		// nothing to save once the document has been parsed
+		if (document != null) {
+			return;
+		}
+
+		Map<String, SimplePath> selectorPaths = new HashMap<String, SimplePath>();
+		Map<String, SimplePath> dialectPaths = new HashMap<String, SimplePath>();
+		for (CompiledCheck compiled : checks) {
+			Check check = compiled.getCheck();
+			if (compiled.getSkipReason() != null) {
+				continue;
+			}
+			if (check.getSelector() != null) {
+				for (Selector selector : check.getSelector()) {
+					SimplePath path = compiled.getSimplePath(selector);
+					String key = compiled.getSelectorKey(selector);
+					if (path != null && !selectorValues.containsKey(key)) {
+						selectorPaths.put(key, path);
+					}
+				}
+			}
+			if (check.getDialect() != null) {
+				for (Dialect dialect : check.getDialect()) {
+					SimplePath path = compiled.getSimplePath(dialect);
+					if (path != null && !dialectValues.containsKey(path.getExpression())) {
+						dialectPaths.put(path.getExpression(), path);
+					}
+				}
+			}
+		}
+		if (selectorPaths.isEmpty() && dialectPaths.isEmpty()) {
+			return;
+		}
+
+		List<SimplePath> paths = new ArrayList<SimplePath>(selectorPaths.values());
+		paths.addAll(dialectPaths.values());
+		XMLStreamPass pass = new XMLStreamPass(source, paths);
+		try {
+			pass.run();
+		} catch (XMLStreamException e) {
+			log.debug("Could not stream document, selecting values from the DOM: " + e.getMessage());
+			return;
+		}
+
+		for (Map.Entry<String, SimplePath> entry : selectorPaths.entrySet()) {
+			List<String> values = pass.getValues(entry.getValue());
+			Object value = null;
+			if (values.size() == 1) {
+				value = ProcessorUtils.retypeObject(values.get(0));
+			} else if (values.size() > 1) {
+				List<Object> retyped = new ArrayList<Object>(values.size());
+				for (String item : values) {
+					retyped.add(ProcessorUtils.retypeObject(item));
+				}
+				value = retyped;
+			}
+			selectorValues.put(entry.getKey(), value);
+		}
+		for (Map.Entry<String, SimplePath> entry : dialectPaths.entrySet()) {
+			dialectValues.put(entry.getKey(), !pass.getValues(entry.getValue()).isEmpty());
+		}
+		log.debug("Selected " + selectorPaths.size() + " selectors and " + dialectPaths.size()
+				+ " dialect tests while streaming the document");
+	}
 
-		// now we can extract the namespaces from the source document
-		this.extractNamespaces();
+	/**
+	 * Gets the namespace aware view of the document, parsing it the first time it
+	 * is needed.
+	 *
+	 * @return the namespace aware document
+	 * @throws XPathExpressionException if the document cannot be parsed with
+	 *                                  namespaces, e.g. it uses an undeclared
+	 *                                  prefix
+	 */
+	private synchronized Object getNsAwareDocument() throws XPathExpressionException {
+		if (nsAwareDocument == null) {
+			nsAwareDocument = backend.parse(source, true);
+		}
+		return nsAwareDocument;
+	}
 
+	/**
+	 * Gets the document as a String for checks that use the 'document' variable.
+	 * It is built once per document: the source text is used as is if it is UTF-8
+	 * and has no DOCTYPE (so there are no entities that the parser would have
+	 * expanded), otherwise the parsed document is serialized.
+	 *
+	 * @return the document as an XML string
+	 */
+	private synchronized String getDocumentString() throws XPathExpressionException {
+		if (documentString == null) {
+			if (!doctype && (encoding == null || encoding.equalsIgnoreCase("UTF-8"))) {
+				documentString = new String(source, StandardCharsets.UTF_8);
+				// drop any byte order mark
+				if (documentString.startsWith("\uFEFF")) {
+					documentString = documentString.substring(1);
+				}
+			} else {
+				documentString = backend.serialize(getDocument());
+			}
+		}
+		return documentString;
 	}
 
+	/**
+	 * Finds the namespace of every element in the document, keeping the prefix
+	 * that is first used for each namespace. The namespaces are resolved from the
+	 * xmlns declarations while walking the document, so the namespace aware view
+	 * isn't needed.
+	 */
 	@Override
 	public void extractNamespaces() {
-		XPath xpath = xPathfactory.newXPath();
-		NodeList nodes = null;
+		Document dom;
 		try {
-			String selectorPath = "//*[namespace-uri()]";
-
-			nodes = (NodeList) xpath.evaluate(selectorPath, this.nsAwareDocument, XPathConstants.NODESET);
-			if (nodes != null && nodes.getLength() > 0) {
-				for (int i = 0; i < nodes.getLength(); i++) {
-					Node node = nodes.item(i);
-					String uri = node.getNamespaceURI();
-					String prefix = node.getPrefix();
-
-					Namespace ns = new Namespace();
-					ns.setPrefix(prefix);
-					ns.setUri(uri);
-					if (!this.namespaces.containsKey(uri)) {
-						this.namespaces.put(uri, ns);
-					}
+			dom = JaxpXPathBackend.parseDocument(source, false);
+		} catch (SAXException | IOException | ParserConfigurationException e) {
+			log.error("Could not parse the document: " + e.getMessage());
+			return;
+		}
+		if (dom.getDocumentElement() != null) {
+			extractNamespaces(dom.getDocumentElement(), new HashMap<String, String>());
+		}
+	}
+
+	private void extractNamespaces(Element element, Map<String, String> inScope) {
+
+		// add any namespaces declared on this element to those in scope
+		NamedNodeMap attributes = element.getAttributes();
+		boolean copied = false;
+		for (int i = 0; i < attributes.getLength(); i++) {
+			String name = attributes.item(i).getNodeName();
+			String declaredPrefix = null;
+			if (name.equals("xmlns")) {
+				declaredPrefix = "";
+			} else if (name.startsWith("xmlns:")) {
+				declaredPrefix = name.substring("xmlns:".length());
+			}
+			if (declaredPrefix != null) {
+				// the parent's scope is shared with its other children
+				if (!copied) {
+					inScope = new HashMap<String, String>(inScope);
+					copied = true;
 				}
+				inScope.put(declaredPrefix, attributes.item(i).getNodeValue());
+			}
+		}
+
+		String name = element.getNodeName();
+		int colon = name.indexOf(':');
+		String prefix = colon > 0 ? name.substring(0, colon) : null;
+		String uri = inScope.get(prefix == null ? "" : prefix);
+		if (uri != null && !uri.isEmpty() && !this.namespaces.containsKey(uri)) {
+			Namespace ns = new Namespace();
+			ns.setPrefix(prefix);
+			ns.setUri(uri);
+			this.namespaces.put(uri, ns);
+		}
+
+		for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (child.getNodeType() == Node.ELEMENT_NODE) {
+				extractNamespaces((Element) child, inScope);
 			}
-		} catch (XPathExpressionException e) {
-			log.error("Could not extract the namespaces from document", e);
 		}
 	}
 
@@ -107,87 +284,41 @@ public class XMLDialect extends AbstractMetadataDialect {
 	}
 
 	@Override
-	public Result runCheck(Check check) throws XPathExpressionException {
+	public Result runCheck(CompiledCheck compiled) throws XPathExpressionException {
 
 		Result result = null;
+		Check check = compiled.getCheck();
 
 		log.debug("Running Check: " + check.getId());
 
 		// only bother dispatching if check can be applied to this document
-		if (this.isCheckValid(check)) {
+		boolean valid = this.isCheckValid(compiled);
+		if (valid && compiled.getBuiltin() != null) {
+
+			// builtin checks are run here, without a script engine
+			result = compiled.getBuiltin().run(this.selectVariables(compiled));
+
+		} else if (valid) {
 
 			// gather the variable name/value details
-			Map<String, Object> variables = new HashMap<String, Object>();
-			if (check.getSelector() != null) {
-				for (Selector selector : check.getSelector()) {
+			Map<String, Object> variables = this.selectVariables(compiled);
 
-					Document docToUse = document;
-					if (selector.isNamespaceAware()) {
-						docToUse = nsAwareDocument;
-					}
-					String name = selector.getName();
-					// look for xpath syntax in the expression element
-					Expression ex = selector.getExpression();
-					Boolean xpathExpressionPresent = false;
-
-					if (ex != null) {
-						if (ex.getSyntax() == "xpath") {
-							xpathExpressionPresent = true;
-						}
-					}
-					// select xpath if we found one of the two types that can be present
-					if (selector.getXpath() != null | xpathExpressionPresent) {
-						Object value = this.selectXPath(selector, docToUse);
-						// make available in script
-						variables.put(name, value);
-					}
-				}
-			}
+			// assemble the code to run, with any extra code from external resources
+			String code = compiled.getCode();
 
-			// make the entire dom available
+			// make the entire dom available, if the check uses it
 			// TODO: string seems like only viable option for all env
-			variables.put("document", toXmlString(document));
+			if (compiled.usesDocument(code)) {
+				variables.put("document", getDocumentString());
+			}
 
 			// reset the global values to null
 			// this prevents the next check from accidentally inheriting results
 			variables.put("status", null);
 			variables.put("output", null);
 
-			// include system metadata if available
-			if (this.systemMetadata != null) {
-				try {
-					ByteArrayOutputStream baos = new ByteArrayOutputStream();
-					TypeMarshaller.marshalTypeToOutputStream(systemMetadata, baos);
-					variables.put("systemMetadata", baos.toString("UTF-8"));
-					variables.put("datasource", systemMetadata.getOriginMemberNode().getValue());
-					// dateUploaded
-					// This unusual date format is acceptable to Solr - it must be GMT time, with
-					// no offset
-					SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
-					df.setTimeZone(TimeZone.getTimeZone("GMT"));
-					variables.put("dateUploaded", df.format(systemMetadata.getDateUploaded()));
-					variables.put("authoritativeMemberNode", systemMetadata.getAuthoritativeMemberNode().getValue());
-					variables.put("systemMetadataPid", systemMetadata.getIdentifier().getValue());
-				} catch (Exception e) {
-					log.error("Could not serialize SystemMetadata for check", e);
-				}
-			}
-			// if data pids are present, make them available to the check code
-			if (this.params.get("dataPids") != null) {
-				variables.put("dataPids", this.params.get("dataPids"));
-			}
-
-			// make extra parameters available to the check if we have them
-			if (this.params != null) {
-				variables.put("mdq_params", params);
-			}
-
-			// give the check a place to write files during the run
-			if (this.directory != null) {
-				variables.put("tempDir", directory);
-			}
-
 			// dispatch to checker impl
+			Dispatcher dispatcher = this.dispatcher.get();
 			if (!check.isInheritState() || dispatcher == null) {
 				// create a fresh dispatcher
 				dispatcher = Dispatcher.getDispatcher(check.getEnvironment());
@@ -227,34 +358,11 @@ public class XMLDialect extends AbstractMetadataDialect {
 
 				}
 			}
-
-			// assemble the code to run
-			String code = check.getCode();
-
-			// gather extra code from external resources
-			List<URL> libraries = check.getLibrary();
-			if (libraries != null) {
-				String libraryContent = "";
-				for (URL library : libraries) {
-					// TODO: loading random code from a URL is very risky!
-					log.debug("Loading library code from URL: " + library);
-					// read the library from given URL
-					try {
-						libraryContent += IOUtils.toString(library.openStream(), "UTF-8");
-					} catch (IOException e) {
-						log.error("Could not load code library: " + e.getMessage(), e);
-						// report this
-						result = new Result();
-						result.setStatus(Status.ERROR);
-						result.setOutput(new Output(e.getMessage()));
-					}
-				}
-				// combine libraries and code
-				code = libraryContent + code;
-			}
+			this.dispatcher.set(dispatcher);
 
 			try {
-				result = dispatcher.dispatch(variables, code);
+				result = dispatcher.dispatch(variables, code, getRunContext().getVariables(), compiled.getCodeKey(code),
+						Dispatcher.getTimeout(check));
 			} catch (ScriptException e) {
 				// report this
 				result = new Result();
@@ -279,16 +387,66 @@ public class XMLDialect extends AbstractMetadataDialect {
 		return result;
 	}
 
+	/**
+	 * Evaluates the selectors of the given check against the document. A selector
+	 * that was already evaluated for another check gets the same value without
+	 * evaluating it again. Access to the DOM is serialized because the parsed
+	 * documents are not safe for concurrent reads.
+	 *
+	 * @param compiled the check whose selectors should be evaluated
+	 * @return the variable name/values to make available to the check code
+	 * @throws XPathExpressionException if a selector cannot be evaluated
+	 */
+	private synchronized Map<String, Object> selectVariables(CompiledCheck compiled) throws XPathExpressionException {
+
+		Check check = compiled.getCheck();
+		Map<String, Object> variables = new HashMap<String, Object>();
+		if (check.getSelector() != null) {
+			for (Selector selector : check.getSelector()) {
+
+				String name = selector.getName();
+				// look for xpath syntax in the expression element
+				Expression ex = selector.getExpression();
+				Boolean xpathExpressionPresent = false;
+
+				if (ex != null) {
+					if (ex.getSyntax() == "xpath") {
+						xpathExpressionPresent = true;
+					}
+				}
+				// select xpath if we found one of the two types that can be present
+				if (selector.getXpath() != null | xpathExpressionPresent) {
+					Object value;
+					String key = compiled.getSelectorKey(selector);
+					if (selectorValues.containsKey(key)) {
+						value = copyValue(selectorValues.get(key));
+					} else {
+						Object docToUse = selector.isNamespaceAware() ? getNsAwareDocument() : getDocument();
+						value = this.selectXPath(compiled, selector, docToUse);
+						selectorValues.put(key, copyValue(value));
+					}
+					// make available in script
+					variables.put(name, value);
+				}
+			}
+		}
+
+		return variables;
+	}
+
 	@Override
 	public boolean isCheckValid(Check check) throws XPathExpressionException {
+		return isCheckValid(new CompiledCheck(check));
+	}
 
+	private synchronized boolean isCheckValid(CompiledCheck compiled) throws XPathExpressionException {
+
+		Check check = compiled.getCheck();
 		if (check.getDialect() == null) {
 			log.debug("No dialects have been specified for check, assuming it is valid for this document");
 			return true;
 		}
 
-		XPath xpath = xPathfactory.newXPath();
-
 		for (Dialect dialect : check.getDialect()) {
 
 			String name = dialect.getName();
@@ -307,9 +465,18 @@ public class XMLDialect extends AbstractMetadataDialect {
 			}
 
 			log.debug("Dialect name: " + name + ", expression: " + expression);
-			String value = xpath.evaluate(expression, document);
+			// many checks test for the same dialects
+			Boolean valid = dialectValues.get(expression);
+			if (valid == null) {
+				CompiledXPath compiledExpression = compiled.getXPath(dialect);
+				if (compiledExpression == null || compiledExpression.getBackend() != backend) {
+					compiledExpression = XPathCache.getShared().get(expression, null);
+				}
+				valid = Boolean.valueOf(compiledExpression.evaluate(getDocument()));
+				dialectValues.put(expression, valid);
+			}
 
-			if (Boolean.valueOf(value)) {
+			if (valid) {
 				log.debug("Dialect " + name + " is valid for document ");
 				return true;
 			} else {
@@ -341,8 +508,49 @@ public class XMLDialect extends AbstractMetadataDialect {
 	 *                                  be evaluated
 	 */
 	public Object selectXPath(Selector selector, Node contextNode) throws XPathExpressionException {
+		return selectXPath(null, selector, (Object) contextNode);
+	}
 
-		Object value = null;
+	/**
+	 * Evaluates the xpath of a selector against a document or node of the
+	 * dialect's xpath backend, e.g. a DOM {@link Node} for the default backend or
+	 * a Saxon node for the 'saxon' backend.
+	 *
+	 * @param selector    the {@link Selector} containing the xpath expression
+	 * @param contextNode the document or node to evaluate the xpath expression
+	 *                    against
+	 * @return the value(s) extracted by the xpath expression, or null if no match
+	 *         is found
+	 * @throws XPathExpressionException if the xpath expression is invalid or cannot
+	 *                                  be evaluated
+	 */
+	Object selectXPath(Selector selector, Object contextNode) throws XPathExpressionException {
+		return selectXPath(null, selector, contextNode);
+	}
+
+	/**
+	 * Evaluates the xpath of a selector, using the expression compiled for it by
+	 * the given check if there is one.
+	 *
+	 * @param compiled    the check the selector belongs to, or null
+	 * @param selector    the {@link Selector} containing the xpath expression
+	 * @param contextNode the document or node to evaluate the xpath expression
+	 *                    against
+	 * @return the value(s) extracted by the xpath expression, or null if no match
+	 *         is found
+	 * @throws XPathExpressionException if the xpath expression is invalid or cannot
+	 *                                  be evaluated
+	 */
+	private Object selectXPath(CompiledCheck compiled, Selector selector, Object contextNode)
+			throws XPathExpressionException {
+
+		CompiledXPath compiledPath = null;
+		if (compiled != null) {
+			compiledPath = compiled.getXPath(selector);
+		}
+		if (compiledPath != null && compiledPath.getBackend() == backend) {
+			return selectNodes(compiled, selector, compiledPath, contextNode);
+		}
 
 		// select one or more values from document
 		String selectorPath = selector.getXpath();
@@ -354,72 +562,90 @@ public class XMLDialect extends AbstractMetadataDialect {
 			}
 		}
 
-		XPath xpath = xPathfactory.newXPath();
-
 		// combine the found namespaces and any additional ones asserted by selector.
-		// order matters here
-		List<Namespace> selectorNamespaces = new ArrayList<Namespace>();
+		// order matters here, the asserted namespaces override the found ones
+		Map<String, String> bindings = new HashMap<String, String>();
+		bindNamespaces(bindings, this.namespaces.values());
+		bindNamespaces(bindings, selector.getNamespace());
 
-		if (this.namespaces.values() != null) {
-			selectorNamespaces.addAll(this.namespaces.values());
-		}
-		if (selector.getNamespace() != null) {
-			selectorNamespaces.addAll(selector.getNamespace());
+		try {
+			compiledPath = XPathCache.getShared().get(selectorPath, bindings);
+		} catch (XPathExpressionException xpee) {
+			log.error("Selector '" + selector.getName() + "'" + " could not select single value with given Xpath: "
+					+ xpee.getMessage());
+			return null;
 		}
+		return selectNodes(compiled, selector, compiledPath, contextNode);
 
-		// do we have any to actually set now?
-		if (selectorNamespaces != null && selectorNamespaces.size() > 0) {
-			SimpleNamespaceContext nsContext = new SimpleNamespaceContext();
-			Iterator<Namespace> nsIter = selectorNamespaces.iterator();
-			while (nsIter.hasNext()) {
-				Namespace entry = nsIter.next();
-				String prefix = entry.getPrefix();
-				String uri = entry.getUri();
-				// Some metadata files may have improper xmlns declarations that don't include
-				// a prefix (encountered in Dryad Data), so skip these.
-				if (prefix == null) {
-					continue;
-				}
+	}
 
-				// make sure we are overriding the found namespace[s] with the asserted ones
-				String existing = nsContext.getNamespaceURI(prefix);
-				if (existing == null) {
-					nsContext.removeBinding(prefix);
-				}
-				nsContext.bindNamespaceUri(prefix, uri);
+	private void bindNamespaces(Map<String, String> bindings, Collection<Namespace> namespaces) {
+		if (namespaces == null) {
+			return;
+		}
+		for (Namespace entry : namespaces) {
+			// Some metadata files may have improper xmlns declarations that don't include
+			// a prefix (encountered in Dryad Data), so skip these.
+			if (entry.getPrefix() == null) {
+				continue;
+			}
+			bindings.put(entry.getPrefix(), entry.getUri());
+		}
+	}
+
+	/**
+	 * Copies a selected value, so that a check can't change the value given to
+	 * other checks. Selected values are Strings, numbers, booleans or (nested)
+	 * lists of these.
+	 */
+	private static Object copyValue(Object value) {
+		if (value instanceof List<?> list) {
+			List<Object> copy = new ArrayList<Object>(list.size());
+			for (Object item : list) {
+				copy.add(copyValue(item));
 			}
-			xpath.setNamespaceContext(nsContext);
+			return copy;
 		}
+		return value;
+	}
+
+	/**
+	 * Evaluates a compiled selector xpath. A node set with a single node gives a
+	 * single value, more nodes (or a sub-selector) give a list of values, and an
+	 * expression that doesn't select nodes (e.g. count()) gives its value.
+	 */
+	private Object selectNodes(CompiledCheck compiled, Selector selector, CompiledXPath xpath, Object contextNode)
+			throws XPathExpressionException {
+
+		Object value = null;
 
 		// try multiple first
-		NodeList nodes = null;
+		List<?> nodes = null;
 		try {
-			nodes = (NodeList) xpath.evaluate(selectorPath, contextNode, XPathConstants.NODESET);
+			nodes = xpath.selectNodes(contextNode);
 
-			if (nodes != null && nodes.getLength() == 1 && selector.getSubSelector() == null) {
+			if (nodes != null && nodes.size() == 1 && selector.getSubSelector() == null) {
 
 				// just return single value, as a String
-				value = nodes.item(0).getTextContent();
+				value = backend.getStringValue(nodes.get(0));
 				value = ProcessorUtils.retypeObject(value);
 
 			}
 
-			else if (nodes.getLength() > 0 || selector.getSubSelector() != null) {
+			else if (nodes.size() > 0 || selector.getSubSelector() != null) {
 
 				// multiple values
 				List<Object> values = new ArrayList<Object>();
 
-				for (int i = 0; i < nodes.getLength(); i++) {
-					Node node = nodes.item(i);
+				for (Object node : nodes) {
 					// is there a subselector?
 					if (selector.getSubSelector() != null) {
-						Selector subSelector = selector.getSubSelector();
 						// recurse
-						Object subvalue = this.selectXPath(subSelector, node);
+						Object subvalue = this.selectXPath(compiled, selector.getSubSelector(), node);
 						values.add(subvalue);
 					} else {
 						// otherwise just add the node value
-						value = node.getTextContent();
+						value = backend.getStringValue(node);
 						value = ProcessorUtils.retypeObject(value);
 						values.add(value);
 					}
@@ -432,7 +658,7 @@ public class XMLDialect extends AbstractMetadataDialect {
 
 			// try just a single value
 			try {
-				value = xpath.evaluate(selectorPath, contextNode);
+				value = xpath.evaluate(contextNode);
 				value = ProcessorUtils.retypeObject(value);
 			} catch (XPathExpressionException xpee2) {
 				log.error("Selector '" + selector.getName() + "'" + " could not select single value with given Xpath: "
@@ -442,7 +668,6 @@ public class XMLDialect extends AbstractMetadataDialect {
 		}
 
 		return value;
-
 	}
 
 	/**
@@ -455,17 +680,7 @@ public class XMLDialect extends AbstractMetadataDialect {
 	 *         error occurs
 	 */
 	public String toXmlString(Document document) {
-		try {
-			Transformer transformer = TransformerFactory.newInstance().newTransformer();
-			StreamResult result = new StreamResult(new StringWriter());
-			DOMSource source = new DOMSource(document);
-			transformer.transform(source, result);
-			return result.getWriter().toString();
-		} catch (TransformerException ex) {
-			log.error("Error transforming to XML string. " + ex.getMessage());
-			return null;
-		}
-
+		return new JaxpXPathBackend().serialize(document);
 	}
 
 }
@@ -0,0 +1,243 @@
+package edu.ucsb.nceas.mdqengine.processor;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A single pass through a document with a streaming (StAX) parser, that
+ * selects the values of any number of {@link SimplePath}s at once and finds
+ * the namespaces used by the document, without building a DOM.
+ *
+ * The document is read the same way as the namespace unaware DOM is: the value
+ * of a selected element is all of the text it contains, and the value of a
+ * selected attribute is its value. Documents with a DOCTYPE are not read past
+ * the DOCTYPE, since entities and default attributes declared in the DTD are
+ * only applied by the DOM parser, see {@link #hasDoctype()}.
+ */
+public class XMLStreamPass {
+
+    private static XMLInputFactory factory;
+
+    static {
+        factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    }
+
+    private byte[] source;
+    private Collection<SimplePath> paths;
+    private Map<SimplePath, List<String>> values = new IdentityHashMap<SimplePath, List<String>>();
+    private Map<String, String> namespaces = new LinkedHashMap<String, String>();
+    private boolean doctype = false;
+    private String encoding = null;
+
+    // an element selected by a path, whose text is being collected
+    private static class Selection {
+        List<String> values;
+        int index;
+        int depth;
+        StringBuilder text = new StringBuilder();
+    }
+
+    /**
+     * @param source the document
+     * @param paths  the paths to select values for
+     */
+    public XMLStreamPass(byte[] source, Collection<SimplePath> paths) {
+        this.source = source;
+        this.paths = paths;
+        for (SimplePath path : paths) {
+            values.put(path, new ArrayList<String>());
+        }
+    }
+
+    /**
+     * Read the document.
+     *
+     * @throws XMLStreamException if the document can't be read, e.g. it is not
+     *                            well-formed
+     */
+    public void run() throws XMLStreamException {
+
+        XMLStreamReader reader;
+        synchronized (factory) {
+            reader = factory.createXMLStreamReader(new ByteArrayInputStream(source));
+        }
+        try {
+            encoding = reader.getEncoding();
+
+            List<String> elements = new ArrayList<String>();
+            List<Map<String, String>> scopes = new ArrayList<Map<String, String>>();
+            Map<String, String> inScope = new HashMap<String, String>();
+            List<Selection> open = new ArrayList<Selection>();
+
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                case XMLStreamConstants.DTD:
+                    doctype = true;
+                    return;
+
+                case XMLStreamConstants.START_ELEMENT:
+                    String name = reader.getLocalName();
+                    elements.add(name);
+                    scopes.add(inScope);
+                    inScope = declareNamespaces(reader, inScope);
+                    findNamespace(name, inScope);
+
+                    for (SimplePath path : paths) {
+                        if (!path.matches(elements)) {
+                            continue;
+                        }
+                        if (path.getAttribute() == null) {
+                            // reserve the place of this value, nested selected elements end first
+                            Selection selection = new Selection();
+                            selection.values = values.get(path);
+                            selection.index = selection.values.size();
+                            selection.depth = elements.size();
+                            selection.values.add(null);
+                            open.add(selection);
+                        } else {
+                            addAttributes(reader, path.getAttribute(), values.get(path));
+                        }
+                    }
+                    break;
+
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                case XMLStreamConstants.ENTITY_REFERENCE:
+                    if (!open.isEmpty()) {
+                        String text = reader.getText();
+                        for (Selection selection : open) {
+                            selection.text.append(text);
+                        }
+                    }
+                    break;
+
+                case XMLStreamConstants.END_ELEMENT:
+                    for (int i = open.size() - 1; i >= 0 && open.get(i).depth == elements.size(); i--) {
+                        Selection selection = open.remove(i);
+                        selection.values.set(selection.index, selection.text.toString());
+                    }
+                    elements.remove(elements.size() - 1);
+                    inScope = scopes.remove(scopes.size() - 1);
+                    break;
+
+                default:
+                    // comments and processing instructions aren't part of the text
+                    break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static Map<String, String> declareNamespaces(XMLStreamReader reader, Map<String, String> inScope) {
+        Map<String, String> scope = inScope;
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            String name = attributeName(reader, i);
+            String declaredPrefix = null;
+            if (name.equals("xmlns")) {
+                declaredPrefix = "";
+            } else if (name.startsWith("xmlns:")) {
+                declaredPrefix = name.substring("xmlns:".length());
+            }
+            if (declaredPrefix != null) {
+                // the parent's scope is shared with its other children
+                if (scope == inScope) {
+                    scope = new HashMap<String, String>(inScope);
+                }
+                scope.put(declaredPrefix, reader.getAttributeValue(i));
+            }
+        }
+        return scope;
+    }
+
+    private void findNamespace(String name, Map<String, String> inScope) {
+        int colon = name.indexOf(':');
+        String prefix = colon > 0 ? name.substring(0, colon) : null;
+        String uri = inScope.get(prefix == null ? "" : prefix);
+        if (uri != null && !uri.isEmpty() && !namespaces.containsKey(uri)) {
+            namespaces.put(uri, prefix);
+        }
+    }
+
+    // the DOM selects every attribute with the local name, ordered by their names
+    private static void addAttributes(XMLStreamReader reader, String localName, List<String> values) {
+        TreeMap<String, String> selected = null;
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            String name = attributeName(reader, i);
+            if (name.equals("xmlns") || name.startsWith("xmlns:")) {
+                continue;
+            }
+            int colon = name.indexOf(':');
+            if ((colon >= 0 ? name.substring(colon + 1) : name).equals(localName)) {
+                if (selected == null) {
+                    selected = new TreeMap<String, String>();
+                }
+                selected.put(name, reader.getAttributeValue(i));
+            }
+        }
+        if (selected != null) {
+            values.addAll(selected.values());
+        }
+    }
+
+    // the attribute name as it is written in the document
+    private static String attributeName(XMLStreamReader reader, int index) {
+        String prefix = reader.getAttributePrefix(index);
+        String localName = reader.getAttributeLocalName(index);
+        return prefix == null || prefix.isEmpty() ? localName : prefix + ":" + localName;
+    }
+
+    /**
+     * Get the values selected by a path, in document order.
+     *
+     * @param path one of the paths given to this pass
+     * @return the selected values
+     */
+    public List<String> getValues(SimplePath path) {
+        return values.get(path);
+    }
+
+    /**
+     * Get the namespaces used by the elements of the document, with the prefix
+     * each is first used with.
+     *
+     * @return the prefixes (null for the default namespace) by namespace uri
+     */
+    public Map<String, String> getNamespaces() {
+        return namespaces;
+    }
+
+    /**
+     * Determine if the document has a DOCTYPE. If it does, the document wasn't
+     * read and should be parsed into a DOM instead.
+     *
+     * @return true if the document has a DOCTYPE
+     */
+    public boolean hasDoctype() {
+        return doctype;
+    }
+
+    /**
+     * Get the encoding the document was read with.
+     *
+     * @return the encoding, or null if it isn't known
+     */
+    public String getEncoding() {
+        return encoding;
+    }
+}
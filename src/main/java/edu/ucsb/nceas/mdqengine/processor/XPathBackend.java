@@ -0,0 +1,88 @@
+package edu.ucsb.nceas.mdqengine.processor;
+
+import javax.xml.xpath.XPathExpressionException;
+import java.util.Map;
+
+/**
+ * The document model and xpath engine that XML dialects evaluate selectors and
+ * dialect tests with. Documents and nodes are opaque to the dialect: they are
+ * created by {@link #parse} and only passed back to expressions compiled by the
+ * same backend.
+ *
+ * The backend is chosen with the 'engine.xpath.backend' configuration property,
+ * see {@link #forName(String)}.
+ */
+public interface XPathBackend {
+
+    /**
+     * The name of the javax.xml.xpath (DOM) backend, the default.
+     */
+    String JAXP = "jaxp";
+
+    /**
+     * The name of the Saxon (TinyTree) backend.
+     */
+    String SAXON = "saxon";
+
+    /**
+     * Get the name this backend is configured with.
+     *
+     * @return the backend name
+     */
+    String getName();
+
+    /**
+     * Parse a document.
+     *
+     * @param source         the document
+     * @param namespaceAware if prefixes in the document should be resolved to
+     *                       namespaces
+     * @return the parsed document
+     * @throws XPathExpressionException if the document cannot be parsed
+     */
+    Object parse(byte[] source, boolean namespaceAware) throws XPathExpressionException;
+
+    /**
+     * Compile an expression.
+     *
+     * @param expression the xpath expression
+     * @param bindings   the namespace prefix to uri bindings used to resolve
+     *                   prefixes in the expression, may be null
+     * @return the compiled expression
+     * @throws XPathExpressionException if the expression cannot be compiled
+     */
+    CompiledXPath compile(String expression, Map<String, String> bindings) throws XPathExpressionException;
+
+    /**
+     * Get the text of a node selected by an expression, i.e. all of the text it
+     * contains or its value if it is an attribute.
+     *
+     * @param node the node
+     * @return the text of the node
+     */
+    String getStringValue(Object node);
+
+    /**
+     * Serialize a parsed document.
+     *
+     * @param document the document
+     * @return the document as an XML string, or null if it can't be serialized
+     */
+    String serialize(Object document);
+
+    /**
+     * Create the backend with the given name.
+     *
+     * @param name the backend name, 'jaxp' or 'saxon'
+     * @return the backend
+     * @throws IllegalArgumentException if there is no backend with the name
+     */
+    static XPathBackend forName(String name) {
+        if (name == null || name.trim().isEmpty() || name.trim().equalsIgnoreCase(JAXP)) {
+            return new JaxpXPathBackend();
+        } else if (name.trim().equalsIgnoreCase(SAXON)) {
+            return new SaxonXPathBackend();
+        }
+        throw new IllegalArgumentException("Unknown xpath backend: " + name);
+    }
+}
@@ -0,0 +1,193 @@
+package edu.ucsb.nceas.mdqengine.processor;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.xml.xpath.XPathExpressionException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A process wide cache of compiled xpath expressions, so that the expressions
+ * used by selectors and dialects are compiled once rather than every time they
+ * are evaluated.
+ *
+ * Expressions are cached by their text and the namespace bindings they were
+ * compiled with. Expressions that don't use namespace prefixes don't depend on
+ * the bindings, so they are shared by every document. The least recently used
+ * expressions are discarded once the cache is full.
+ *
+ * Expressions are compiled by the cache's {@link XPathBackend}, the
+ * javax.xml.xpath backend unless another one has been set.
+ */
+public class XPathCache {
+
+    public static Log log = LogFactory.getLog(XPathCache.class);
+
+    public static final int DEFAULT_MAX_SIZE = 1000;
+
+    private static XPathCache shared = new XPathCache(DEFAULT_MAX_SIZE);
+
+    private volatile int maxSize;
+    private volatile XPathBackend backend = new JaxpXPathBackend();
+    private Map<String, CompiledXPath> expressions;
+
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+    private AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Create a cache holding up to the given number of compiled expressions.
+     *
+     * @param maxSize the maximum number of expressions to keep
+     */
+    public XPathCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.expressions = new LinkedHashMap<String, CompiledXPath>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompiledXPath> eldest) {
+                if (size() > XPathCache.this.maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get the cache shared by all dialects in this process.
+     *
+     * @return the shared cache
+     */
+    public static XPathCache getShared() {
+        return shared;
+    }
+
+    /**
+     * Get a compiled expression, compiling it if it is not in the cache.
+     *
+     * @param expression the xpath expression
+     * @param bindings   the namespace prefix to uri bindings in effect for the
+     *                   expression, may be null
+     * @return the compiled expression
+     * @throws XPathExpressionException if the expression cannot be compiled
+     */
+    public CompiledXPath get(String expression, Map<String, String> bindings) throws XPathExpressionException {
+
+        // the bindings only matter if the expression uses prefixes
+        boolean prefixed = bindings != null && !bindings.isEmpty() && CompiledXPath.usesPrefixes(expression);
+        String key = prefixed ? expression + '\n' + new TreeMap<String, String>(bindings) : expression;
+
+        XPathBackend backend = this.backend;
+        CompiledXPath compiled;
+        synchronized (expressions) {
+            compiled = expressions.get(key);
+        }
+        if (compiled != null) {
+            hits.incrementAndGet();
+            return compiled;
+        }
+        misses.incrementAndGet();
+
+        // compile outside the lock, an expression compiled twice at once is harmless
+        compiled = backend.compile(expression, prefixed ? bindings : null);
+        synchronized (expressions) {
+            // don't keep an expression compiled by a backend that has since been replaced
+            if (backend == this.backend) {
+                expressions.put(key, compiled);
+            }
+        }
+        return compiled;
+    }
+
+    /**
+     * Set the backend that compiles expressions. The cached expressions are
+     * discarded if the backend is changed, since they can only be evaluated
+     * against documents parsed by the backend that compiled them.
+     *
+     * @param backend the xpath backend
+     */
+    public void setBackend(XPathBackend backend) {
+        synchronized (expressions) {
+            if (backend.getClass() != this.backend.getClass()) {
+                log.info("Using the " + backend.getName() + " xpath backend");
+                this.backend = backend;
+                expressions.clear();
+            }
+        }
+    }
+
+    public XPathBackend getBackend() {
+        return backend;
+    }
+
+    /**
+     * Set the maximum number of expressions to keep. Expressions are discarded
+     * as new ones are added until the cache is within the new size.
+     *
+     * @param maxSize the maximum number of expressions
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Get the number of expressions in the cache.
+     *
+     * @return the number of cached expressions
+     */
+    public int size() {
+        synchronized (expressions) {
+            return expressions.size();
+        }
+    }
+
+    /**
+     * Get the number of lookups that found a compiled expression.
+     *
+     * @return the hit count
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of lookups that had to compile the expression.
+     *
+     * @return the miss count
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Get the number of expressions discarded to keep the cache within its size.
+     *
+     * @return the eviction count
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Remove all expressions from the cache. The counters are not reset.
+     */
+    public void clear() {
+        synchronized (expressions) {
+            expressions.clear();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "XPathCache[size=" + size() + ", maxSize=" + maxSize + ", hits=" + hits.get() + ", misses="
+                + misses.get() + ", evictions=" + evictions.get() + "]";
+    }
+}
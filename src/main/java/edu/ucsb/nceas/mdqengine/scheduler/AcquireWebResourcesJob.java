@@ -1,6 +1,7 @@
 package edu.ucsb.nceas.mdqengine.scheduler;
 
 import edu.ucsb.nceas.mdqengine.MDQconfig;
+import edu.ucsb.nceas.mdqengine.dispatch.MDQCache;
 import edu.ucsb.nceas.mdqengine.exception.MetadigFilestoreException;
 import edu.ucsb.nceas.mdqengine.exception.MetadigStoreException;
 import org.apache.commons.csv.CSVFormat;
@@ -30,6 +31,12 @@ import java.util.Arrays;
  * metadata assessment checks. The location of the downloads file
  * is specified in the metadig.properties file property "downloadList".
  * </p>
+ * <p>
+ * If the property "cache.bundle" is set, each resource is also fetched
+ * through the MDQCache, and the cache is then exported to that bundle
+ * file, so that workers can import it at startup instead of fetching
+ * the resources on their first reports.
+ * </p>
  *
  * @author Peter Slaughter
  */
@@ -68,10 +75,12 @@ public class AcquireWebResourcesJob implements Job {
     public void execute(JobExecutionContext context) throws JobExecutionException {
 
         String downloadListFilepath = null;
+        String bundleFilepath = null;
 
         try {
             MDQconfig cfg = new MDQconfig();
             downloadListFilepath = cfg.getString("downloadsList");
+            bundleFilepath = cfg.getString("cache.bundle", null);
             log.debug("downloadListFilepath: " + downloadListFilepath);
             if (downloadListFilepath == null) {
                 String errMsg = "Value retrieved for 'downloadsList' file path from config "
@@ -145,6 +154,22 @@ public class AcquireWebResourcesJob implements Job {
                 log.error("Invalid URL specified for download source resource " + "\"" + source + "\""
                         + mue.getMessage());
             }
+
+            if (bundleFilepath != null && !bundleFilepath.trim().isEmpty()) {
+                try {
+                    MDQCache.get(source);
+                } catch (IOException ioe) {
+                    log.error("Unable to cache web resource " + "\"" + source + "\": " + ioe.getMessage());
+                }
+            }
+        }
+
+        if (bundleFilepath != null && !bundleFilepath.trim().isEmpty()) {
+            try {
+                MDQCache.exportBundle(new File(bundleFilepath.trim()));
+            } catch (IOException ioe) {
+                log.error("Unable to write cache bundle " + "\"" + bundleFilepath + "\": " + ioe.getMessage());
+            }
         }
     }
 
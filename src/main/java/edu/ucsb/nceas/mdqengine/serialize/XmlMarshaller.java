@@ -86,8 +86,9 @@ public class XmlMarshaller {
 		InputStream schemaStreamV1 = XmlMarshaller.class.getResourceAsStream("/schemas/schema1.xsd");
 		InputStream schemaStreamV11 = XmlMarshaller.class.getResourceAsStream("/schemas/schema1.1.xsd");
 		InputStream schemaStreamV12 = XmlMarshaller.class.getResourceAsStream("/schemas/schema1.2.xsd");
+		InputStream schemaStreamV13 = XmlMarshaller.class.getResourceAsStream("/schemas/schema1.3.xsd");
 
-		if (schemaStreamV1 == null || schemaStreamV11 == null || schemaStreamV12 == null) {
+		if (schemaStreamV1 == null || schemaStreamV11 == null || schemaStreamV12 == null || schemaStreamV13 == null) {
 			throw new IOException("One or more schema files not found");
 		}
 
@@ -95,7 +96,8 @@ public class XmlMarshaller {
 		Schema schema = factory.newSchema(new StreamSource[] {
 				new StreamSource(schemaStreamV1),
 				new StreamSource(schemaStreamV11),
-				new StreamSource(schemaStreamV12)
+				new StreamSource(schemaStreamV12),
+				new StreamSource(schemaStreamV13)
 		});
 		u.setSchema(schema);
 
@@ -122,8 +124,9 @@ public class XmlMarshaller {
 			return null;
 
 		Map<String, String> nsMap = Map.of(
-				"https://nceas.ucsb.edu/mdqe/v1", "https://nceas.ucsb.edu/mdqe/v1.2",
-				"https://nceas.ucsb.edu/mdqe/v1.1", "https://nceas.ucsb.edu/mdqe/v1.2");
+				"https://nceas.ucsb.edu/mdqe/v1", "https://nceas.ucsb.edu/mdqe/v1.3",
+				"https://nceas.ucsb.edu/mdqe/v1.1", "https://nceas.ucsb.edu/mdqe/v1.3",
+				"https://nceas.ucsb.edu/mdqe/v1.2", "https://nceas.ucsb.edu/mdqe/v1.3");
 
 		String result = xml;
 
@@ -131,9 +134,10 @@ public class XmlMarshaller {
 			result = result.replace(
 					"xmlns:mdq=\"" + entry.getKey() + "\"",
 					"xmlns:mdq=\"" + entry.getValue() + "\"");
+			// the namespace is followed by the schema location
 			result = result.replace(
-					"xsi:schemaLocation=\"" + entry.getKey(),
-					"xsi:schemaLocation=\"" + entry.getValue());
+					"xsi:schemaLocation=\"" + entry.getKey() + " ",
+					"xsi:schemaLocation=\"" + entry.getValue() + " ");
 		}
 		return result;
 	}
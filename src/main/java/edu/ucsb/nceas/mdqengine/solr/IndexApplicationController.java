@@ -13,14 +13,28 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 //import org.apache.solr.client.solrj.impl.HttpSolrClient;
 
 //import org.springframework.context.ApplicationContext;
 
+/**
+ * Indexes quality reports with the SolrIndex beans of a Spring configuration
+ * file, using one Solr client.
+ *
+ * Creating a controller starts a Spring context and parses the index
+ * configuration, so a process that indexes many reports should use the
+ * controller returned by {@link #getShared(String, String)}, which is created
+ * once and used for the life of the process. A controller is safe to use from
+ * several threads: the Solr client pools its connections, and each SolrIndex
+ * processes one document at a time.
+ */
 public class IndexApplicationController {
 
     private static String SOLRINDEXES = "solrIndexes";
+    // the controllers shared by the process, by configuration file and Solr location
+    private static Map<String, IndexApplicationController> shared = new HashMap<String, IndexApplicationController>();
     private static String solrLocation = null;
     // TODO: configure Solr server (location, cloud vs standalone) via config parameters
     private static ArrayList<String> solrLocations = new ArrayList<String>(
@@ -73,6 +87,38 @@ public class IndexApplicationController {
         log.debug("ApplicationController initialized");
     }
 
+    /**
+     * Get the controller shared by the process for a Spring configuration file
+     * and Solr location, initializing it the first time it is used. It must not
+     * be shut down by the callers, see {@link #shutdownShared()}.
+     *
+     * @param configFile   the path of the Spring configuration file
+     * @param solrLocation the Solr location, or null for 'solr.location'
+     * @return the initialized controller
+     * @throws Exception if the controller can't be initialized
+     */
+    public static synchronized IndexApplicationController getShared(String configFile, String solrLocation)
+            throws Exception {
+        String key = configFile + " " + solrLocation;
+        IndexApplicationController controller = shared.get(key);
+        if (controller == null) {
+            controller = new IndexApplicationController();
+            controller.initialize(configFile, solrLocation);
+            shared.put(key, controller);
+        }
+        return controller;
+    }
+
+    /**
+     * Shut down the shared controllers, when the process stops.
+     */
+    public static synchronized void shutdownShared() {
+        for (IndexApplicationController controller : shared.values()) {
+            controller.shutdown();
+        }
+        shared.clear();
+    }
+
     /**
      * Get the ApplicaionContext of Spring.
      */
@@ -117,23 +163,31 @@ public class IndexApplicationController {
             is.read(buffer);
 
             tFile = File.createTempFile("tempfile", ".xml");
-            OutputStream outStream = new FileOutputStream(tFile);
-            outStream.write(buffer);
+            try (OutputStream outStream = new FileOutputStream(tFile)) {
+                outStream.write(buffer);
+            }
         } catch(IOException e){
             log.error("Unable to create output stream from metadata document.");
+            if (tFile != null) {
+                tFile.delete();
+            }
             throw e;
         }
 
-        if (sysmeta != null) {
-            try {
-                for (SolrIndex solrIndex: solrIndexes) {
-                    log.trace("calling solrIndex.insert()...");
-                    solrIndex.insert(pid, sysmeta, tFile.getAbsolutePath());
+        try {
+            if (sysmeta != null) {
+                try {
+                    for (SolrIndex solrIndex: solrIndexes) {
+                        log.trace("calling solrIndex.insert()...");
+                        solrIndex.insert(pid, sysmeta, tFile.getAbsolutePath());
+                    }
+                } catch (Exception e) {
+                    log.error("Unable to insert Solr document for PID: " + pid.getValue());
+                    throw e;
                 }
-            } catch (Exception e) {
-                log.error("Unable to insert Solr document for PID: " + pid.getValue());
-                throw e;
             }
+        } finally {
+            tFile.delete();
         }
     }
 
@@ -180,6 +234,10 @@ public class IndexApplicationController {
         } catch (Exception e) {
             log.error("Unable to shutdown Solr client: " + e.getMessage());
         }
+        if (context != null) {
+            context.close();
+            context = null;
+        }
     }
 
 }
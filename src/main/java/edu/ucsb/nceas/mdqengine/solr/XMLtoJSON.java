@@ -74,7 +74,8 @@ public class XMLtoJSON implements ISolrField {
             DOMSource domSource = new DOMSource(doc);
             StringWriter writer = new StringWriter();
             StreamResult result = new StreamResult(writer);
-            TransformerFactory tf = TransformerFactory.newInstance();
+            // use the JDK's transformer rather than whichever factory is found on the classpath
+            TransformerFactory tf = TransformerFactory.newDefaultInstance();
             Transformer transformer = tf.newTransformer();
             transformer.transform(domSource, result);
             xmlString = writer.toString();
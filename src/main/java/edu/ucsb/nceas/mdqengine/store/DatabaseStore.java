@@ -4,6 +4,7 @@ import edu.ucsb.nceas.mdqengine.MDQconfig;
 import edu.ucsb.nceas.mdqengine.exception.MetadigStoreException;
 import edu.ucsb.nceas.mdqengine.model.*;
 import edu.ucsb.nceas.mdqengine.serialize.XmlMarshaller;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.configuration2.ex.ConfigurationException;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.ArrayUtils;
@@ -125,6 +126,7 @@ public class DatabaseStore implements MDQStore, AutoCloseable {
                     URL url = resource.getURL();
                     String xml = IOUtils.toString(url.openStream(), "UTF-8");
                     suite = (Suite) XmlMarshaller.fromXml(xml, Suite.class);
+                    suite.setContentHash(DigestUtils.md5Hex(xml));
                 } catch (ParserConfigurationException | JAXBException | IOException | SAXException e) {
                     log.error("Could not load suite.");
                     continue;
@@ -193,12 +195,11 @@ public class DatabaseStore implements MDQStore, AutoCloseable {
                     // first migrate the schema forward
                     String ns = XmlMarshaller.getRootNamespace(resultStr);
 
-                    if ("https://nceas.ucsb.edu/mdqe/v1".equals(ns) || "https://nceas.ucsb.edu/mdqe/v1.1".equals(ns)) {
-                        // Replace known older namespaces with v1.2
-                        resultStr = resultStr.replace("https://nceas.ucsb.edu/mdqe/v1",
-                                "https://nceas.ucsb.edu/mdqe/v1.2");
-                        resultStr = resultStr.replace("https://nceas.ucsb.edu/mdqe/v1.1",
-                                "https://nceas.ucsb.edu/mdqe/v1.2");
+                    if ("https://nceas.ucsb.edu/mdqe/v1".equals(ns) || "https://nceas.ucsb.edu/mdqe/v1.1".equals(ns)
+                            || "https://nceas.ucsb.edu/mdqe/v1.2".equals(ns)) {
+                        // Replace known older namespaces with v1.3
+                        resultStr = resultStr.replaceAll("https://nceas\\.ucsb\\.edu/mdqe/v1(\\.[12])?(?![.0-9])",
+                                "https://nceas.ucsb.edu/mdqe/v1.3");
                     }
 
                     InputStream is = new ByteArrayInputStream(resultStr.getBytes());
@@ -4,6 +4,7 @@ import edu.ucsb.nceas.mdqengine.MDQconfig;
 import edu.ucsb.nceas.mdqengine.exception.MetadigStoreException;
 import edu.ucsb.nceas.mdqengine.model.*;
 import edu.ucsb.nceas.mdqengine.serialize.XmlMarshaller;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.configuration2.ex.ConfigurationException;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.ArrayUtils;
@@ -108,6 +109,7 @@ public class InMemoryStore implements MDQStore {
 					log.debug("Loading suite found at: " + url.toString());
 					String xml = IOUtils.toString(url.openStream(), "UTF-8");
 					suite = (Suite) XmlMarshaller.fromXml(xml, Suite.class);
+					suite.setContentHash(DigestUtils.md5Hex(xml));
 				} catch (ParserConfigurationException | JAXBException | IOException | SAXException e) {
 					log.warn("Could not load suite '" + resource.getFilename() + "' due to an error: " + e.getMessage()
 							+ ".");
@@ -143,6 +145,7 @@ public class InMemoryStore implements MDQStore {
 					log.trace("Loading check found at: " + url.toString());
 					String xml = IOUtils.toString(url.openStream(), "UTF-8");
 					check = (Check) XmlMarshaller.fromXml(xml, Check.class);
+					check.setContentHash(DigestUtils.md5Hex(xml));
 				} catch (ParserConfigurationException | JAXBException | IOException | SAXException e) {
 					log.warn("Could not load check '" + resource.getFilename() + "' due to an error: " + e.getMessage()
 							+ ".");
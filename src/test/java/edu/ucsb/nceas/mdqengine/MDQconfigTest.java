@@ -0,0 +1,119 @@
+package edu.ucsb.nceas.mdqengine;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MDQconfigTest {
+
+    @TempDir
+    File tempDir;
+
+    private File properties;
+    private String originalPath;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        properties = new File(tempDir, "metadig.properties");
+        write("engine.parallelism = 2\nstore.store_path = /var/data/repos/metadig\nstore.store_depth = 3\n");
+        originalPath = setConfigFilePath(properties.getAbsolutePath());
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        setConfigFilePath(originalPath);
+    }
+
+    private void write(String contents) throws Exception {
+        Files.write(properties.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String setConfigFilePath(String path) throws Exception {
+        Field field = MDQconfig.class.getDeclaredField("configFilePath");
+        field.setAccessible(true);
+        String previous = (String) field.get(null);
+        field.set(null, path);
+        return previous;
+    }
+
+    @Test
+    public void testValues() throws Exception {
+        MDQconfig cfg = new MDQconfig();
+        assertEquals("2", cfg.getString("engine.parallelism"));
+        assertEquals(2, cfg.getInt("engine.parallelism"));
+        assertEquals(4, cfg.getInt("engine.parallelism.java", 4));
+        assertNull(cfg.getString("engine.parallelism.java"));
+        assertThrows(RuntimeException.class, () -> cfg.getInt("engine.parallelism.java"));
+
+        Map<String, Object> storeConfiguration = cfg.getStoreConfiguration();
+        assertEquals(2, storeConfiguration.size());
+        assertEquals("/var/data/repos/metadig", storeConfiguration.get("store_path"));
+        assertEquals("3", storeConfiguration.get("store_depth"));
+        // a check that changes its copy doesn't change what other checks get
+        storeConfiguration.put("store_depth", "4");
+        assertEquals("3", cfg.getStoreConfiguration().get("store_depth"));
+    }
+
+    @Test
+    public void testReload() throws Exception {
+        MDQconfig before = new MDQconfig();
+        write("engine.parallelism = 3\n");
+        MDQconfig.reload();
+        MDQconfig after = new MDQconfig();
+
+        // an instance keeps the values it was created with
+        assertEquals(2, before.getInt("engine.parallelism"));
+        assertEquals(3, after.getInt("engine.parallelism"));
+        assertEquals(0, after.getStoreConfiguration().size());
+
+        // the current values are kept if the file can't be read
+        properties.delete();
+        MDQconfig.reload();
+        assertEquals(3, new MDQconfig().getInt("engine.parallelism"));
+    }
+
+    private static WatchEvent<Path> event(WatchEvent.Kind<Path> kind, String name) {
+        return new WatchEvent<Path>() {
+            public WatchEvent.Kind<Path> kind() {
+                return kind;
+            }
+
+            public int count() {
+                return 1;
+            }
+
+            public Path context() {
+                return Path.of(name);
+            }
+        };
+    }
+
+    @Test
+    public void testConfigChange() {
+        Path fileName = Path.of("metadig.properties");
+        assertTrue(MDQconfig.isConfigChange(event(StandardWatchEventKinds.ENTRY_MODIFY, "metadig.properties"),
+                fileName));
+        assertTrue(MDQconfig.isConfigChange(event(StandardWatchEventKinds.ENTRY_CREATE, "..data"), fileName));
+        // other files in the directory are ignored
+        assertFalse(MDQconfig.isConfigChange(event(StandardWatchEventKinds.ENTRY_CREATE, "metadig.properties.swp"),
+                fileName));
+        assertFalse(MDQconfig.isConfigChange(event(StandardWatchEventKinds.ENTRY_MODIFY, "log4j2.properties"),
+                fileName));
+    }
+}
@@ -0,0 +1,87 @@
+package edu.ucsb.nceas.mdqengine;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PipelineStageTest {
+
+    @Test
+    public void testStages() throws Exception {
+        List<Integer> done = new CopyOnWriteArrayList<>();
+        CountDownLatch finished = new CountDownLatch(4);
+        PipelineStage<Integer> first = new PipelineStage<>("first", 2, 1, item -> {
+            if (item == 3) {
+                throw new IllegalStateException("three");
+            }
+            // odd items skip the rest of the pipeline
+            return item % 2 == 0;
+        });
+        PipelineStage<Integer> last = new PipelineStage<>("last", 1, 1, item -> {
+            done.add(item);
+            finished.countDown();
+            return false;
+        });
+        first.then(last);
+        first.start();
+        last.start();
+        try {
+            for (int i = 0; i < 9; i++) {
+                first.put(i);
+            }
+            assertTrue(finished.await(10, TimeUnit.SECONDS));
+            assertEquals(4, done.size());
+            assertTrue(done.containsAll(List.of(0, 2, 4, 6)));
+
+            Map<String, Long> metrics = first.getMetrics();
+            for (int i = 0; i < 100 && metrics.get("processed") < 9; i++) {
+                Thread.sleep(10);
+                metrics = first.getMetrics();
+            }
+            assertEquals(9, (long) metrics.get("processed"));
+            assertEquals(1, (long) metrics.get("failed"));
+        } finally {
+            first.stop();
+            last.stop();
+        }
+    }
+
+    @Test
+    public void testBackpressure() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        PipelineStage<Integer> slow = new PipelineStage<>("slow", 1, 1, item -> {
+            release.await();
+            return false;
+        });
+        slow.start();
+        try {
+            // one item is processed and one waits in the queue, so the third has to wait
+            slow.put(1);
+            slow.put(2);
+            Thread producer = new Thread(() -> {
+                try {
+                    slow.put(3);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            producer.start();
+            producer.join(200);
+            assertTrue(producer.isAlive());
+
+            release.countDown();
+            producer.join(10000);
+            assertFalse(producer.isAlive());
+        } finally {
+            slow.stop();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package edu.ucsb.nceas.mdqengine;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+public class SharedEngineTest {
+
+    @TempDir
+    File tempDir;
+
+    private File write(String path, String contents) throws Exception {
+        File file = new File(tempDir, path);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    @Test
+    public void testFingerprint() throws Exception {
+        assertEquals("", SharedEngine.fingerprint(tempDir));
+
+        write("suites/suite.xml", "<suite/>");
+        File check = write("checks/check.xml", "<check/>");
+        String loaded = SharedEngine.fingerprint(tempDir);
+        assertEquals(loaded, SharedEngine.fingerprint(tempDir));
+
+        // other files are ignored
+        write("checks/README.md", "checks");
+        assertEquals(loaded, SharedEngine.fingerprint(tempDir));
+
+        write("checks/check.xml", "<check id=\"a\"/>");
+        String changed = SharedEngine.fingerprint(tempDir);
+        assertNotEquals(loaded, changed);
+
+        check.setLastModified(check.lastModified() - 60000);
+        assertNotEquals(changed, SharedEngine.fingerprint(tempDir));
+
+        check.delete();
+        assertNotEquals(changed, SharedEngine.fingerprint(tempDir));
+    }
+}
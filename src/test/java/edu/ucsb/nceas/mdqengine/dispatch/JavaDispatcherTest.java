@@ -1,16 +1,24 @@
 package edu.ucsb.nceas.mdqengine.dispatch;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.script.ScriptException;
 
 import edu.ucsb.nceas.mdqengine.model.Result;
+import edu.ucsb.nceas.mdqengine.model.Status;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
 public class JavaDispatcherTest {
@@ -37,4 +45,106 @@ public class JavaDispatcherTest {
 		}
 		assertEquals("true", result.getOutput().get(0).getValue());
 	}
+
+	@Test
+	public void testUnknownVariables() {
+		// variables without a property are ignored, and the class is reused
+		for (int i = 0; i < 3; i++) {
+			Map<String, Object> names = new HashMap<String, Object>();
+			names.put("x", i);
+			names.put("y", 1);
+			names.put("storeConfiguration", new HashMap<String, Object>());
+			Result result = null;
+			try {
+				result = dispatcher.dispatch(names, MockJavaEqualityCheck.class.getName());
+			} catch (ScriptException e) {
+				e.printStackTrace();
+				fail(e.getMessage());
+			}
+			assertEquals(String.valueOf(i == 1), result.getOutput().get(0).getValue());
+		}
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+		Map<String, Object> names = new HashMap<String, Object>();
+		names.put("millis", 5000);
+		Result result = dispatcher.dispatch(names, MockJavaSleepCheck.class.getName(),
+				new HashMap<String, Object>(), null, 1);
+		assertEquals(Status.ERROR, result.getStatus());
+		assertTrue(result.getOutput().get(0).getValue().contains("time limit"));
+
+		// checks within their budget still complete
+		names.put("millis", 10);
+		result = dispatcher.dispatch(names, MockJavaSleepCheck.class.getName(), new HashMap<String, Object>(), null, 1);
+		assertEquals(Status.SUCCESS, result.getStatus());
+	}
+
+	@Test
+	public void testAbandonedThreads() throws Exception {
+		// enough checks that ignore the interrupt to hold every thread of the pool
+		int size = JavaDispatcher.DEFAULT_POOL_SIZE;
+		ExecutorService callers = Executors.newFixedThreadPool(size);
+		try {
+			List<Callable<Result>> hanging = new ArrayList<Callable<Result>>();
+			for (int i = 0; i < size; i++) {
+				hanging.add(() -> {
+					Map<String, Object> names = new HashMap<String, Object>();
+					names.put("millis", 4000);
+					names.put("uninterruptible", true);
+					return dispatcher.dispatch(names, MockJavaSleepCheck.class.getName(),
+							new HashMap<String, Object>(), null, 1);
+				});
+			}
+			for (Future<Result> result : callers.invokeAll(hanging)) {
+				assertEquals(Status.ERROR, result.get().getStatus());
+			}
+
+			// the next check gets a new thread rather than waiting for them
+			Map<String, Object> names = new HashMap<String, Object>();
+			names.put("millis", 10);
+			long start = System.currentTimeMillis();
+			Result result = dispatcher.dispatch(names, MockJavaSleepCheck.class.getName(),
+					new HashMap<String, Object>(), null, 1);
+			assertEquals(Status.SUCCESS, result.getStatus());
+			assertTrue(System.currentTimeMillis() - start < 1000);
+		} finally {
+			callers.shutdown();
+		}
+	}
+
+	@Test
+	public void testWaitForThread() throws Exception {
+		// checks within their budget that hold every thread of the pool
+		int size = JavaDispatcher.DEFAULT_POOL_SIZE;
+		ExecutorService callers = Executors.newFixedThreadPool(size);
+		try {
+			List<Future<Result>> busy = new ArrayList<Future<Result>>();
+			for (int i = 0; i < size; i++) {
+				busy.add(callers.submit(() -> {
+					Map<String, Object> names = new HashMap<String, Object>();
+					names.put("millis", 3000);
+					return dispatcher.dispatch(names, MockJavaSleepCheck.class.getName(),
+							new HashMap<String, Object>(), null, 10);
+				}));
+			}
+			Thread.sleep(500);
+
+			// the next check doesn't wait for longer than its own budget
+			Map<String, Object> names = new HashMap<String, Object>();
+			names.put("millis", 10);
+			long start = System.currentTimeMillis();
+			Result result = dispatcher.dispatch(names, MockJavaSleepCheck.class.getName(),
+					new HashMap<String, Object>(), null, 1);
+			assertEquals(Status.ERROR, result.getStatus());
+			assertTrue(result.getOutput().get(0).getValue().contains("could not be started"));
+			assertTrue(System.currentTimeMillis() - start < 2000);
+
+			for (Future<Result> check : busy) {
+				assertEquals(Status.SUCCESS, check.get().getStatus());
+			}
+		} finally {
+			callers.shutdown();
+		}
+	}
 }
@@ -1,14 +1,34 @@
 package edu.ucsb.nceas.mdqengine.dispatch;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.sun.net.httpserver.HttpServer;
 
 import static org.junit.jupiter.api.Assertions.fail;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
@@ -16,6 +36,9 @@ public class MDQCacheTest {
 	
 	private Log log = LogFactory.getLog(this.getClass());
 	
+	@TempDir
+	File tempDir;
+
 	private String dataUrl = "https://knb.ecoinformatics.org/knb/d1/mn/v2/object/doi:10.5063/AA/wolkovich.29.1";
 	
 	@Test
@@ -37,4 +60,177 @@ public class MDQCacheTest {
 		
 	}
 
+	@Test
+	public void testContent() throws Exception {
+
+		String[] library = { "\"v1\"", "x <- 1" };
+		AtomicInteger downloads = new AtomicInteger();
+		HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.createContext("/library.R", exchange -> {
+			if (library[0].equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+				exchange.sendResponseHeaders(304, -1);
+			} else {
+				byte[] body = library[1].getBytes(StandardCharsets.UTF_8);
+				downloads.incrementAndGet();
+				exchange.getResponseHeaders().add("ETag", library[0]);
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			}
+			exchange.close();
+		});
+		server.start();
+
+		String previous = MDQCache.getCacheDir();
+		MDQCache.initialize(tempDir.getAbsolutePath() + File.separator);
+		try {
+			URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/library.R");
+			assertEquals("x <- 1", MDQCache.getContent(url));
+			// within the TTL, so the server isn't asked
+			long hits = MDQCache.getMetrics().get("hits");
+			assertEquals("x <- 1", MDQCache.getContent(url));
+			assertEquals(hits + 1, (long) MDQCache.getMetrics().get("hits"));
+
+			// revalidate every time, it is unchanged so it isn't downloaded again
+			MDQCache.configure(0, 1024 * 1024, 1024 * 1024);
+			assertEquals("x <- 1", MDQCache.getContent(url));
+			assertEquals(1, downloads.get());
+
+			library[0] = "\"v2\"";
+			library[1] = "x <- 2";
+			assertEquals("x <- 2", MDQCache.getContent(url));
+			assertEquals(2, downloads.get());
+
+			// the last copy is used when the server is gone, and the server isn't
+			// tried again until the TTL has passed
+			server.stop(0);
+			MDQCache.configure(1, 1024 * 1024, 1024 * 1024);
+			Thread.sleep(1100);
+			long stale = MDQCache.getMetrics().get("staleHits");
+			assertEquals("x <- 2", MDQCache.getContent(url));
+			assertEquals(stale + 1, (long) MDQCache.getMetrics().get("staleHits"));
+			assertEquals("x <- 2", MDQCache.getContent(url));
+			assertEquals(stale + 1, (long) MDQCache.getMetrics().get("staleHits"));
+		} finally {
+			server.stop(0);
+			MDQCache.initialize(previous);
+		}
+	}
+
+	@Test
+	public void testSingleFlight() throws Exception {
+
+		AtomicInteger downloads = new AtomicInteger();
+		HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/", exchange -> {
+			downloads.incrementAndGet();
+			try {
+				Thread.sleep(200);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			// eight bytes for every path
+			byte[] body = "12345678".getBytes(StandardCharsets.UTF_8);
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+			exchange.close();
+		});
+		server.start();
+
+		String previous = MDQCache.getCacheDir();
+		MDQCache.initialize(tempDir.getAbsolutePath() + File.separator);
+		ExecutorService threads = Executors.newFixedThreadPool(8);
+		try {
+			String base = "http://127.0.0.1:" + server.getAddress().getPort();
+			List<Callable<String>> gets = new ArrayList<Callable<String>>();
+			for (int i = 0; i < 8; i++) {
+				gets.add(() -> MDQCache.get(base + "/a"));
+			}
+			for (Future<String> path : threads.invokeAll(gets)) {
+				assertEquals(DigestUtils.md5Hex(base + "/a"), new File(path.get()).getName());
+			}
+			assertEquals(1, downloads.get());
+
+			// room for one entry, but the one that was just returned may still be opened
+			long evictions = MDQCache.getMetrics().get("evictions");
+			MDQCache.configure(3600, 12, 1024);
+			File b = new File(MDQCache.get(base + "/b"));
+			assertTrue(b.exists());
+			assertTrue(new File(tempDir, DigestUtils.md5Hex(base + "/a")).exists());
+			assertEquals(evictions, (long) MDQCache.getMetrics().get("evictions"));
+
+			// once it hasn't been returned for a while, the least recently used ones are removed
+			MDQCache.servedGraceMillis = 0;
+			File c = new File(MDQCache.get(base + "/c"));
+			assertTrue(c.exists());
+			assertFalse(new File(tempDir, DigestUtils.md5Hex(base + "/a")).exists());
+			assertFalse(b.exists());
+			Map<String, Long> metrics = MDQCache.getMetrics();
+			assertEquals(evictions + 2, (long) metrics.get("evictions"));
+			assertEquals(8, (long) metrics.get("diskBytes"));
+			assertEquals(1, (long) metrics.get("entries"));
+		} finally {
+			threads.shutdownNow();
+			server.stop(0);
+			MDQCache.servedGraceMillis = MDQCache.DEFAULT_SERVED_GRACE;
+			MDQCache.initialize(previous);
+		}
+	}
+
+	@Test
+	public void testBundle() throws Exception {
+
+		AtomicInteger downloads = new AtomicInteger();
+		HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.createContext("/vocabulary.ttl", exchange -> {
+			byte[] body = "@prefix ex: <http://example.org/> .".getBytes(StandardCharsets.UTF_8);
+			downloads.incrementAndGet();
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+			exchange.close();
+		});
+		server.start();
+
+		String previous = MDQCache.getCacheDir();
+		File bundle = new File(tempDir, "bundle.zip");
+		try {
+			URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/vocabulary.ttl");
+			MDQCache.initialize(new File(tempDir, "scheduler").getAbsolutePath() + File.separator);
+			MDQCache.getContent(url);
+			assertEquals(1, MDQCache.exportBundle(bundle));
+
+			// a new process starts with the bundle, and doesn't fetch the URL again
+			MDQCache.initialize(new File(tempDir, "worker").getAbsolutePath() + File.separator);
+			assertEquals(1, MDQCache.importBundle(bundle));
+			assertEquals("@prefix ex: <http://example.org/> .", MDQCache.getContent(url));
+			assertEquals(1, downloads.get());
+			// the cached copy is already as recent
+			assertEquals(0, MDQCache.importBundle(bundle));
+
+			// entries that don't match their hash are skipped
+			String key = DigestUtils.md5Hex(url.toString());
+			try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(bundle))) {
+				zip.putNextEntry(new ZipEntry(key));
+				zip.write("tampered".getBytes(StandardCharsets.UTF_8));
+				zip.putNextEntry(new ZipEntry(key + ".properties"));
+				zip.write("validated=1".getBytes(StandardCharsets.UTF_8));
+				zip.putNextEntry(new ZipEntry("manifest.properties"));
+				zip.write((key + "=" + DigestUtils.sha256Hex("original") + "\n" + key + ".properties="
+						+ DigestUtils.sha256Hex("validated=1")).getBytes(StandardCharsets.UTF_8));
+			}
+			MDQCache.initialize(new File(tempDir, "other").getAbsolutePath() + File.separator);
+			assertEquals(0, MDQCache.importBundle(bundle));
+			assertFalse(new File(tempDir, "other" + File.separator + key).exists());
+		} finally {
+			server.stop(0);
+			MDQCache.initialize(previous);
+		}
+	}
+
 }
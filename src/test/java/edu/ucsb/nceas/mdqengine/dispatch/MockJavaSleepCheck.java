@@ -0,0 +1,49 @@
+package edu.ucsb.nceas.mdqengine.dispatch;
+
+import java.util.concurrent.Callable;
+
+import edu.ucsb.nceas.mdqengine.model.Output;
+import edu.ucsb.nceas.mdqengine.model.Result;
+import edu.ucsb.nceas.mdqengine.model.Status;
+
+public class MockJavaSleepCheck implements Callable<Result> {
+
+	private int millis;
+
+	// keep sleeping when interrupted, like a check blocked in I/O
+	private boolean uninterruptible;
+
+	@Override
+	public Result call() throws Exception {
+		long end = System.currentTimeMillis() + millis;
+		while (uninterruptible && System.currentTimeMillis() < end) {
+			try {
+				Thread.sleep(Math.max(end - System.currentTimeMillis(), 1));
+			} catch (InterruptedException e) {
+				// ignored
+			}
+		}
+		Thread.sleep(Math.max(end - System.currentTimeMillis(), 0));
+		Result dr = new Result();
+		dr.setStatus(Status.SUCCESS);
+		dr.setOutput(new Output("slept " + millis));
+		return dr;
+	}
+
+	public int getMillis() {
+		return millis;
+	}
+
+	public void setMillis(int millis) {
+		this.millis = millis;
+	}
+
+	public boolean isUninterruptible() {
+		return uninterruptible;
+	}
+
+	public void setUninterruptible(boolean uninterruptible) {
+		this.uninterruptible = uninterruptible;
+	}
+
+}
@@ -6,6 +6,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.script.ScriptException;
 import javax.xml.parsers.ParserConfigurationException;
@@ -23,6 +26,8 @@ import org.junit.jupiter.api.Test;
 import org.xml.sax.SAXException;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
@@ -30,6 +35,8 @@ public class PythonDispatcherTest {
 
 	private Dispatcher dispatcher = null;
 
+	private static final String TIMES_TEN = "def call():\n  return x * 10\n";
+
 	private String dataUrl = "https://knb.ecoinformatics.org/knb/d1/mn/v2/object/doi:10.5063/AA/wolkovich.29.1";
 
 	@BeforeAll
@@ -167,4 +174,99 @@ public class PythonDispatcherTest {
 		// make sure the file is named as expected
 		assertTrue(result.getOutput().get(0).getValue().endsWith(DigestUtils.md5Hex(dataUrl)));
 	}
+
+	@Test
+	public void testReleaseResetsInterpreter() throws Exception {
+		dispatcher.dispatch(new HashMap<String, Object>(), "leftover = 1\nimport json");
+		assertSame(dispatcher, Dispatcher.getDispatcher("python"));
+
+		Dispatcher.releaseDispatchers();
+		dispatcher = Dispatcher.getDispatcher("python");
+		// globals from the previous run are gone, imported modules are still loaded
+		Result result = dispatcher.dispatch(new HashMap<String, Object>(),
+				"import sys\ndef call():\n  return ('leftover' in globals()) or ('json' not in sys.modules)");
+		assertEquals("false", result.getOutput().get(0).getValue());
+	}
+
+	@Test
+	public void testPooledInterpreters() throws Exception {
+		JepInterpreterPool pool = new JepInterpreterPool(2);
+		ExecutorService threads = Executors.newFixedThreadPool(2);
+		try {
+			Dispatcher first = pool.acquire();
+			Dispatcher second = pool.acquire();
+			assertNotSame(first, second);
+			assertEquals(0, pool.available());
+
+			// each interpreter has its own globals, and can be used from any thread
+			Future<Result> a = threads
+					.submit(() -> first.dispatch(new HashMap<String, Object>(Map.of("x", 1)), TIMES_TEN));
+			Future<Result> b = threads
+					.submit(() -> second.dispatch(new HashMap<String, Object>(Map.of("x", 2)), TIMES_TEN));
+			assertEquals("10", a.get().getOutput().get(0).getValue());
+			assertEquals("20", b.get().getOutput().get(0).getValue());
+
+			pool.release(first);
+			assertEquals(1, pool.available());
+		} finally {
+			threads.shutdown();
+			pool.close();
+		}
+	}
+
+	@Test
+	public void testCompiledCode() throws Exception {
+		String code = "def call():\n  return x * 2\n";
+		Map<String, Object> run = new HashMap<String, Object>();
+		Result result = dispatcher.dispatch(new HashMap<String, Object>(Map.of("x", 2)), code, run, "check.double@1");
+		assertEquals("4", result.getOutput().get(0).getValue());
+
+		// the compiled code is run with the variables of each check, and kept between runs
+		Dispatcher.releaseDispatchers();
+		dispatcher = Dispatcher.getDispatcher("python");
+		result = dispatcher.dispatch(new HashMap<String, Object>(Map.of("x", 5)), code, run, "check.double@1");
+		assertEquals("10", result.getOutput().get(0).getValue());
+
+		// a syntax error is reported like any other error in the check
+		result = dispatcher.dispatch(new HashMap<String, Object>(), "def call(:", run, "check.invalid@1");
+		assertEquals(Status.ERROR, result.getStatus());
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+		Map<String, Object> run = new HashMap<String, Object>();
+		Result result = dispatcher.dispatch(new HashMap<String, Object>(), "while True:\n  pass\n", run, null, 1);
+		assertEquals(Status.ERROR, result.getStatus());
+		assertTrue(result.getOutput().get(0).getValue().contains("time limit"));
+
+		// the interpreter can still be used
+		result = dispatcher.dispatch(new HashMap<String, Object>(Map.of("x", 2)), TIMES_TEN, run, null, 1);
+		assertEquals("20", result.getOutput().get(0).getValue());
+	}
+
+	@Test
+	public void testHarvest() throws Exception {
+		String code = "def call():\n"
+				+ "  global output, output_identifiers, output_type, status\n"
+				+ "  output = [document[:4], str(len(document))]\n"
+				+ "  output_identifiers = ['start', 'length']\n"
+				+ "  output_type = ['text', 'number']\n"
+				+ "  status = 'SUCCESS'\n";
+		Map<String, Object> run = new HashMap<String, Object>();
+		String document = "<eml/>";
+		Result result = dispatcher.dispatch(new HashMap<String, Object>(Map.of("document", document)), code, run,
+				"check.harvest@1");
+		assertEquals(Status.SUCCESS, result.getStatus());
+		assertEquals(2, result.getOutput().size());
+		assertEquals("<eml", result.getOutput().get(0).getValue());
+		assertEquals("6", result.getOutput().get(1).getValue());
+		assertEquals("number", result.getOutput().get(1).getType());
+
+		// a check that replaces the document doesn't change it for the next check
+		dispatcher.dispatch(new HashMap<String, Object>(Map.of("document", document)),
+				"def call():\n  global document\n  document = ''\n  return 0\n", run, null);
+		result = dispatcher.dispatch(new HashMap<String, Object>(Map.of("document", document)),
+				"def call():\n  return len(document)\n", run, null);
+		assertEquals("6", result.getOutput().get(0).getValue());
+	}
 }
@@ -155,6 +155,39 @@ public class RDispatcherTest {
 		assertEquals(Status.ERROR, result.getStatus());
 	}
 	
+	@Test
+	public void testStateIsCleared() {
+		// checks share the long-lived R processes, but not their variables
+		Map<String, Object> names = new HashMap<String, Object>();
+		names.put("x", 2);
+		Result result = null;
+		try {
+			dispatcher.dispatch(names, "z <- x; get <- function(...) stop('replaced'); z;");
+			result = dispatcher.dispatch(new HashMap<String, Object>(), "exists('z');");
+		} catch (ScriptException e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+		assertEquals("false", result.getOutput().get(0).getValue());
+	}
+
+	@Test
+	public void testSessionIsRestored() {
+		// options, attached packages, the working directory and the seed don't carry over
+		Result result = null;
+		try {
+			dispatcher.dispatch(new HashMap<String, Object>(),
+					"options(digits = 3, mdq.test = TRUE); library(tools); setwd(tempdir()); set.seed(1); TRUE;");
+			result = dispatcher.dispatch(new HashMap<String, Object>(),
+					"getOption('digits') == 7 && is.null(getOption('mdq.test')) && !('package:tools' %in% search()) "
+					+ "&& normalizePath(getwd()) != normalizePath(tempdir()) && !exists('.Random.seed', envir = globalenv());");
+		} catch (ScriptException e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+		assertEquals("true", result.getOutput().get(0).getValue());
+	}
+
 	@Test
 	public void testNumOfRecords() {
 
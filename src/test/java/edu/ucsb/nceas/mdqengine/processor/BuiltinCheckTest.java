@@ -0,0 +1,165 @@
+package edu.ucsb.nceas.mdqengine.processor;
+
+import edu.ucsb.nceas.mdqengine.model.Check;
+import edu.ucsb.nceas.mdqengine.model.Result;
+import edu.ucsb.nceas.mdqengine.model.Selector;
+import edu.ucsb.nceas.mdqengine.model.Status;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BuiltinCheckTest {
+
+    private static Result run(String code, Object value) {
+        Map<String, Object> variables = new HashMap<>();
+        variables.put("abstract", value);
+        return BuiltinCheck.parse(code).run(variables);
+    }
+
+    @Test
+    public void testPresent() {
+        String code = "present\nvariable = abstract\n";
+        assertEquals(Status.SUCCESS, run(code, "An abstract").getStatus());
+        assertEquals(Status.SUCCESS, run(code, Arrays.asList(" ", "An abstract")).getStatus());
+        assertEquals(Status.FAILURE, run(code, "  ").getStatus());
+        Result result = run(code, null);
+        assertEquals(Status.FAILURE, result.getStatus());
+        assertEquals("'abstract' was not found or is blank", result.getOutput().get(0).getValue());
+    }
+
+    @Test
+    public void testLength() {
+        String code = "length\n"
+                + "# the abstract should be a few words\n"
+                + "variable = abstract\n"
+                + "unit = words\n"
+                + "min = 3\n"
+                + "failure = The abstract word count of {value} is less than the recommended minimum of {min}\n"
+                + "missing = An abstract was not found\n";
+        assertEquals(Status.SUCCESS, run(code, Arrays.asList("Salmon", "counts in", "Alaska")).getStatus());
+        Result result = run(code, "Salmon  counts");
+        assertEquals(Status.FAILURE, result.getStatus());
+        assertEquals("The abstract word count of 2 is less than the recommended minimum of 3",
+                result.getOutput().get(0).getValue());
+        assertEquals("An abstract was not found", run(code, null).getOutput().get(0).getValue());
+
+        code = "length\nvariable = abstract\nmax = 5\n";
+        assertEquals(Status.SUCCESS, run(code, "Abcde").getStatus());
+        assertEquals("The length of 'abstract' is 6 characters, it should be at most 5",
+                run(code, "Abcdef").getOutput().get(0).getValue());
+    }
+
+    @Test
+    public void testMatches() {
+        String code = "matches\nvariable = abstract\npattern = [A-Z][a-z]+\n";
+        assertEquals(Status.SUCCESS, run(code, Arrays.asList("Salmon", "Trout")).getStatus());
+        assertEquals(Status.FAILURE, run(code, Arrays.asList("Salmon", "trout")).getStatus());
+        assertEquals(Status.SUCCESS, run(code + "all = false\n", Arrays.asList("Salmon", "trout")).getStatus());
+        assertEquals(Status.FAILURE, run(code, null).getStatus());
+    }
+
+    @Test
+    public void testCount() {
+        String code = "count\nvariable = abstract\nmin = 2\nmax = 3\n";
+        assertEquals(Status.SUCCESS, run(code, Arrays.asList("a", "b")).getStatus());
+        assertEquals(Status.FAILURE, run(code, Arrays.asList("a", " ")).getStatus());
+        assertEquals(Status.FAILURE, run(code, null).getStatus());
+        // the value of a count() selector
+        assertEquals(Status.SUCCESS, run(code, 3.0).getStatus());
+        assertEquals("'abstract' has 4 values, it should have between 2 and 3",
+                run(code, 4).getOutput().get(0).getValue());
+    }
+
+    @Test
+    public void testInvalid() {
+        assertThrows(IllegalArgumentException.class, () -> BuiltinCheck.parse("spellcheck\nvariable = abstract"));
+        assertThrows(IllegalArgumentException.class, () -> BuiltinCheck.parse("present\n"));
+        assertThrows(IllegalArgumentException.class, () -> BuiltinCheck.parse("present\nvariable = a\nmin = 2"));
+        assertThrows(IllegalArgumentException.class, () -> BuiltinCheck.parse("length\nvariable = a\nmin = two"));
+        assertThrows(IllegalArgumentException.class, () -> BuiltinCheck.parse("matches\nvariable = a\npattern = ("));
+
+        Result result = BuiltinCheck.compile("count\nvariable = a\nmin 2").run(new HashMap<>());
+        assertEquals(Status.ERROR, result.getStatus());
+        assertEquals("Invalid builtin check: Expected 'name = value', not 'min 2'",
+                result.getOutput().get(0).getValue());
+    }
+
+    @Test
+    public void testDialect() throws Exception {
+        String xml = "<eml><dataset><title>Salmon counts</title><keyword>fish</keyword><keyword>Alaska</keyword>"
+                + "</dataset></eml>";
+        XMLDialect dialect = new XMLDialect(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+
+        Check check = new Check();
+        check.setId("keywords.count");
+        check.setEnvironment("builtin");
+        check.setCode("count\nvariable = keywords\nmin = 3\n");
+        Selector selector = new Selector();
+        selector.setName("keywords");
+        selector.setXpath("/eml/dataset/keyword");
+        List<Selector> selectors = new ArrayList<>();
+        selectors.add(selector);
+        check.setSelector(selectors);
+
+        Result result = dialect.runCheck(new CompiledCheck(check));
+        assertEquals(Status.FAILURE, result.getStatus());
+        assertEquals("'keywords' has 2 values, it should have at least 3", result.getOutput().get(0).getValue());
+        assertEquals(check, result.getCheck());
+    }
+
+    @Test
+    public void testReport() throws Exception {
+        File file = new File(getClass().getClassLoader().getResource("test-docs/resource.abstractLength.xml").toURI());
+        Check check = BuiltinCheckReport.readChecks(file).get(0);
+        BuiltinCheckReport.Suggestion suggestion = BuiltinCheckReport.analyze(check);
+        assertTrue(suggestion.isMigratable());
+        assertEquals("length\nvariable = abstract\nunit = words\nmin = 100\n", suggestion.getCode());
+        // the suggestion is a valid builtin check
+        assertEquals("length", BuiltinCheck.parse(suggestion.getCode()).getName());
+
+        check.setInheritState(true);
+        assertFalse(BuiltinCheckReport.analyze(check).isMigratable());
+    }
+
+    @Test
+    public void testAnalyzePresent() {
+        Check check = new Check();
+        check.setId("title.present");
+        Selector selector = new Selector();
+        selector.setName("title");
+        selector.setXpath("/eml/dataset/title");
+        List<Selector> selectors = new ArrayList<>();
+        selectors.add(selector);
+        check.setSelector(selectors);
+
+        check.setEnvironment("python");
+        check.setCode("def call():\n  if title is None:\n    return False\n  return True\n");
+        assertEquals("present\nvariable = title\n", BuiltinCheckReport.analyze(check).getCode());
+        check.setCode("def call():\n  return len(title.strip()) != 0\n");
+        assertTrue(BuiltinCheckReport.analyze(check).isMigratable());
+
+        check.setEnvironment("r");
+        check.setCode("if (is.null(title) || nchar(title) == 0) { status <- 'FAILURE' }");
+        assertTrue(BuiltinCheckReport.analyze(check).isMigratable());
+
+        // code that tests something else isn't taken for a presence test
+        check.setEnvironment("python");
+        check.setCode("def call():\n  return title.startswith('Data')\n");
+        BuiltinCheckReport.Suggestion suggestion = BuiltinCheckReport.analyze(check);
+        assertFalse(suggestion.isMigratable());
+        assertEquals("the code wasn't recognized as one of the builtin tests", suggestion.getReason());
+    }
+}
@@ -0,0 +1,201 @@
+package edu.ucsb.nceas.mdqengine.processor;
+
+import edu.ucsb.nceas.mdqengine.model.Check;
+import edu.ucsb.nceas.mdqengine.model.Namespace;
+import edu.ucsb.nceas.mdqengine.model.Output;
+import edu.ucsb.nceas.mdqengine.model.Result;
+import edu.ucsb.nceas.mdqengine.model.Run;
+import edu.ucsb.nceas.mdqengine.model.Status;
+import edu.ucsb.nceas.mdqengine.serialize.XmlMarshaller;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CheckExecutorTest {
+
+	private static final String TEST_DOCS = "src/test/resources/test-docs";
+
+	/**
+	 * Records the thread each check ran on, and returns the check id as output
+	 */
+	private static class RecordingDialect extends AbstractMetadataDialect {
+
+		private Map<String, String> threads = new ConcurrentHashMap<String, String>();
+
+		@Override
+		public Result runCheck(CompiledCheck compiled) {
+			Check check = compiled.getCheck();
+			threads.put(check.getId(), Thread.currentThread().getName());
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			Result result = new Result();
+			result.setCheck(check);
+			result.setStatus(Status.SUCCESS);
+			result.setOutput(new Output(check.getId()));
+			return result;
+		}
+
+		@Override
+		public boolean isCheckValid(Check check) {
+			return true;
+		}
+
+		@Override
+		public void extractNamespaces() {
+		}
+
+		@Override
+		public void mergeNamespaces(List<Namespace> namespaces) {
+		}
+	}
+
+	private CompiledCheck newCheck(String id, String environment, boolean inheritState) {
+		Check check = new Check();
+		check.setId(id);
+		check.setEnvironment(environment);
+		check.setInheritState(inheritState);
+		return new CompiledCheck(check);
+	}
+
+	@Test
+	public void testResultsInSuiteOrder() throws Exception {
+		List<CompiledCheck> checks = new ArrayList<CompiledCheck>();
+		for (int i = 0; i < 20; i++) {
+			checks.add(newCheck("check." + i, i % 3 == 0 ? "python" : "rscript", false));
+		}
+
+		Map<String, Integer> limits = new HashMap<String, Integer>();
+		limits.put("r", 2);
+		CheckExecutor executor = new CheckExecutor(4, limits);
+		RecordingDialect dialect = new RecordingDialect();
+		List<Result> results = executor.run(dialect, checks);
+		executor.shutdown();
+
+		assertEquals(checks.size(), results.size());
+		for (int i = 0; i < checks.size(); i++) {
+			assertEquals("check." + i, results.get(i).getOutput().get(0).getValue());
+		}
+		// python checks stay on the calling thread
+		assertEquals(Thread.currentThread().getName(), dialect.threads.get("check.0"));
+	}
+
+	@Test
+	public void testInheritStateRunsOnSameThread() throws Exception {
+		List<CompiledCheck> checks = new ArrayList<CompiledCheck>();
+		checks.add(newCheck("first", "java", false));
+		checks.add(newCheck("second", "java", true));
+		checks.add(newCheck("third", "java", true));
+		checks.add(newCheck("other", "java", false));
+
+		CheckExecutor executor = new CheckExecutor(4, null);
+		RecordingDialect dialect = new RecordingDialect();
+		List<Result> results = executor.run(dialect, checks);
+		executor.shutdown();
+
+		assertEquals(dialect.threads.get("first"), dialect.threads.get("second"));
+		assertEquals(dialect.threads.get("first"), dialect.threads.get("third"));
+		assertEquals("other", results.get(3).getOutput().get(0).getValue());
+	}
+
+	@Test
+	public void testSkippedCheckDoesNotBreakChain() throws Exception {
+		List<CompiledCheck> checks = new ArrayList<CompiledCheck>();
+		checks.add(newCheck("first", "java", false));
+		Check missing = new Check();
+		missing.setId("missing");
+		checks.add(CompiledCheck.skipped(missing, "not found"));
+		checks.add(newCheck("second", "java", true));
+
+		CheckExecutor executor = new CheckExecutor(4, null);
+		RecordingDialect dialect = new RecordingDialect();
+		List<Result> results = executor.run(dialect, checks);
+		executor.shutdown();
+
+		assertEquals(Status.SKIP, results.get(1).getStatus());
+		assertEquals("not found", results.get(1).getOutput().get(0).getValue());
+		assertEquals(dialect.threads.get("first"), dialect.threads.get("second"));
+	}
+
+	/**
+	 * The checks of the test suite and the test check files, with the builtin
+	 * checks they can be migrated to, so that some of the checks run without R or
+	 * python. There is no JavaScript engine in the JDK, so JavaScript checks are
+	 * only run as builtin checks.
+	 */
+	private List<CompiledCheck> readSuiteChecks() throws Exception {
+		List<Check> checks = new ArrayList<Check>();
+		for (String name : new String[] { "test-suite.xml", "resource.abstractLength.xml",
+				"resource.abstractLength-2.0.0.xml" }) {
+			checks.addAll(BuiltinCheckReport.readChecks(new File(TEST_DOCS, name)));
+		}
+		List<CompiledCheck> compiled = new ArrayList<CompiledCheck>();
+		for (Check check : checks) {
+			if (!"JavaScript".equalsIgnoreCase(check.getEnvironment())) {
+				compiled.add(new CompiledCheck(check));
+			}
+			BuiltinCheckReport.Suggestion suggestion = BuiltinCheckReport.analyze(check);
+			if (suggestion.isMigratable()) {
+				Check builtin = new Check();
+				builtin.setId(check.getId() + ".builtin");
+				builtin.setEnvironment(BuiltinCheck.ENVIRONMENT);
+				builtin.setCode(suggestion.getCode());
+				builtin.setSelector(check.getSelector());
+				compiled.add(new CompiledCheck(builtin));
+			}
+		}
+		return compiled;
+	}
+
+	/**
+	 * Run the checks on a document and serialize the run, leaving out the run id
+	 * and timestamps
+	 */
+	private String runChecks(CheckExecutor executor, String document, List<CompiledCheck> checks)
+			throws Exception {
+		XMLDialect dialect;
+		try (InputStream input = new FileInputStream(new File(TEST_DOCS, document))) {
+			dialect = new XMLDialect(input);
+		}
+		dialect.prepare(checks);
+		Run run = new Run();
+		run.setId(UUID.randomUUID().toString());
+		run.setTimestamp(Calendar.getInstance().getTime());
+		run.setSuiteId("suite.2.1");
+		run.setResult(executor.run(dialect, checks));
+		String xml = XmlMarshaller.toXml(run, true);
+		return xml.replace(run.getId(), "").replaceAll("<timestamp>[^<]*</timestamp>", "");
+	}
+
+	@Test
+	public void testParallelRunMatchesSequentialRun() throws Exception {
+		List<CompiledCheck> checks = readSuiteChecks();
+		CheckExecutor sequential = new CheckExecutor(1, null);
+		CheckExecutor parallel = new CheckExecutor(4, null);
+		try {
+			for (String document : new String[] { "eml.1.1.xml", "doi:10.18739_A2W08WG3R.xml", "iso19139.xml" }) {
+				String expected = runChecks(sequential, document, checks);
+				assertEquals(expected, runChecks(parallel, document, checks), document);
+				assertTrue(expected.contains("SUCCESS"), document);
+			}
+		} finally {
+			sequential.shutdown();
+			parallel.shutdown();
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package edu.ucsb.nceas.mdqengine.processor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class RunContextTest {
+
+	@Test
+	public void testRunVariables() {
+		List<String> dataPids = new ArrayList<String>();
+		dataPids.add("urn:uuid:1234");
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("dataPids", dataPids);
+		params.put("metadigDataDir", "/opt/local/metadig/data");
+
+		RunContext context = new RunContext(null, params, "/tmp/mdq_run");
+		Map<String, Object> variables = context.getVariables();
+
+		assertSame(dataPids, variables.get("dataPids"));
+		assertEquals("/tmp/mdq_run", variables.get("tempDir"));
+		assertEquals(params, variables.get("mdq_params"));
+		assertFalse(variables.containsKey("systemMetadata"));
+
+		// later changes to the parameters don't change the run
+		params.put("extra", "value");
+		assertFalse(((Map<?, ?>) variables.get("mdq_params")).containsKey("extra"));
+		assertThrows(UnsupportedOperationException.class, () -> variables.put("tempDir", "/tmp"));
+	}
+
+	@Test
+	public void testDialectBuildsContext() throws Exception {
+		XMLDialect dialect = new XMLDialect(getClass().getResourceAsStream("/test-docs/eml.1.1.xml"));
+		dialect.setDirectory("/tmp/mdq_run");
+		RunContext first = dialect.getRunContext();
+		assertSame(first, dialect.getRunContext());
+		assertEquals("/tmp/mdq_run", first.getVariables().get("tempDir"));
+
+		// changing the run details rebuilds it
+		dialect.setDirectory("/tmp/mdq_other");
+		assertEquals("/tmp/mdq_other", dialect.getRunContext().getVariables().get("tempDir"));
+	}
+}
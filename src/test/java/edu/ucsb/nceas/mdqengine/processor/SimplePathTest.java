@@ -0,0 +1,108 @@
+package edu.ucsb.nceas.mdqengine.processor;
+
+import edu.ucsb.nceas.mdqengine.model.Check;
+import edu.ucsb.nceas.mdqengine.model.Dialect;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathFactory;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SimplePathTest {
+
+	@Test
+	public void testParse() {
+		assertNotNull(SimplePath.parse("/eml/dataset/title"));
+		assertNotNull(SimplePath.parse("//attribute/attributeName"));
+		assertNotNull(SimplePath.parse("/eml/@packageId"));
+		assertNotNull(SimplePath.parse("/eml/dataset/project/funding//para"));
+		assertNotNull(SimplePath.parseTest("boolean(/*[local-name() = 'MI_Metadata' or local-name() = 'MD_Metadata'])"));
+
+		assertNull(SimplePath.parse("count(/eml/dataset/creator)"));
+		assertNull(SimplePath.parse("./attributeName"));
+		assertNull(SimplePath.parse("/eml:eml/dataset/title"));
+		assertNull(SimplePath.parse("./description//para/text()"));
+		assertNull(SimplePath.parse("/eml/dataset/*[self::dataTable|self::otherEntity]"));
+		assertNull(SimplePath.parseTest("/eml/dataset/title"));
+	}
+
+	@Test
+	public void testStreamedValuesMatchDom() throws Exception {
+		String[] xpaths = { "/eml/dataset/title", "/eml/dataset/creator", "//individualName/surName", "//title",
+				"/eml/@packageId", "/eml/dataset/*", "//attribute/attributeName", "/*[local-name() = 'eml']",
+				"/MD_Metadata/identificationInfo//title", "//gmd:title", "//*[local-name() = 'title']",
+				"/eml/dataset/missing" };
+		for (String doc : new String[] { "/test-docs/eml.1.1.xml", "/test-docs/iso19139.xml" }) {
+			byte[] source = IOUtils.toByteArray(getClass().getResourceAsStream(doc));
+			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+			factory.setNamespaceAware(false);
+			Document document = factory.newDocumentBuilder().parse(new ByteArrayInputStream(source));
+
+			List<SimplePath> paths = new ArrayList<SimplePath>();
+			for (String xpath : xpaths) {
+				SimplePath path = SimplePath.parse(xpath);
+				if (path != null) {
+					paths.add(path);
+				}
+			}
+			XMLStreamPass pass = new XMLStreamPass(source, paths);
+			pass.run();
+
+			for (SimplePath path : paths) {
+				NodeList nodes = (NodeList) XPathFactory.newInstance().newXPath().evaluate(path.getExpression(),
+						document, XPathConstants.NODESET);
+				List<String> expected = new ArrayList<String>();
+				for (int i = 0; i < nodes.getLength(); i++) {
+					expected.add(nodes.item(i).getTextContent());
+				}
+				assertEquals(expected, pass.getValues(path), doc + ": " + path);
+			}
+		}
+	}
+
+	@Test
+	public void testPreparedDialects() throws Exception {
+		Check eml = dialectCheck("boolean(/*[local-name() = 'eml'])");
+		Check iso = dialectCheck("boolean(/*[local-name() = 'MI_Metadata' or local-name() = 'MD_Metadata'])");
+		List<CompiledCheck> checks = new ArrayList<CompiledCheck>();
+		checks.add(new CompiledCheck(eml));
+		checks.add(new CompiledCheck(iso));
+
+		XMLDialect dialect = new XMLDialect(getClass().getResourceAsStream("/test-docs/iso19139.xml"));
+		dialect.prepare(checks);
+		assertFalse(dialect.isCheckValid(eml));
+		assertTrue(dialect.isCheckValid(iso));
+
+		// the same answers without preparing
+		dialect = new XMLDialect(getClass().getResourceAsStream("/test-docs/iso19139.xml"));
+		dialect.prepare(Collections.<CompiledCheck>emptyList());
+		assertFalse(dialect.isCheckValid(eml));
+		assertTrue(dialect.isCheckValid(iso));
+	}
+
+	private Check dialectCheck(String xpath) {
+		Dialect dialect = new Dialect();
+		dialect.setXpath(xpath);
+		List<Dialect> dialects = new ArrayList<Dialect>();
+		dialects.add(dialect);
+		Check check = new Check();
+		check.setId(xpath);
+		check.setDialect(dialects);
+		return check;
+	}
+}
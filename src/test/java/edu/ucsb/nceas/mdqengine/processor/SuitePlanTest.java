@@ -0,0 +1,171 @@
+package edu.ucsb.nceas.mdqengine.processor;
+
+import edu.ucsb.nceas.mdqengine.model.Check;
+import edu.ucsb.nceas.mdqengine.model.Level;
+import edu.ucsb.nceas.mdqengine.model.Selector;
+import edu.ucsb.nceas.mdqengine.model.Suite;
+import edu.ucsb.nceas.mdqengine.store.MDQStore;
+
+import java.io.File;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SuitePlanTest {
+
+	private Map<String, Check> checks;
+	private MDQStore store;
+
+	@TempDir
+	File tempDir;
+
+	@BeforeEach
+	public void setUp() {
+		checks = new HashMap<String, Check>();
+		// only check lookups are needed to compile a plan
+		store = (MDQStore) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { MDQStore.class },
+				(proxy, method, args) -> method.getName().equals("getCheck") ? checks.get(args[0]) : null);
+	}
+
+	private Check storeCheck(String id, String hash) {
+		Check check = new Check();
+		check.setId(id);
+		check.setCode("status <- 'SUCCESS'");
+		check.setLevel(Level.INFO);
+		check.setContentHash(hash);
+		Selector selector = new Selector();
+		selector.setName("title");
+		selector.setXpath("/eml/dataset/title");
+		List<Selector> selectors = new ArrayList<Selector>();
+		selectors.add(selector);
+		check.setSelector(selectors);
+		checks.put(id, check);
+		return check;
+	}
+
+	private Suite suite(String hash, String... referencedIds) {
+		Suite suite = new Suite();
+		suite.setId("test.suite");
+		suite.setContentHash(hash);
+		List<Check> refs = new ArrayList<Check>();
+		for (String id : referencedIds) {
+			Check ref = new Check();
+			ref.setId(id);
+			refs.add(ref);
+		}
+		suite.setCheck(refs);
+		return suite;
+	}
+
+	@Test
+	public void testOverridesDoNotChangeStoreCheck() {
+		Check original = storeCheck("check.1", "a");
+		Suite suite = suite("s1", "check.1");
+		suite.getCheck().get(0).setLevel(Level.REQUIRED);
+
+		SuitePlan plan = SuitePlan.compile(suite, store);
+		Check planned = plan.getChecks().get(0).getCheck();
+
+		assertEquals(Level.REQUIRED, planned.getLevel());
+		assertEquals(Level.INFO, original.getLevel());
+		assertNotNull(plan.getChecks().get(0).getXPath(planned.getSelector().get(0)));
+	}
+
+	@Test
+	public void testMissingReferenceIsSkipped() {
+		SuitePlan plan = SuitePlan.compile(suite("s1", "check.missing"), store);
+		assertEquals("Could not locate referenced check in store: check.missing",
+				plan.getChecks().get(0).getSkipReason());
+	}
+
+	@Test
+	public void testPlanIsCurrent() {
+		storeCheck("check.1", "a");
+		Suite suite = suite("s1", "check.1");
+		SuitePlan plan = SuitePlan.compile(suite, store);
+
+		assertTrue(plan.isCurrent(suite, store));
+		assertFalse(plan.isCurrent(suite("s2", "check.1"), store));
+
+		// reloaded with the same definition
+		storeCheck("check.1", "a");
+		assertTrue(plan.isCurrent(suite, store));
+
+		// changed definition
+		storeCheck("check.1", "b");
+		assertFalse(plan.isCurrent(suite, store));
+	}
+
+	@Test
+	public void testUsesDocument() {
+		Check check = storeCheck("check.1", "a");
+		assertFalse(new CompiledCheck(check).usesDocument());
+
+		check.setCode("def call():\n  root = etree.fromstring(document)");
+		assertTrue(new CompiledCheck(check).usesDocument());
+
+		check.setEnvironment("java");
+		check.setCode("edu.ucsb.nceas.mdqengine.processor.EchoCheck");
+		assertFalse(new CompiledCheck(check).usesDocument());
+		check.setCode("edu.ucsb.nceas.mdqengine.processor.SchemaCheck");
+		assertTrue(new CompiledCheck(check).usesDocument());
+	}
+
+	@Test
+	public void testMissingLibrary() throws Exception {
+		File library = new File(tempDir, "library.py");
+		Check check = storeCheck("check.1", "a");
+		check.setCode("def call():\n  return document");
+		List<URL> libraries = new ArrayList<URL>();
+		libraries.add(library.toURI().toURL());
+		check.setLibrary(libraries);
+
+		long retry = CompiledCheck.libraryRetryMillis;
+		try {
+			CompiledCheck compiled = new CompiledCheck(check);
+			String code = compiled.getCode();
+			assertEquals(check.getCode(), code);
+			assertTrue(compiled.usesDocument(code));
+			assertEquals(compiled.getCodeKey(code), compiled.getCodeKey());
+
+			// the library isn't loaded again until the retry time has passed
+			Files.write(library.toPath(), "import json\n".getBytes(StandardCharsets.UTF_8));
+			assertEquals(check.getCode(), compiled.getCode());
+
+			CompiledCheck.libraryRetryMillis = 0;
+			code = compiled.getCode();
+			assertEquals("import json\n" + check.getCode(), code);
+			assertTrue(compiled.usesDocument(code));
+			assertEquals(compiled.getCodeKey(code), compiled.getCodeKey());
+		} finally {
+			CompiledCheck.libraryRetryMillis = retry;
+		}
+	}
+
+	@Test
+	public void testPrefixedXPathIsNotPrecompiled() {
+		assertTrue(CompiledXPath.usesPrefixes("/eml:eml/dataset/title"));
+		assertFalse(CompiledXPath.usesPrefixes("/*[local-name() = 'eml']/child::dataset"));
+		assertFalse(CompiledXPath.usesPrefixes("//title[text() = 'a:b']"));
+
+		Check check = storeCheck("check.1", "a");
+		check.getSelector().get(0).setXpath("/eml:eml/dataset/title");
+		CompiledCheck compiled = new CompiledCheck(check);
+		assertNull(compiled.getXPath(check.getSelector().get(0)));
+	}
+}
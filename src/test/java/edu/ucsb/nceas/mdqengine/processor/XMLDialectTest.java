@@ -18,7 +18,6 @@ import org.xml.sax.SAXException;
 import javax.xml.parsers.ParserConfigurationException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.reflect.Field;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -32,6 +31,7 @@ import org.w3c.dom.Document;
 import static org.junit.jupiter.api.Assertions.fail;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 
 //@Disabled
 public class XMLDialectTest {
@@ -51,9 +51,8 @@ public class XMLDialectTest {
 		this.dialect = new XMLDialect(
 				getClass().getClassLoader().getResourceAsStream("test-docs/doi:10.18739_A2W08WG3R.xml"));
 
-		Field field = this.dialect.getClass().getDeclaredField("document");
-		field.setAccessible(true);
-		Document docToUse = (Document) field.get(this.dialect);
+		// the document is parsed when it is first needed
+		Document docToUse = (Document) this.dialect.getDocument();
 
 		InputStream inputStream = getClass().getClassLoader()
 				.getResourceAsStream("test-docs/resource.abstractLength-all-combos.xml");
@@ -79,6 +78,17 @@ public class XMLDialectTest {
 		}
 	}
 
+	@Test
+	public void testExtractNamespaces() throws Exception {
+
+		XMLDialect xml = new XMLDialect(getClass().getClassLoader().getResourceAsStream("test-docs/iso19139.xml"));
+
+		// only namespaces used by elements are found, with the prefix they are used with
+		assertEquals("gmd", xml.namespaces.get("http://www.isotc211.org/2005/gmd").getPrefix());
+		assertEquals("gco", xml.namespaces.get("http://www.isotc211.org/2005/gco").getPrefix());
+		assertNull(xml.namespaces.get("http://www.w3.org/2001/XMLSchema-instance"));
+	}
+
 	@Test
 	public void testSubSelector() {
 
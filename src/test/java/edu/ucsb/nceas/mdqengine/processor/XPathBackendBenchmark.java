@@ -0,0 +1,144 @@
+package edu.ucsb.nceas.mdqengine.processor;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.xpath.XPathExpressionException;
+
+/**
+ * Compares the xpath backends on the documents in src/test/resources/test-docs,
+ * evaluating every xpath found in the checks and suites there against every
+ * document. Reports the time taken to parse the documents and evaluate the
+ * expressions with each backend, and how many results differ from the default
+ * backend.
+ *
+ * This isn't run as part of the tests. Run it with e.g.
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=edu.ucsb.nceas.mdqengine.processor.XPathBackendBenchmark \
+ *     -Dexec.args="100 jaxp saxon"
+ * </pre>
+ *
+ * where the arguments are the number of iterations and the backends to compare.
+ */
+public class XPathBackendBenchmark {
+
+	private static final String TEST_DOCS = "src/test/resources/test-docs";
+
+	public static void main(String[] args) throws Exception {
+
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+		List<String> names = args.length > 1 ? Arrays.asList(args).subList(1, args.length)
+				: Arrays.asList(XPathBackend.JAXP, XPathBackend.SAXON);
+
+		List<byte[]> documents = new ArrayList<byte[]>();
+		File[] files = new File(TEST_DOCS).listFiles((dir, name) -> name.endsWith(".xml"));
+		Arrays.sort(files);
+		for (File file : files) {
+			documents.add(Files.readAllBytes(file.toPath()));
+		}
+		List<String> expressions = findExpressions(documents);
+		System.out.println(documents.size() + " documents, " + expressions.size() + " expressions, " + iterations
+				+ " iterations");
+
+		List<String> expected = null;
+		for (String name : names) {
+			XPathBackend backend = XPathBackend.forName(name);
+			List<CompiledXPath> compiled = new ArrayList<CompiledXPath>();
+			for (String expression : expressions) {
+				try {
+					compiled.add(backend.compile(expression, null));
+				} catch (XPathExpressionException e) {
+					compiled.add(null);
+				}
+			}
+
+			// warm up, and keep the results to compare the backends
+			List<String> results = run(backend, documents, compiled);
+			long parseTime = 0;
+			long evaluateTime = 0;
+			for (int i = 0; i < iterations; i++) {
+				for (byte[] source : documents) {
+					long start = System.nanoTime();
+					Object document = backend.parse(source, false);
+					long parsed = System.nanoTime();
+					for (CompiledXPath xpath : compiled) {
+						select(backend, xpath, document);
+					}
+					evaluateTime += System.nanoTime() - parsed;
+					parseTime += parsed - start;
+				}
+			}
+
+			int differences = 0;
+			if (expected == null) {
+				expected = results;
+			} else {
+				for (int i = 0; i < results.size(); i++) {
+					if (!results.get(i).equals(expected.get(i))) {
+						differences++;
+					}
+				}
+			}
+			System.out.printf("%-6s parse %8.2f ms  evaluate %8.2f ms  per iteration, %d results differ%n", name,
+					parseTime / 1e6 / iterations, evaluateTime / 1e6 / iterations, differences);
+		}
+	}
+
+	// the selector and dialect xpaths of the checks and suites in the test documents
+	private static List<String> findExpressions(List<byte[]> documents) throws XPathExpressionException {
+		XPathBackend jaxp = new JaxpXPathBackend();
+		CompiledXPath xpaths = jaxp.compile("//*[local-name() = 'xpath']", null);
+		Set<String> expressions = new LinkedHashSet<String>();
+		for (byte[] source : documents) {
+			Object document;
+			try {
+				document = jaxp.parse(source, false);
+			} catch (XPathExpressionException e) {
+				continue;
+			}
+			for (Object node : xpaths.selectNodes(document)) {
+				expressions.add(jaxp.getStringValue(node).trim());
+			}
+		}
+		return new ArrayList<String>(expressions);
+	}
+
+	private static List<String> run(XPathBackend backend, List<byte[]> documents, List<CompiledXPath> compiled)
+			throws XPathExpressionException {
+		List<String> results = new ArrayList<String>();
+		for (byte[] source : documents) {
+			Object document = backend.parse(source, false);
+			for (CompiledXPath xpath : compiled) {
+				results.add(select(backend, xpath, document));
+			}
+		}
+		return results;
+	}
+
+	// selects values the same way as XMLDialect, without the retyping
+	private static String select(XPathBackend backend, CompiledXPath xpath, Object document) {
+		if (xpath == null) {
+			return "invalid";
+		}
+		try {
+			List<String> values = new ArrayList<String>();
+			for (Object node : xpath.selectNodes(document)) {
+				values.add(backend.getStringValue(node));
+			}
+			return values.toString();
+		} catch (XPathExpressionException e) {
+			try {
+				return xpath.evaluate(document);
+			} catch (XPathExpressionException e2) {
+				return "error";
+			}
+		}
+	}
+}
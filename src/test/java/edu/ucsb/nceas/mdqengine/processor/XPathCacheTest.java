@@ -0,0 +1,80 @@
+package edu.ucsb.nceas.mdqengine.processor;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.xpath.XPathExpressionException;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class XPathCacheTest {
+
+	@Test
+	public void testHitsAndMisses() throws Exception {
+		XPathCache cache = new XPathCache(10);
+		Map<String, String> bindings = new HashMap<String, String>();
+		bindings.put("eml", "https://eml.ecoinformatics.org/eml-2.2.0");
+
+		// bindings don't matter for expressions without prefixes
+		CompiledXPath first = cache.get("/eml/dataset/title", null);
+		assertSame(first, cache.get("/eml/dataset/title", bindings));
+
+		CompiledXPath prefixed = cache.get("/eml:eml/dataset/title", bindings);
+		assertSame(prefixed, cache.get("/eml:eml/dataset/title", new HashMap<String, String>(bindings)));
+
+		// the same expression with different bindings is compiled separately
+		Map<String, String> other = new HashMap<String, String>();
+		other.put("eml", "eml://ecoinformatics.org/eml-2.1.1");
+		assertNotSame(prefixed, cache.get("/eml:eml/dataset/title", other));
+
+		assertEquals(3, cache.getMisses());
+		assertEquals(2, cache.getHits());
+		assertEquals(3, cache.size());
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		XPathCache cache = new XPathCache(2);
+		CompiledXPath a = cache.get("/a", null);
+		cache.get("/b", null);
+		// use 'a' so that 'b' is the least recently used
+		cache.get("/a", null);
+		cache.get("/c", null);
+
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictions());
+		assertSame(a, cache.get("/a", null));
+	}
+
+	@Test
+	public void testInvalidExpression() {
+		XPathCache cache = new XPathCache(10);
+		assertThrows(XPathExpressionException.class, () -> cache.get("/a[", null));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testBackend() throws Exception {
+		XPathCache cache = new XPathCache(10);
+		assertTrue(cache.getBackend() instanceof JaxpXPathBackend);
+		CompiledXPath a = cache.get("/a", null);
+		assertSame(cache.getBackend(), a.getBackend());
+
+		// another instance of the same backend keeps the compiled expressions
+		cache.setBackend(XPathBackend.forName("jaxp"));
+		assertSame(a, cache.get("/a", null));
+
+		// expressions compiled by another backend can't be used with its documents
+		cache.setBackend(XPathBackend.forName("saxon"));
+		assertTrue(cache.getBackend() instanceof SaxonXPathBackend);
+		assertEquals(0, cache.size());
+
+		assertThrows(IllegalArgumentException.class, () -> XPathBackend.forName("xalan"));
+	}
+}